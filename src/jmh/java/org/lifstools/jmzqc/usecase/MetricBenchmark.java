@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import io.github.msdk.MSDKException;
+import io.github.msdk.io.mzml.MzMLFileImportMethod;
+import io.github.msdk.io.mzml.data.MzMLRawDataFile;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.lifstools.jmzqc.InputFile;
+import org.lifstools.jmzqc.QualityMetric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures metric computation on runs that are already loaded with msdk, so
+ * that parsing is not part of the numbers.
+ *
+ * @author Nils Hoffmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class MetricBenchmark {
+
+    @Param({"20000"})
+    int spectra;
+
+    @Param({"200"})
+    int peaksPerSpectrum;
+
+    @Param({"500"})
+    int srmTransitions;
+
+    @Param({"300"})
+    int pointsPerChromatogram;
+
+    private Path ddaMzML;
+    private Path srmMzML;
+    private MzMLRawDataFile ddaFile;
+    private MzMLRawDataFile srmFile;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException, MSDKException {
+        ddaMzML = Files.createTempFile("jmzqc-benchmark-dda", ".mzML");
+        new SyntheticMzMLGenerator(SyntheticMzMLGenerator.Config.dda(spectra, peaksPerSpectrum, 0)).write(ddaMzML);
+        srmMzML = Files.createTempFile("jmzqc-benchmark-srm", ".mzML");
+        new SyntheticMzMLGenerator(SyntheticMzMLGenerator.Config.srm(srmTransitions, pointsPerChromatogram)).write(srmMzML);
+        ddaFile = new MzMLFileImportMethod(ddaMzML).execute();
+        srmFile = new MzMLFileImportMethod(srmMzML).execute();
+    }
+
+    @TearDown(Level.Trial)
+    public void dispose() throws IOException {
+        ddaFile.dispose();
+        srmFile.dispose();
+        Files.deleteIfExists(ddaMzML);
+        Files.deleteIfExists(srmMzML);
+    }
+
+    @Benchmark
+    public List<QualityMetric> ddaMs1Metrics() {
+        return new ScanMetricEngine(ProteomicsDDAMs1QC.createAccumulators()).process(ddaFile);
+    }
+
+    @Benchmark
+    public SimpleEntry<InputFile, List<QualityMetric>> srmMetrics() {
+        return JmzqcLipidomicsSrm.computeMetrics(srmFile);
+    }
+}
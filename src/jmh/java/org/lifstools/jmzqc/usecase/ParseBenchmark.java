@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import io.github.msdk.MSDKException;
+import io.github.msdk.io.mzml.MzMLFileImportMethod;
+import io.github.msdk.io.mzml.data.MzMLRawDataFile;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures reading a synthetic DDA mzML file, with the streaming header reader,
+ * with the streaming reader decoding intensities, and with a full msdk import.
+ *
+ * @author Nils Hoffmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ParseBenchmark {
+
+    @Param({"2000", "20000"})
+    int spectra;
+
+    @Param({"200"})
+    int peaksPerSpectrum;
+
+    @Param({"0", "9"})
+    int ms2PerMs1;
+
+    @Param({"false", "true"})
+    boolean zlib;
+
+    private Path mzML;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        mzML = Files.createTempFile("jmzqc-benchmark", ".mzML");
+        new SyntheticMzMLGenerator(SyntheticMzMLGenerator.Config.dda(spectra, peaksPerSpectrum, ms2PerMs1).withZlib(zlib)).write(mzML);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Files.deleteIfExists(mzML);
+    }
+
+    @Benchmark
+    public MzMLHeaderReader.Summary streamingHeaders(Blackhole blackhole) throws IOException {
+        return new MzMLHeaderReader().read(mzML, header -> blackhole.consume(header.getTIC()));
+    }
+
+    @Benchmark
+    public MzMLHeaderReader.Summary streamingPeaks(Blackhole blackhole) throws IOException {
+        return new MzMLHeaderReader(true).read(mzML, header -> blackhole.consume(header.getIntensityArray().values()));
+    }
+
+    @Benchmark
+    public int msdkImport() throws MSDKException {
+        MzMLRawDataFile mzMLFile = new MzMLFileImportMethod(mzML).execute();
+        try {
+            return mzMLFile.getScans().size();
+        } finally {
+            mzMLFile.dispose();
+        }
+    }
+}
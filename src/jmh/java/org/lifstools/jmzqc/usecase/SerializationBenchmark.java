@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.networknt.schema.ValidationMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.lifstools.jmzqc.Converter;
+import org.lifstools.jmzqc.Coordinate;
+import org.lifstools.jmzqc.MzQC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures validation, serialization and reading of an mzQC document computed
+ * from a synthetic run. The output is discarded and documents are read from
+ * memory, so disk speed does not matter.
+ *
+ * @author Nils Hoffmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SerializationBenchmark {
+
+    @Param({"20000"})
+    int spectra;
+
+    private MzQC mzQC;
+    private byte[] encoded;
+    private final MzQCMetricReader metricReader = new MzQCMetricReader(List.of("MS:4000069"));
+
+    @Setup(Level.Trial)
+    public void compute() throws IOException, URISyntaxException {
+        Path mzML = Files.createTempFile("jmzqc-benchmark", ".mzML");
+        try {
+            new SyntheticMzMLGenerator(SyntheticMzMLGenerator.Config.dda(spectra, 10, 0)).write(mzML);
+            mzQC = new ProteomicsDDAMs1QC(mzML.toFile(), new ProteomicsDDAMs1QC.Options(true, false, false)).process().orElseThrow();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MzQCCodec.getInstance().write(out, mzQC, true);
+            encoded = out.toByteArray();
+        } finally {
+            Files.deleteIfExists(mzML);
+        }
+    }
+
+    @Benchmark
+    public Set<ValidationMessage> validate() {
+        return Converter.validate(mzQC);
+    }
+
+    @Benchmark
+    public void serialize() throws IOException {
+        MzQCCodec.getInstance().write(OutputStream.nullOutputStream(), mzQC, true);
+    }
+
+    @Benchmark
+    public void serializeCompact() throws IOException {
+        MzQCCodec.getInstance().write(OutputStream.nullOutputStream(), mzQC, false);
+    }
+
+    @Benchmark
+    public void serializeWithPreparedWriter() throws IOException {
+        CmdLineParser.prepareJsonWriter().writeValue(OutputStream.nullOutputStream(), new Coordinate(mzQC));
+    }
+
+    @Benchmark
+    public MzQC readFull() throws IOException {
+        return MzQCCodec.getInstance().read(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public void readSelected(Blackhole blackhole) throws IOException {
+        metricReader.read(new ByteArrayInputStream(encoded), blackhole::consume);
+    }
+}
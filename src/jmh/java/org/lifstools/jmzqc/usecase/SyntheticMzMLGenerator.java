@@ -0,0 +1,428 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.zip.Deflater;
+
+/**
+ * Writes deterministic, synthetic indexedmzML files for benchmarks. DDA files
+ * contain MS1 spectra, each followed by a configurable number of MS2 spectra,
+ * and a TIC chromatogram. SRM files contain one selected reaction monitoring
+ * chromatogram with a Gaussian peak per transition. The same configuration
+ * always produces the same file.
+ *
+ * @author Nils Hoffmann
+ */
+public class SyntheticMzMLGenerator {
+
+    /**
+     * @param spectra the total number of spectra.
+     * @param peaksPerSpectrum the number of peaks per spectrum.
+     * @param ms2PerMs1 the number of MS2 spectra following each MS1 spectrum,
+     * 0 for MS1 only.
+     * @param srmTransitions the number of SRM chromatograms.
+     * @param pointsPerChromatogram the number of points per SRM chromatogram.
+     * @param zlib whether binary arrays are zlib compressed.
+     * @param seed the seed of the random number generator.
+     */
+    public static record Config(int spectra, int peaksPerSpectrum, int ms2PerMs1, int srmTransitions, int pointsPerChromatogram, boolean zlib, long seed) {
+
+        public static Config dda(int spectra, int peaksPerSpectrum, int ms2PerMs1) {
+            return new Config(spectra, peaksPerSpectrum, ms2PerMs1, 0, 0, false, 42L);
+        }
+
+        public static Config srm(int srmTransitions, int pointsPerChromatogram) {
+            return new Config(0, 0, 0, srmTransitions, pointsPerChromatogram, false, 42L);
+        }
+
+        public Config withZlib(boolean zlib) {
+            return new Config(spectra, peaksPerSpectrum, ms2PerMs1, srmTransitions, pointsPerChromatogram, zlib, seed);
+        }
+    }
+
+    private static final double SCAN_WINDOW_LOWER = 350.0;
+    private static final double SCAN_WINDOW_UPPER = 1800.0;
+    private static final double SECONDS_PER_SPECTRUM = 0.25;
+
+    private final Config config;
+
+    public SyntheticMzMLGenerator(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Writes the file.
+     *
+     * @param mzML the output file.
+     * @throws IOException if the file can not be written.
+     */
+    public void write(Path mzML) throws IOException {
+        SplittableRandom random = new SplittableRandom(config.seed());
+        try ( IndexingWriter out = new IndexingWriter(Files.newOutputStream(mzML))) {
+            writeHeader(out);
+            List<Long> spectrumOffsets = new ArrayList<>();
+            List<String> spectrumIds = new ArrayList<>();
+            List<Long> chromatogramOffsets = new ArrayList<>();
+            List<String> chromatogramIds = new ArrayList<>();
+            float[] ticTimes = new float[config.spectra()];
+            float[] ticValues = new float[config.spectra()];
+            if (config.spectra() > 0) {
+                out.write("      <spectrumList count=\"" + config.spectra() + "\" defaultDataProcessingRef=\"DP1\">\n");
+                String lastMs1Id = null;
+                for (int i = 0; i < config.spectra(); i++) {
+                    int msLevel = config.ms2PerMs1() == 0 || i % (config.ms2PerMs1() + 1) == 0 ? 1 : 2;
+                    String id = "controllerType=0 controllerNumber=1 scan=" + (i + 1);
+                    if (msLevel == 1) {
+                        lastMs1Id = id;
+                    }
+                    spectrumIds.add(id);
+                    // index offsets point to the '<' of the element
+                    out.write("        ");
+                    spectrumOffsets.add(out.position());
+                    ticTimes[i] = (float) (i * SECONDS_PER_SPECTRUM);
+                    ticValues[i] = writeSpectrum(out, random, i, id, msLevel, lastMs1Id);
+                }
+                out.write("      </spectrumList>\n");
+            }
+            int chromatograms = (config.spectra() > 0 ? 1 : 0) + config.srmTransitions();
+            if (chromatograms > 0) {
+                out.write("      <chromatogramList count=\"" + chromatograms + "\" defaultDataProcessingRef=\"DP1\">\n");
+                int index = 0;
+                if (config.spectra() > 0) {
+                    chromatogramIds.add("TIC");
+                    out.write("        ");
+                    chromatogramOffsets.add(out.position());
+                    writeTicChromatogram(out, index++, ticTimes, ticValues);
+                }
+                for (int t = 0; t < config.srmTransitions(); t++) {
+                    double q1 = 400.0 + random.nextDouble() * 600.0;
+                    double q3 = 150.0 + random.nextDouble() * (q1 - 200.0);
+                    String id = String.format(Locale.ROOT, "SRM SIC Q1=%.4f Q3=%.4f", q1, q3);
+                    chromatogramIds.add(id);
+                    out.write("        ");
+                    chromatogramOffsets.add(out.position());
+                    writeSrmChromatogram(out, random, index++, id, q1, q3);
+                }
+                out.write("      </chromatogramList>\n");
+            }
+            out.write("    </run>\n");
+            out.write("  </mzML>\n");
+            out.write("  ");
+            long indexListOffset = out.position();
+            out.write("<indexList count=\"2\">\n");
+            writeIndex(out, "spectrum", spectrumIds, spectrumOffsets);
+            writeIndex(out, "chromatogram", chromatogramIds, chromatogramOffsets);
+            out.write("  </indexList>\n");
+            out.write("  <indexListOffset>" + indexListOffset + "</indexListOffset>\n");
+            out.write("  <fileChecksum>");
+            out.write(out.checksum());
+            out.write("</fileChecksum>\n");
+            out.write("</indexedmzML>\n");
+        }
+    }
+
+    private void writeHeader(IndexingWriter out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<indexedmzML xmlns=\"http://psi.hupo.org/ms/mzml\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"http://psi.hupo.org/ms/mzml http://psidev.info/files/ms/mzML/xsd/mzML1.1.2_idx.xsd\">\n"
+                + "  <mzML xmlns=\"http://psi.hupo.org/ms/mzml\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"http://psi.hupo.org/ms/mzml http://psidev.info/files/ms/mzML/xsd/mzML1.1.0.xsd\" id=\"synthetic\" version=\"1.1.0\">\n"
+                + "    <cvList count=\"2\">\n"
+                + "      <cv id=\"MS\" fullName=\"Proteomics Standards Initiative Mass Spectrometry Ontology\" version=\"4.1.103\" URI=\"https://raw.githubusercontent.com/HUPO-PSI/psi-ms-CV/master/psi-ms.obo\"/>\n"
+                + "      <cv id=\"UO\" fullName=\"Unit Ontology\" URI=\"https://raw.githubusercontent.com/bio-ontology-research-group/unit-ontology/master/unit.obo\"/>\n"
+                + "    </cvList>\n"
+                + "    <fileDescription>\n"
+                + "      <fileContent>\n"
+                + (config.spectra() > 0
+                        ? "        <cvParam cvRef=\"MS\" accession=\"MS:1000579\" name=\"MS1 spectrum\" value=\"\"/>\n"
+                        : "")
+                + (config.srmTransitions() > 0
+                        ? "        <cvParam cvRef=\"MS\" accession=\"MS:1001473\" name=\"selected reaction monitoring chromatogram\" value=\"\"/>\n"
+                        : "")
+                + "      </fileContent>\n"
+                + "    </fileDescription>\n"
+                + "    <softwareList count=\"1\">\n"
+                + "      <software id=\"jmzqc-usecase\" version=\"1.0.0\">\n"
+                + "        <cvParam cvRef=\"MS\" accession=\"MS:1000799\" name=\"custom unreleased software tool\" value=\"synthetic mzML generator\"/>\n"
+                + "      </software>\n"
+                + "    </softwareList>\n"
+                + "    <instrumentConfigurationList count=\"1\">\n"
+                + "      <instrumentConfiguration id=\"IC1\">\n"
+                + "        <cvParam cvRef=\"MS\" accession=\"MS:1000031\" name=\"instrument model\" value=\"\"/>\n"
+                + "        <componentList count=\"3\">\n"
+                + "          <source order=\"1\">\n"
+                + "            <cvParam cvRef=\"MS\" accession=\"MS:1000073\" name=\"electrospray ionization\" value=\"\"/>\n"
+                + "          </source>\n"
+                + "          <analyzer order=\"2\">\n"
+                + "            <cvParam cvRef=\"MS\" accession=\"MS:1000081\" name=\"quadrupole\" value=\"\"/>\n"
+                + "          </analyzer>\n"
+                + "          <detector order=\"3\">\n"
+                + "            <cvParam cvRef=\"MS\" accession=\"MS:1000253\" name=\"electron multiplier\" value=\"\"/>\n"
+                + "          </detector>\n"
+                + "        </componentList>\n"
+                + "      </instrumentConfiguration>\n"
+                + "    </instrumentConfigurationList>\n"
+                + "    <dataProcessingList count=\"1\">\n"
+                + "      <dataProcessing id=\"DP1\">\n"
+                + "        <processingMethod order=\"0\" softwareRef=\"jmzqc-usecase\">\n"
+                + "          <cvParam cvRef=\"MS\" accession=\"MS:1000544\" name=\"Conversion to mzML\" value=\"\"/>\n"
+                + "        </processingMethod>\n"
+                + "      </dataProcessing>\n"
+                + "    </dataProcessingList>\n"
+                + "    <run id=\"synthetic\" defaultInstrumentConfigurationRef=\"IC1\" startTimeStamp=\"2023-01-01T00:00:00Z\">\n");
+    }
+
+    /**
+     * @return the total ion current of the spectrum.
+     */
+    private float writeSpectrum(IndexingWriter out, SplittableRandom random, int index, String id, int msLevel, String precursorId) throws IOException {
+        int peaks = config.peaksPerSpectrum();
+        double[] mz = new double[peaks];
+        float[] intensity = new float[peaks];
+        double step = (SCAN_WINDOW_UPPER - SCAN_WINDOW_LOWER) / Math.max(1, peaks);
+        double tic = 0;
+        int basePeak = 0;
+        for (int p = 0; p < peaks; p++) {
+            mz[p] = SCAN_WINDOW_LOWER + p * step + random.nextDouble() * step;
+            // long tailed intensities, like real centroided spectra
+            intensity[p] = (float) (1000.0 * Math.exp(random.nextGaussian() * 1.5));
+            tic += intensity[p];
+            if (intensity[p] > intensity[basePeak]) {
+                basePeak = p;
+            }
+        }
+        out.write("<spectrum index=\"" + index + "\" id=\"" + id + "\" defaultArrayLength=\"" + peaks + "\">\n");
+        out.write(msLevel == 1
+                ? "          <cvParam cvRef=\"MS\" accession=\"MS:1000579\" name=\"MS1 spectrum\" value=\"\"/>\n"
+                : "          <cvParam cvRef=\"MS\" accession=\"MS:1000580\" name=\"MSn spectrum\" value=\"\"/>\n");
+        out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"" + msLevel + "\"/>\n");
+        out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1000130\" name=\"positive scan\" value=\"\"/>\n");
+        out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1000127\" name=\"centroid spectrum\" value=\"\"/>\n");
+        if (peaks > 0) {
+            out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1000504\" name=\"base peak m/z\" value=\"" + mz[basePeak] + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+            out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1000505\" name=\"base peak intensity\" value=\"" + intensity[basePeak] + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000131\" unitName=\"number of detector counts\"/>\n");
+            out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1000528\" name=\"lowest observed m/z\" value=\"" + mz[0] + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+            out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1000527\" name=\"highest observed m/z\" value=\"" + mz[peaks - 1] + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+        }
+        out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1000285\" name=\"total ion current\" value=\"" + (float) tic + "\"/>\n");
+        out.write("          <scanList count=\"1\">\n");
+        out.write("            <cvParam cvRef=\"MS\" accession=\"MS:1000795\" name=\"no combination\" value=\"\"/>\n");
+        out.write("            <scan>\n");
+        out.write("              <cvParam cvRef=\"MS\" accession=\"MS:1000016\" name=\"scan start time\" value=\"" + (float) (index * SECONDS_PER_SPECTRUM) + "\" unitCvRef=\"UO\" unitAccession=\"UO:0000010\" unitName=\"second\"/>\n");
+        out.write("              <scanWindowList count=\"1\">\n");
+        out.write("                <scanWindow>\n");
+        out.write("                  <cvParam cvRef=\"MS\" accession=\"MS:1000501\" name=\"scan window lower limit\" value=\"" + SCAN_WINDOW_LOWER + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+        out.write("                  <cvParam cvRef=\"MS\" accession=\"MS:1000500\" name=\"scan window upper limit\" value=\"" + SCAN_WINDOW_UPPER + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+        out.write("                </scanWindow>\n");
+        out.write("              </scanWindowList>\n");
+        out.write("            </scan>\n");
+        out.write("          </scanList>\n");
+        if (msLevel > 1) {
+            double precursorMz = SCAN_WINDOW_LOWER + random.nextDouble() * (SCAN_WINDOW_UPPER - SCAN_WINDOW_LOWER) / 2;
+            int charge = 2 + random.nextInt(3);
+            out.write("          <precursorList count=\"1\">\n");
+            out.write("            <precursor spectrumRef=\"" + precursorId + "\">\n");
+            out.write("              <isolationWindow>\n");
+            out.write("                <cvParam cvRef=\"MS\" accession=\"MS:1000827\" name=\"isolation window target m/z\" value=\"" + precursorMz + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+            out.write("                <cvParam cvRef=\"MS\" accession=\"MS:1000828\" name=\"isolation window lower offset\" value=\"0.7\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+            out.write("                <cvParam cvRef=\"MS\" accession=\"MS:1000829\" name=\"isolation window upper offset\" value=\"0.7\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+            out.write("              </isolationWindow>\n");
+            out.write("              <selectedIonList count=\"1\">\n");
+            out.write("                <selectedIon>\n");
+            out.write("                  <cvParam cvRef=\"MS\" accession=\"MS:1000744\" name=\"selected ion m/z\" value=\"" + precursorMz + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+            out.write("                  <cvParam cvRef=\"MS\" accession=\"MS:1000041\" name=\"charge state\" value=\"" + charge + "\"/>\n");
+            out.write("                </selectedIon>\n");
+            out.write("              </selectedIonList>\n");
+            out.write("              <activation>\n");
+            out.write("                <cvParam cvRef=\"MS\" accession=\"MS:1000133\" name=\"collision-induced dissociation\" value=\"\"/>\n");
+            out.write("                <cvParam cvRef=\"MS\" accession=\"MS:1000045\" name=\"collision energy\" value=\"30.0\" unitCvRef=\"UO\" unitAccession=\"UO:0000266\" unitName=\"electronvolt\"/>\n");
+            out.write("              </activation>\n");
+            out.write("            </precursor>\n");
+            out.write("          </precursorList>\n");
+        }
+        out.write("          <binaryDataArrayList count=\"2\">\n");
+        writeBinaryDataArray(out, encode(mz), true,
+                "<cvParam cvRef=\"MS\" accession=\"MS:1000514\" name=\"m/z array\" value=\"\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>");
+        writeBinaryDataArray(out, encode(intensity), false,
+                "<cvParam cvRef=\"MS\" accession=\"MS:1000515\" name=\"intensity array\" value=\"\" unitCvRef=\"MS\" unitAccession=\"MS:1000131\" unitName=\"number of detector counts\"/>");
+        out.write("          </binaryDataArrayList>\n");
+        out.write("        </spectrum>\n");
+        return (float) tic;
+    }
+
+    private void writeTicChromatogram(IndexingWriter out, int index, float[] times, float[] values) throws IOException {
+        out.write("<chromatogram index=\"" + index + "\" id=\"TIC\" defaultArrayLength=\"" + times.length + "\">\n");
+        out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1000235\" name=\"total ion current chromatogram\" value=\"\"/>\n");
+        writeChromatogramArrays(out, times, values);
+        out.write("        </chromatogram>\n");
+    }
+
+    private void writeSrmChromatogram(IndexingWriter out, SplittableRandom random, int index, String id, double q1, double q3) throws IOException {
+        int points = config.pointsPerChromatogram();
+        float[] times = new float[points];
+        float[] values = new float[points];
+        double apex = points * (0.2 + random.nextDouble() * 0.6);
+        double sigma = Math.max(1.0, points * (0.01 + random.nextDouble() * 0.03));
+        double height = 1e4 * Math.exp(random.nextGaussian());
+        double baseline = 50.0 + random.nextDouble() * 100.0;
+        for (int p = 0; p < points; p++) {
+            times[p] = (float) (p * 0.5);
+            double z = (p - apex) / sigma;
+            values[p] = (float) (baseline + height * Math.exp(-0.5 * z * z) + random.nextDouble() * baseline * 0.2);
+        }
+        out.write("<chromatogram index=\"" + index + "\" id=\"" + id + "\" defaultArrayLength=\"" + points + "\">\n");
+        out.write("          <cvParam cvRef=\"MS\" accession=\"MS:1001473\" name=\"selected reaction monitoring chromatogram\" value=\"\"/>\n");
+        out.write("          <precursor>\n");
+        out.write("            <isolationWindow>\n");
+        out.write("              <cvParam cvRef=\"MS\" accession=\"MS:1000827\" name=\"isolation window target m/z\" value=\"" + q1 + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+        out.write("            </isolationWindow>\n");
+        out.write("            <selectedIonList count=\"1\">\n");
+        out.write("              <selectedIon>\n");
+        out.write("                <cvParam cvRef=\"MS\" accession=\"MS:1000744\" name=\"selected ion m/z\" value=\"" + q1 + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+        out.write("                <cvParam cvRef=\"MS\" accession=\"MS:1000041\" name=\"charge state\" value=\"1\"/>\n");
+        out.write("              </selectedIon>\n");
+        out.write("            </selectedIonList>\n");
+        out.write("            <activation>\n");
+        out.write("              <cvParam cvRef=\"MS\" accession=\"MS:1000133\" name=\"collision-induced dissociation\" value=\"\"/>\n");
+        out.write("            </activation>\n");
+        out.write("          </precursor>\n");
+        out.write("          <product>\n");
+        out.write("            <isolationWindow>\n");
+        out.write("              <cvParam cvRef=\"MS\" accession=\"MS:1000827\" name=\"isolation window target m/z\" value=\"" + q3 + "\" unitCvRef=\"MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>\n");
+        out.write("            </isolationWindow>\n");
+        out.write("          </product>\n");
+        writeChromatogramArrays(out, times, values);
+        out.write("        </chromatogram>\n");
+    }
+
+    private void writeChromatogramArrays(IndexingWriter out, float[] times, float[] values) throws IOException {
+        out.write("          <binaryDataArrayList count=\"2\">\n");
+        writeBinaryDataArray(out, encode(times), false,
+                "<cvParam cvRef=\"MS\" accession=\"MS:1000595\" name=\"time array\" value=\"\" unitCvRef=\"UO\" unitAccession=\"UO:0000010\" unitName=\"second\"/>");
+        writeBinaryDataArray(out, encode(values), false,
+                "<cvParam cvRef=\"MS\" accession=\"MS:1000515\" name=\"intensity array\" value=\"\" unitCvRef=\"MS\" unitAccession=\"MS:1000131\" unitName=\"number of detector counts\"/>");
+        out.write("          </binaryDataArrayList>\n");
+    }
+
+    private void writeBinaryDataArray(IndexingWriter out, byte[] data, boolean doublePrecision, String arrayTypeParam) throws IOException {
+        byte[] payload = config.zlib() ? deflate(data) : data;
+        String base64 = Base64.getEncoder().encodeToString(payload);
+        out.write("            <binaryDataArray encodedLength=\"" + base64.length() + "\">\n");
+        out.write(doublePrecision
+                ? "              <cvParam cvRef=\"MS\" accession=\"MS:1000523\" name=\"64-bit float\" value=\"\"/>\n"
+                : "              <cvParam cvRef=\"MS\" accession=\"MS:1000521\" name=\"32-bit float\" value=\"\"/>\n");
+        out.write(config.zlib()
+                ? "              <cvParam cvRef=\"MS\" accession=\"MS:1000574\" name=\"zlib compression\" value=\"\"/>\n"
+                : "              <cvParam cvRef=\"MS\" accession=\"MS:1000576\" name=\"no compression\" value=\"\"/>\n");
+        out.write("              " + arrayTypeParam + "\n");
+        out.write("              <binary>");
+        out.write(base64);
+        out.write("</binary>\n");
+        out.write("            </binaryDataArray>\n");
+    }
+
+    private void writeIndex(IndexingWriter out, String name, List<String> ids, List<Long> offsets) throws IOException {
+        out.write("    <index name=\"" + name + "\">\n");
+        for (int i = 0; i < ids.size(); i++) {
+            out.write("      <offset idRef=\"" + ids.get(i) + "\">" + offsets.get(i) + "</offset>\n");
+        }
+        out.write("    </index>\n");
+    }
+
+    private static byte[] encode(double[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asDoubleBuffer().put(values);
+        return buffer.array();
+    }
+
+    private static byte[] encode(float[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(values);
+        return buffer.array();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Writes ASCII text, keeps track of the byte offset for the index and
+     * computes the SHA-1 checksum over everything written before the checksum
+     * itself.
+     */
+    private static final class IndexingWriter implements AutoCloseable {
+
+        private final OutputStream out;
+        private final MessageDigest sha1;
+        private long position;
+
+        IndexingWriter(OutputStream out) {
+            this.out = new BufferedOutputStream(out, 1 << 16);
+            try {
+                this.sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        void write(String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes);
+            sha1.update(bytes);
+            position += bytes.length;
+        }
+
+        long position() {
+            return position;
+        }
+
+        String checksum() {
+            return HexFormat.of().formatHex(sha1.digest());
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.networknt.schema.ValidationMessage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.io.FilenameUtils;
+import org.lifstools.jmzqc.BaseQuality;
+import org.lifstools.jmzqc.MzQC;
+
+/**
+ * Processes many mzML files with {@link ProteomicsDDAMs1QC} in one JVM, on a
+ * bounded worker pool. Results are returned in input order, and a failing
+ * file does not abort the batch.
+ *
+ * @author Nils Hoffmann
+ */
+public class BatchProcessor {
+
+    /**
+     * Rough heap budget for one run that is loaded completely with msdk.
+     */
+    static final long HEAP_PER_LOADED_RUN = 1024L * 1024L * 1024L;
+
+    /**
+     * Result of one run. The run quality is only kept if the run was not
+     * already written to its own output file.
+     */
+    public static record RunResult(File inputFile, Optional<BaseQuality> runQuality, Optional<String> failure) {
+
+        public boolean isSuccess() {
+            return failure.isEmpty();
+        }
+    }
+
+    private final ProteomicsDDAMs1QC.Options options;
+    private final int threads;
+    private final Optional<ResultCache> cache;
+    private final Optional<MetricStore> store;
+    private final Optional<TicPlotter> plotter;
+
+    public BatchProcessor(ProteomicsDDAMs1QC.Options options) {
+        this(options, defaultThreads(options.streaming()));
+    }
+
+    /**
+     * @param options the reading mode and metrics of every run.
+     * @param threads the number of runs to process concurrently.
+     */
+    public BatchProcessor(ProteomicsDDAMs1QC.Options options, int threads) {
+        this(options, threads, Optional.empty());
+    }
+
+    /**
+     * @param options the reading mode and metrics of every run.
+     * @param threads the number of runs to process concurrently.
+     * @param cache if present, unchanged runs are served from this cache.
+     */
+    public BatchProcessor(ProteomicsDDAMs1QC.Options options, int threads, Optional<ResultCache> cache) {
+        this(options, threads, cache, Optional.empty());
+    }
+
+    /**
+     * @param options the reading mode and metrics of every run.
+     * @param threads the number of runs to process concurrently.
+     * @param cache if present, unchanged runs are served from this cache.
+     * @param store if present, the metrics of every processed run are appended
+     * to this store.
+     */
+    public BatchProcessor(ProteomicsDDAMs1QC.Options options, int threads, Optional<ResultCache> cache, Optional<MetricStore> store) {
+        this(options, threads, cache, store, Optional.empty());
+    }
+
+    /**
+     * @param options the reading mode and metrics of every run.
+     * @param threads the number of runs to process concurrently.
+     * @param cache if present, unchanged runs are served from this cache.
+     * @param store if present, the metrics of every processed run are appended
+     * to this store.
+     * @param plotter if present, the TIC of every processed run is plotted on
+     * the worker thread that processed it.
+     */
+    public BatchProcessor(ProteomicsDDAMs1QC.Options options, int threads, Optional<ResultCache> cache, Optional<MetricStore> store, Optional<TicPlotter> plotter) {
+        this.options = options;
+        this.threads = Math.max(1, threads);
+        this.cache = cache;
+        this.store = store;
+        this.plotter = plotter;
+    }
+
+    /**
+     * Streaming runs need little heap, so they are limited by the number of
+     * cores only. Runs loaded with msdk are also limited by the maximum heap.
+     *
+     * @param streaming whether runs are streamed.
+     * @return the default number of worker threads.
+     */
+    public static int defaultThreads(boolean streaming) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (streaming) {
+            return cores;
+        }
+        long heapBound = Runtime.getRuntime().maxMemory() / HEAP_PER_LOADED_RUN;
+        return (int) Math.max(1, Math.min(cores, heapBound));
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Processes all input files and keeps their run qualities, e.g. to combine
+     * them into one mzQC document.
+     *
+     * @param inputFiles the mzML files.
+     * @return one result per input file, in the order of the input files.
+     * @throws InterruptedException if interrupted while waiting for results.
+     */
+    public List<RunResult> process(List<File> inputFiles) throws InterruptedException {
+        return run(inputFiles, this::processRun);
+    }
+
+    /**
+     * Processes all input files and writes one validated mzQC file per run to
+     * the output directory, named after the input file. Validation and writing
+     * happen on the worker threads, from a single serialization per run, and
+     * run qualities are not retained.
+     *
+     * @param inputFiles the mzML files.
+     * @param outputDir the output directory.
+     * @param writeOptions the options for writing the mzQC files.
+     * @return one result per input file, in the order of the input files.
+     * @throws InterruptedException if interrupted while waiting for results.
+     */
+    public List<RunResult> processAndWrite(List<File> inputFiles, File outputDir, MzQCCodec.WriteOptions writeOptions) throws InterruptedException {
+        return processAndWrite(inputFiles, outputDir, writeOptions, Optional.empty());
+    }
+
+    /**
+     * Like {@link #processAndWrite(List, File, MzQCCodec.WriteOptions)}, and
+     * also adds every successfully written run to an aggregator. Each worker
+     * fills its own partial aggregator, the partials are merged into the given
+     * one after all runs are done.
+     *
+     * @param inputFiles the mzML files.
+     * @param outputDir the output directory.
+     * @param writeOptions the options for writing the mzQC files.
+     * @param aggregator if present, receives the metrics of all written runs.
+     * @return one result per input file, in the order of the input files.
+     * @throws InterruptedException if interrupted while waiting for results.
+     */
+    public List<RunResult> processAndWrite(List<File> inputFiles, File outputDir, MzQCCodec.WriteOptions writeOptions, Optional<CrossRunAggregator> aggregator) throws InterruptedException {
+        outputDir.mkdirs();
+        List<CrossRunAggregator> partials = Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<CrossRunAggregator> partial = ThreadLocal.withInitial(() -> {
+            CrossRunAggregator workerAggregator = new CrossRunAggregator();
+            partials.add(workerAggregator);
+            return workerAggregator;
+        });
+        List<RunResult> results = run(inputFiles, inputFile -> {
+            RunResult result = processRun(inputFile);
+            if (!result.isSuccess()) {
+                return result;
+            }
+            MzQC mzQC = ProteomicsDDAMs1QC.createMzQC(Arrays.asList(result.runQuality().get()));
+            File outputFile = new File(outputDir, FilenameUtils.getBaseName(inputFile.getName()) + writeOptions.fileExtension());
+            Set<ValidationMessage> messages = MzQCCodec.getInstance().validateAndWrite(outputFile.toPath(), mzQC, writeOptions);
+            if (!messages.isEmpty()) {
+                return failed(inputFile, "validation failed with " + messages.size() + " messages " + messages);
+            }
+            if (aggregator.isPresent()) {
+                partial.get().add(result.runQuality().get());
+            }
+            return new RunResult(inputFile, Optional.empty(), Optional.empty());
+        });
+        // all tasks are done, so the partials are no longer modified
+        aggregator.ifPresent(target -> partials.forEach(target::merge));
+        return results;
+    }
+
+    private RunResult processRun(File inputFile) throws URISyntaxException, IOException {
+        Optional<BaseQuality> runQuality = new ProteomicsDDAMs1QC(inputFile, options, cache).processRun();
+        if (runQuality.isEmpty()) {
+            return failed(inputFile, "MzQC creation failed.");
+        }
+        if (store.isPresent()) {
+            store.get().append(runQuality.get());
+        }
+        if (plotter.isPresent()) {
+            plotter.get().plot(runQuality.get());
+        }
+        return new RunResult(inputFile, runQuality, Optional.empty());
+    }
+
+    private List<RunResult> run(List<File> inputFiles, RunTask task) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<RunResult>> futures = new ArrayList<>(inputFiles.size());
+            for (File inputFile : inputFiles) {
+                futures.add(executor.submit(() -> task.run(inputFile)));
+            }
+            List<RunResult> results = new ArrayList<>(inputFiles.size());
+            for (int i = 0; i < inputFiles.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+                    results.add(failed(inputFiles.get(i), cause.toString()));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static RunResult failed(File inputFile, String reason) {
+        return new RunResult(inputFile, Optional.empty(), Optional.of(reason));
+    }
+
+    @FunctionalInterface
+    private interface RunTask {
+
+        RunResult run(File inputFile) throws Exception;
+    }
+
+    /**
+     * @param directory the directory to list.
+     * @return all mzML files directly within the directory, sorted by path.
+     * @throws IOException if the directory can not be listed.
+     */
+    public static List<File> listInputFiles(Path directory) throws IOException {
+        try ( Stream<Path> paths = Files.list(directory)) {
+            return sorted(paths.filter(Files::isRegularFile)
+                    .filter(path -> path.getFileName().toString().toLowerCase().endsWith(".mzml")));
+        }
+    }
+
+    /**
+     * Resolves a glob pattern like {@code runs/2023-11-*.mzML}. The walk
+     * starts at the longest leading part of the pattern without glob
+     * characters, and only descends as deep as the rest of the pattern has
+     * path segments, unless it contains {@code **}. Directories that can not
+     * be read are skipped.
+     *
+     * @param glob the glob pattern.
+     * @return all matching regular files, sorted by path.
+     * @throws IOException if a directory can not be walked.
+     */
+    public static List<File> globInputFiles(String glob) throws IOException {
+        int firstGlobChar = firstGlobCharIndex(glob);
+        int lastSeparator = glob.lastIndexOf('/', firstGlobChar);
+        boolean relative = lastSeparator < 0;
+        Path base = relative ? Paths.get("") : Paths.get(lastSeparator == 0 ? "/" : glob.substring(0, lastSeparator));
+        if (!Files.isDirectory(base)) {
+            return List.of();
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        int maxDepth = glob.contains("**") ? Integer.MAX_VALUE : glob.substring(lastSeparator + 1).split("/").length;
+        List<Path> matches = new ArrayList<>();
+        Files.walkFileTree(base, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                if (Files.isRegularFile(path) && matcher.matches(relative ? base.toAbsolutePath().relativize(path.toAbsolutePath()) : path)) {
+                    matches.add(path);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException ex) {
+                Logger.getLogger(BatchProcessor.class.getName()).log(Level.FINE, "Skipping unreadable path " + path, ex);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return sorted(matches.stream());
+    }
+
+    /**
+     * @param fileList a text file with one mzML path per line. Blank lines and
+     * lines starting with '#' are ignored.
+     * @return the listed files, in the order of the list.
+     * @throws IOException if the list can not be read.
+     */
+    public static List<File> readFileList(Path fileList) throws IOException {
+        try ( Stream<String> lines = Files.lines(fileList)) {
+            return lines.map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(File::new)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static List<File> sorted(Stream<Path> paths) {
+        return paths.sorted(Comparator.naturalOrder()).map(Path::toFile).collect(Collectors.toList());
+    }
+
+    private static int firstGlobCharIndex(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            switch (glob.charAt(i)) {
+                case '*', '?', '[', '{' -> {
+                    return i;
+                }
+                default -> {
+                }
+            }
+        }
+        return glob.length();
+    }
+}
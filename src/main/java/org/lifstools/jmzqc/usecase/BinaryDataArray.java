@@ -0,0 +1,273 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A binary data array of a spectrum that is decoded on first access. The
+ * base64 text of the array is kept as read, and only decoded when
+ * {@link #values()} or {@link #size()} are called. All buffers are reused
+ * for the next spectrum, so values must be copied if they are needed later.
+ *
+ * @author Nils Hoffmann
+ */
+public class BinaryDataArray {
+
+    enum DataType {
+        FLOAT32, FLOAT64, INT32, INT64
+    }
+
+    enum Numpress {
+        NONE, LINEAR, PIC, SLOF
+    }
+
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private byte[] base64 = new byte[1024];
+    private int base64Length;
+    private byte[] bytes = new byte[0];
+    private byte[] inflated = new byte[0];
+    private double[] values = new double[0];
+    private int size;
+    private boolean decoded;
+
+    DataType dataType;
+    boolean zlib;
+    Numpress numpress;
+
+    BinaryDataArray() {
+        reset();
+    }
+
+    final void reset() {
+        base64Length = 0;
+        size = 0;
+        decoded = true;
+        dataType = DataType.FLOAT64;
+        zlib = false;
+        numpress = Numpress.NONE;
+    }
+
+    /**
+     * Appends base64 text, as delivered by the XML parser. Whitespace is
+     * dropped.
+     */
+    void appendBase64(char[] text, int start, int length) {
+        if (base64Length + length > base64.length) {
+            base64 = Arrays.copyOf(base64, Math.max(base64Length + length, base64.length * 2));
+        }
+        for (int i = start; i < start + length; i++) {
+            char c = text[i];
+            if (c > ' ') {
+                base64[base64Length++] = (byte) c;
+            }
+        }
+        decoded = false;
+    }
+
+    /**
+     * Replaces the content with already decoded values.
+     */
+    void setDecoded(double[] decodedValues, int length) {
+        reset();
+        ensureValueCapacity(length);
+        System.arraycopy(decodedValues, 0, values, 0, length);
+        size = length;
+    }
+
+    /**
+     * Replaces the content with already decoded values.
+     */
+    void setDecoded(float[] decodedValues, int length) {
+        reset();
+        ensureValueCapacity(length);
+        for (int i = 0; i < length; i++) {
+            values[i] = decodedValues[i];
+        }
+        size = length;
+    }
+
+    /**
+     * @return the number of values.
+     * @throws IllegalStateException if the array can not be decoded.
+     */
+    public int size() {
+        decode();
+        return size;
+    }
+
+    /**
+     * @return the decoded values. The array is reused and may be longer than
+     * {@link #size()}.
+     * @throws IllegalStateException if the array can not be decoded.
+     */
+    public double[] values() {
+        decode();
+        return values;
+    }
+
+    private void decode() {
+        if (decoded) {
+            return;
+        }
+        decoded = true;
+        size = 0;
+        try {
+            if (bytes.length < base64Length) {
+                bytes = new byte[base64Length];
+            }
+            int length = decodeBase64();
+            if (length == 0) {
+                // an empty array, e.g. of an MS2 spectrum without peaks, has no zlib stream
+                return;
+            }
+            byte[] data = bytes;
+            if (zlib) {
+                length = inflate(length);
+                data = inflated;
+            }
+            if (numpress != Numpress.NONE) {
+                ensureValueCapacity(MsNumpress.maxDecodedLength(numpress, length));
+                size = switch (numpress) {
+                    case LINEAR ->
+                        MsNumpress.decodeLinear(data, length, values);
+                    case PIC ->
+                        MsNumpress.decodePic(data, length, values);
+                    case SLOF ->
+                        MsNumpress.decodeSlof(data, length, values);
+                    case NONE ->
+                        0;
+                };
+            } else {
+                readNumbers(data, length);
+            }
+        } catch (IllegalArgumentException | DataFormatException ex) {
+            throw new IllegalStateException("Failed to decode binary data array", ex);
+        }
+    }
+
+    /**
+     * Decodes the base64 text into {@code bytes} without intermediate copies.
+     */
+    private int decodeBase64() {
+        int length = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < base64Length; i++) {
+            byte c = base64[i];
+            if (c == '=') {
+                break;
+            }
+            int value = c < 0 ? -1 : BASE64_VALUES[c];
+            if (value < 0) {
+                throw new IllegalArgumentException("Illegal base64 character " + (char) (c & 0xff));
+            }
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                bytes[length++] = (byte) (bits >> 16);
+                bytes[length++] = (byte) (bits >> 8);
+                bytes[length++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 2) {
+            bytes[length++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            bytes[length++] = (byte) (bits >> 10);
+            bytes[length++] = (byte) (bits >> 2);
+        } else if (count == 1) {
+            throw new IllegalArgumentException("Truncated base64 data");
+        }
+        return length;
+    }
+
+    private int inflate(int length) throws DataFormatException {
+        // ended right away, so the native zlib memory does not wait for the cleaner
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, 0, length);
+            if (inflated.length < length * 4) {
+                inflated = new byte[length * 4];
+            }
+            int inflatedLength = 0;
+            while (!inflater.finished()) {
+                if (inflatedLength == inflated.length) {
+                    inflated = Arrays.copyOf(inflated, inflated.length * 2);
+                }
+                int n = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated zlib data");
+                }
+                inflatedLength += n;
+            }
+            return inflatedLength;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readNumbers(byte[] data, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        switch (dataType) {
+            case FLOAT32 -> {
+                size = length / Float.BYTES;
+                ensureValueCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    values[i] = buffer.getFloat(i * Float.BYTES);
+                }
+            }
+            case FLOAT64 -> {
+                size = length / Double.BYTES;
+                ensureValueCapacity(size);
+                buffer.asDoubleBuffer().get(values, 0, size);
+            }
+            case INT32 -> {
+                size = length / Integer.BYTES;
+                ensureValueCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    values[i] = buffer.getInt(i * Integer.BYTES);
+                }
+            }
+            case INT64 -> {
+                size = length / Long.BYTES;
+                ensureValueCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    values[i] = buffer.getLong(i * Long.BYTES);
+                }
+            }
+        }
+    }
+
+    private void ensureValueCapacity(int capacity) {
+        if (values.length < capacity) {
+            values = new double[Math.max(capacity, values.length * 2)];
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.lifstools.jmzqc.BaseQuality;
+import org.lifstools.jmzqc.MzQC;
+import org.lifstools.jmzqc.QualityMetric;
+
+/**
+ * Moves large numeric columns of quality metric values, like the
+ * {@code MS:4000104} TIC table or the {@code MS:1000505} base peak
+ * intensities, out of the JSON document into a binary sidecar file. Each array
+ * is stored as a block of little-endian values and replaced in the JSON by a
+ * reference object:
+ * <pre>
+ * {"mzQCBinarySidecar": "run.mzQC.bin", "dataType": "float32", "offset": 8, "length": 12000}
+ * </pre> The sidecar file starts with the 8 byte magic {@code MZQCBIN1}.
+ * Offsets are in bytes from the start of the file, lengths are in values.
+ * <p>
+ * When reading, a reference must be a relative path to a {@code .bin} file
+ * that stays within the sidecar root. The root is the directory of the mzQC
+ * file, unless the system property {@value #ROOT_PROPERTY} names another
+ * directory. Merged documents refer to the sidecars of their inputs with
+ * {@code ../} paths, so reading them needs a root that contains all input
+ * directories.
+ *
+ * @author Nils Hoffmann
+ */
+public final class BinarySidecar {
+
+    /**
+     * Arrays with fewer values stay inline in the JSON document.
+     */
+    public static final int MIN_LENGTH = 1024;
+
+    /**
+     * System property with the directory that sidecar references may point
+     * into, instead of the directory of the mzQC file.
+     */
+    public static final String ROOT_PROPERTY = "jmzqc.sidecar.root";
+
+    static final String REFERENCE_KEY = "mzQCBinarySidecar";
+    private static final byte[] MAGIC = "MZQCBIN1".getBytes(StandardCharsets.US_ASCII);
+
+    private BinarySidecar() {
+    }
+
+    @FunctionalInterface
+    private interface ValueMapper {
+
+        Object map(Object value) throws IOException;
+    }
+
+    /**
+     * @param mzQCFile the mzQC file, optionally ending in ".gz".
+     * @return the sidecar file that belongs to the mzQC file.
+     */
+    public static Path sidecarFor(Path mzQCFile) {
+        String name = mzQCFile.getFileName().toString();
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - 3);
+        }
+        return mzQCFile.resolveSibling(name + ".bin");
+    }
+
+    /**
+     * Writes all numeric arrays with at least {@link #MIN_LENGTH} values of the
+     * run and set quality metrics to the sidecar file.
+     *
+     * @param mzQC the mzQC document.
+     * @param sidecarFile the sidecar file, which is overwritten.
+     * @return a copy of the document with the arrays replaced by references.
+     * @throws IOException if the sidecar file can not be written.
+     */
+    public static MzQC extract(MzQC mzQC, Path sidecarFile) throws IOException {
+        String location = sidecarFile.getFileName().toString();
+        try ( FileChannel channel = FileChannel.open(sidecarFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.wrap(MAGIC));
+            return map(mzQC, value -> extract(value, channel, location));
+        }
+    }
+
+    /**
+     * @param baseDirectory the directory of the mzQC file.
+     * @return the directory given by {@value #ROOT_PROPERTY}, or the base
+     * directory if the property is not set.
+     */
+    public static Path rootFor(Path baseDirectory) {
+        String root = System.getProperty(ROOT_PROPERTY);
+        return root == null || root.isBlank() ? baseDirectory : Path.of(root);
+    }
+
+    /**
+     * Replaces all sidecar references in the document by the arrays they
+     * point to, allowing only sidecar files within {@link #rootFor(Path)}.
+     *
+     * @param mzQC the mzQC document, as read from JSON.
+     * @param baseDirectory the directory that contains the sidecar files.
+     * @return a copy of the document with all references resolved, or the
+     * document itself if it has no references.
+     * @throws IOException if a sidecar file can not be read or a reference
+     * points outside of the root.
+     */
+    public static MzQC resolve(MzQC mzQC, Path baseDirectory) throws IOException {
+        return resolve(mzQC, baseDirectory, rootFor(baseDirectory));
+    }
+
+    /**
+     * Like {@link #resolve(MzQC, Path)}, with an explicit sidecar root.
+     *
+     * @param mzQC the mzQC document, as read from JSON.
+     * @param baseDirectory the directory that contains the sidecar files.
+     * @param root the directory that all sidecar files must be within.
+     * @return a copy of the document with all references resolved, or the
+     * document itself if it has no references.
+     * @throws IOException if a sidecar file can not be read or a reference
+     * points outside of the root.
+     */
+    public static MzQC resolve(MzQC mzQC, Path baseDirectory, Path root) throws IOException {
+        if (!hasReferences(mzQC.runQualities()) && !hasReferences(mzQC.setQualities())) {
+            return mzQC;
+        }
+        Map<String, FileChannel> channels = new HashMap<>();
+        try {
+            return map(mzQC, value -> resolve(value, baseDirectory, root, channels));
+        } finally {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Replaces the sidecar references in the values of single metrics, e.g.
+     * those selected by {@link MzQCMetricReader}.
+     *
+     * @param metrics the metrics, as read from JSON.
+     * @param baseDirectory the directory that contains the sidecar files.
+     * @return the metrics with all references resolved.
+     * @throws IOException if a sidecar file can not be read or a reference
+     * points outside of {@link #rootFor(Path)}.
+     */
+    static List<QualityMetric> resolve(List<QualityMetric> metrics, Path baseDirectory) throws IOException {
+        Path root = rootFor(baseDirectory);
+        Map<String, FileChannel> channels = new HashMap<>();
+        try {
+            List<QualityMetric> resolved = new ArrayList<>(metrics.size());
+            for (QualityMetric metric : metrics) {
+                resolved.add(new QualityMetric(metric.accession(), metric.description(), metric.name(), resolve(metric.value(), baseDirectory, root, channels), metric.unit()));
+            }
+            return resolved;
+        } finally {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+        }
+    }
+
+    private static Object extract(Object value, FileChannel channel, String location) throws IOException {
+        if (value instanceof Map<?, ?> map) {
+            Map<Object, Object> mapped = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                mapped.put(entry.getKey(), extract(entry.getValue(), channel, location));
+            }
+            return mapped;
+        }
+        ByteBuffer buffer;
+        String dataType;
+        int length;
+        if (value instanceof float[] floats && floats.length >= MIN_LENGTH) {
+            buffer = allocate(floats.length * Float.BYTES);
+            buffer.asFloatBuffer().put(floats);
+            dataType = "float32";
+            length = floats.length;
+        } else if (value instanceof double[] doubles && doubles.length >= MIN_LENGTH) {
+            buffer = allocate(doubles.length * Double.BYTES);
+            buffer.asDoubleBuffer().put(doubles);
+            dataType = "float64";
+            length = doubles.length;
+        } else if (value instanceof int[] ints && ints.length >= MIN_LENGTH) {
+            buffer = allocate(ints.length * Integer.BYTES);
+            buffer.asIntBuffer().put(ints);
+            dataType = "int32";
+            length = ints.length;
+        } else if (value instanceof long[] longs && longs.length >= MIN_LENGTH) {
+            buffer = allocate(longs.length * Long.BYTES);
+            buffer.asLongBuffer().put(longs);
+            dataType = "int64";
+            length = longs.length;
+        } else {
+            return value;
+        }
+        long offset = channel.position();
+        writeFully(channel, buffer);
+        Map<String, Object> reference = new LinkedHashMap<>();
+        reference.put(REFERENCE_KEY, location);
+        reference.put("dataType", dataType);
+        reference.put("offset", offset);
+        reference.put("length", length);
+        return reference;
+    }
+
+    private static boolean hasReferences(List<BaseQuality> qualities) {
+        if (qualities != null) {
+            for (BaseQuality quality : qualities) {
+                for (QualityMetric metric : quality.qualityMetrics()) {
+                    if (hasReference(metric.value())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasReference(Object value) {
+        if (value instanceof Map<?, ?> map) {
+            if (map.containsKey(REFERENCE_KEY)) {
+                return true;
+            }
+            for (Object entry : map.values()) {
+                if (hasReference(entry)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Object resolve(Object value, Path baseDirectory, Path root, Map<String, FileChannel> channels) throws IOException {
+        if (!(value instanceof Map<?, ?> map)) {
+            return value;
+        }
+        if (!map.containsKey(REFERENCE_KEY)) {
+            Map<Object, Object> mapped = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                mapped.put(entry.getKey(), resolve(entry.getValue(), baseDirectory, root, channels));
+            }
+            return mapped;
+        }
+        String location = String.valueOf(map.get(REFERENCE_KEY));
+        String dataType = String.valueOf(map.get("dataType"));
+        long offset = ((Number) map.get("offset")).longValue();
+        int length = ((Number) map.get("length")).intValue();
+        FileChannel channel = channels.get(location);
+        if (channel == null) {
+            channel = FileChannel.open(locate(location, baseDirectory, root), StandardOpenOption.READ);
+            channels.put(location, channel);
+        }
+        return switch (dataType) {
+            case "float32" -> {
+                float[] values = new float[length];
+                read(channel, offset, length * Float.BYTES).asFloatBuffer().get(values);
+                yield values;
+            }
+            case "float64" -> {
+                double[] values = new double[length];
+                read(channel, offset, length * Double.BYTES).asDoubleBuffer().get(values);
+                yield values;
+            }
+            case "int32" -> {
+                int[] values = new int[length];
+                read(channel, offset, length * Integer.BYTES).asIntBuffer().get(values);
+                yield values;
+            }
+            case "int64" -> {
+                long[] values = new long[length];
+                read(channel, offset, length * Long.BYTES).asLongBuffer().get(values);
+                yield values;
+            }
+            default ->
+                throw new IOException("Unsupported sidecar data type '" + dataType + "' in " + location);
+        };
+    }
+
+    /**
+     * Resolves a sidecar location from the JSON document, which must be a
+     * relative path to a {@code .bin} file that stays within the root.
+     */
+    static Path locate(String location, Path baseDirectory, Path root) throws IOException {
+        Path relative;
+        try {
+            relative = baseDirectory.getFileSystem().getPath(location);
+        } catch (InvalidPathException ex) {
+            throw new IOException("Invalid sidecar location '" + location + "'", ex);
+        }
+        if (relative.isAbsolute() || relative.getRoot() != null) {
+            throw new IOException("Sidecar location '" + location + "' must be relative");
+        }
+        Path file = baseDirectory.toAbsolutePath().resolve(relative).normalize();
+        if (!file.startsWith(root.toAbsolutePath().normalize())) {
+            throw new IOException("Sidecar location '" + location + "' is outside of " + root + ", set -D" + ROOT_PROPERTY + " to read sidecars from other directories");
+        }
+        if (file.getFileName() == null || !file.getFileName().toString().endsWith(".bin")) {
+            throw new IOException("Sidecar location '" + location + "' is not a .bin file");
+        }
+        return file;
+    }
+
+    private static MzQC map(MzQC mzQC, ValueMapper mapper) throws IOException {
+        return new MzQC(
+                mzQC.contactAddress(),
+                mzQC.contactName(),
+                mzQC.controlledVocabularies(),
+                mzQC.creationDate(),
+                mzQC.description(),
+                map(mzQC.runQualities(), mapper),
+                map(mzQC.setQualities(), mapper),
+                mzQC.version());
+    }
+
+    private static List<BaseQuality> map(List<BaseQuality> qualities, ValueMapper mapper) throws IOException {
+        if (qualities == null) {
+            return null;
+        }
+        List<BaseQuality> mapped = new ArrayList<>(qualities.size());
+        for (BaseQuality quality : qualities) {
+            List<QualityMetric> metrics = new ArrayList<>(quality.qualityMetrics().size());
+            for (QualityMetric metric : quality.qualityMetrics()) {
+                metrics.add(new QualityMetric(metric.accession(), metric.description(), metric.name(), mapper.map(metric.value()), metric.unit()));
+            }
+            mapped.add(new BaseQuality(quality.metadata(), metrics));
+        }
+        return mapped;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long offset, int bytes) throws IOException {
+        ByteBuffer buffer = allocate(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of sidecar file at offset " + (offset + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
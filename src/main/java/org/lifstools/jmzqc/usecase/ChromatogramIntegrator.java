@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import io.github.msdk.datamodel.Chromatogram;
+
+/**
+ * Integrates chromatographic peaks with plain primitive loops. One instance
+ * is meant to be reused for all chromatograms of a file: the retention time
+ * and intensity buffers grow as needed and the results of the last call are
+ * kept in fields, so integrating thousands of transitions allocates nothing
+ * per chromatogram. Instances are not thread safe.
+ *
+ * @author Nils Hoffmann
+ */
+public class ChromatogramIntegrator {
+
+    private float[] retentionTimes = new float[0];
+    private float[] intensities = new float[0];
+
+    private double area;
+    private double baselineArea;
+    private float apexRetentionTime;
+    private float apexIntensity;
+    private float fwhm;
+
+    /**
+     * Integrates an msdk chromatogram, reading its values into the reused
+     * buffers of this integrator.
+     *
+     * @param chromatogram the chromatogram.
+     * @return this integrator, for reading the results.
+     */
+    public ChromatogramIntegrator integrate(Chromatogram chromatogram) {
+        int length = chromatogram.getNumberOfDataPoints() == null ? 0 : chromatogram.getNumberOfDataPoints();
+        retentionTimes = chromatogram.getRetentionTimes(retentionTimes);
+        intensities = chromatogram.getIntensityValues(intensities);
+        return integrate(retentionTimes, intensities, length);
+    }
+
+    /**
+     * Integrates the first {@code length} points of a chromatogram.
+     *
+     * @param rt the retention times, in ascending order.
+     * @param intensity the intensities.
+     * @param length the number of points.
+     * @return this integrator, for reading the results.
+     */
+    public ChromatogramIntegrator integrate(float[] rt, float[] intensity, int length) {
+        area = 0;
+        baselineArea = 0;
+        apexRetentionTime = Float.NaN;
+        apexIntensity = Float.NaN;
+        fwhm = Float.NaN;
+        if (length == 0) {
+            return this;
+        }
+        int apex = 0;
+        double sum = 0;
+        for (int i = 1; i < length; i++) {
+            sum += (double) (rt[i] - rt[i - 1]) * (intensity[i] + intensity[i - 1]);
+            if (intensity[i] > intensity[apex]) {
+                apex = i;
+            }
+        }
+        area = sum * 0.5;
+        apexRetentionTime = rt[apex];
+        apexIntensity = intensity[apex];
+        // linear baseline between the first and the last point
+        baselineArea = 0.5 * (rt[length - 1] - rt[0]) * (intensity[0] + intensity[length - 1]);
+        fwhm = fullWidthAtHalfMaximum(rt, intensity, length, apex);
+        return this;
+    }
+
+    /**
+     * @return the trapezoidal area of the last chromatogram.
+     */
+    public double getArea() {
+        return area;
+    }
+
+    /**
+     * @return the trapezoidal area above a straight baseline from the first to
+     * the last point of the last chromatogram.
+     */
+    public double getBaselineSubtractedArea() {
+        return area - baselineArea;
+    }
+
+    /**
+     * @return the retention time of the most intense point, or NaN if the last
+     * chromatogram was empty.
+     */
+    public float getApexRetentionTime() {
+        return apexRetentionTime;
+    }
+
+    /**
+     * @return the intensity of the most intense point, or NaN if the last
+     * chromatogram was empty.
+     */
+    public float getApexIntensity() {
+        return apexIntensity;
+    }
+
+    /**
+     * @return the width of the apex peak at half of its height above the
+     * baseline, with linear interpolation between points. Peaks that do not fall below half
+     * height before an end of the chromatogram are measured to that end. NaN
+     * if the last chromatogram was empty.
+     */
+    public float getFwhm() {
+        return fwhm;
+    }
+
+    private static float fullWidthAtHalfMaximum(float[] rt, float[] intensity, int length, int apex) {
+        float span = rt[length - 1] - rt[0];
+        float baseline = span > 0
+                ? intensity[0] + (intensity[length - 1] - intensity[0]) * (rt[apex] - rt[0]) / span
+                : intensity[0];
+        float half = baseline + (intensity[apex] - baseline) * 0.5f;
+        float left = rt[0];
+        for (int i = apex; i > 0; i--) {
+            if (intensity[i - 1] <= half) {
+                left = interpolate(rt[i - 1], intensity[i - 1], rt[i], intensity[i], half);
+                break;
+            }
+        }
+        float right = rt[length - 1];
+        for (int i = apex; i < length - 1; i++) {
+            if (intensity[i + 1] <= half) {
+                right = interpolate(rt[i], intensity[i], rt[i + 1], intensity[i + 1], half);
+                break;
+            }
+        }
+        return right - left;
+    }
+
+    private static float interpolate(float x0, float y0, float x1, float y1, float y) {
+        return y1 == y0 ? x0 : x0 + (x1 - x0) * (y - y0) / (y1 - y0);
+    }
+}
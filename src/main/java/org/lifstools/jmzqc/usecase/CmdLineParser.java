@@ -15,25 +15,25 @@
  */
 package org.lifstools.jmzqc.usecase;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.JsonFactoryBuilder;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.json.JsonReadFeature;
-import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.networknt.schema.ValidationMessage;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.nio.file.Files;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
@@ -42,8 +42,7 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
-import org.lifstools.jmzqc.Converter;
-import org.lifstools.jmzqc.Coordinate;
+import org.lifstools.jmzqc.BaseQuality;
 import org.lifstools.jmzqc.MzQC;
 
 /**
@@ -111,13 +110,142 @@ public class CmdLineParser {
         String versionOpt = addVersionOption(options);
         String inputFileOpt = addFileInputOption(options);
         String outputToFileOpt = addOutputToFileOption(options);
+        String streamingOpt = addStreamingOption(options);
+        String parallelRunOpt = addParallelRunOption(options);
+        String ms2MetricsOpt = addMs2MetricsOption(options);
+        String directoryOpt = addDirectoryInputOption(options);
+        String globOpt = addGlobInputOption(options);
+        String fileListOpt = addFileListInputOption(options);
+        String threadsOpt = addThreadsOption(options);
+        String outputDirOpt = addOutputDirectoryOption(options);
+        String aggregateOpt = addAggregateOption(options);
+        String gzipOpt = addGzipOption(options);
+        String sidecarOpt = addBinarySidecarOption(options);
+        String cacheOpt = addCacheOption(options);
+        String cacheSizeOpt = addCacheSizeOption(options);
+        String watchOpt = addWatchOption(options);
+        String watchStableOpt = addWatchStableSecondsOption(options);
+        String serveOpt = addServeOption(options);
+        String serveRootOpt = addServeRootOption(options);
+        String profileOpt = addProfileOption(options);
+        String storeOpt = addStoreOption(options);
+        String queryOpt = addQueryOption(options);
+        String instrumentOpt = addInstrumentOption(options);
+        String fromOpt = addFromOption(options);
+        String untilOpt = addUntilOption(options);
+        String mergeOpt = addMergeOption(options);
+        String validateFragmentsOpt = addValidateFragmentsOption(options);
+        String plotsOpt = addPlotsOption(options);
+        String plotSizeOpt = addPlotSizeOption(options);
 
         CommandLine line = parser.parse(options, args);
         if (line.getOptions().length == 0 || line.hasOption(helpOpt)) {
             HelpFormatter formatter = new HelpFormatter();
             formatter.printHelp("jmzqc-usecase", options);
-        } else if (line.hasOption(versionOpt)) {
+            return;
+        }
+        if (line.hasOption(versionOpt)) {
             System.out.println(getAppInfo());
+            return;
+        }
+        if (line.hasOption(profileOpt)) {
+            PhaseProfiler.enable();
+            // all modes end with System.exit or run until stopped, so print from a shutdown hook
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> PhaseProfiler.printSummary(System.out)));
+        }
+        boolean gzip = line.hasOption(gzipOpt) || line.getOptionValue(outputToFileOpt, "").endsWith(".gz");
+        boolean sidecar = line.hasOption(sidecarOpt);
+        // compressed and sidecar output are meant for archiving, so skip the indentation
+        MzQCCodec.WriteOptions writeOptions = new MzQCCodec.WriteOptions(!gzip && !sidecar, gzip, sidecar);
+        ProteomicsDDAMs1QC.Options runOptions = new ProteomicsDDAMs1QC.Options(line.hasOption(streamingOpt), line.hasOption(parallelRunOpt), line.hasOption(ms2MetricsOpt));
+        if (line.hasOption(queryOpt)) {
+            if (!line.hasOption(storeOpt)) {
+                System.out.println("Querying requires the metric store directory to be set with --" + storeOpt + ".");
+                System.exit(1);
+            }
+            Instant from = line.hasOption(fromOpt) ? parseTime(line.getOptionValue(fromOpt), false) : Instant.EPOCH;
+            Instant until = line.hasOption(untilOpt) ? parseTime(line.getOptionValue(untilOpt), true) : Instant.now();
+            try ( MetricStore store = new MetricStore(Paths.get(line.getOptionValue(storeOpt)))) {
+                printPoints(store.query(line.getOptionValue(queryOpt), line.getOptionValue(instrumentOpt), from, until));
+            }
+        } else if (line.hasOption(mergeOpt)) {
+            if (!line.hasOption(outputToFileOpt)) {
+                System.out.println("Merging requires the output file to be set with --" + outputToFileOpt + ".");
+                System.exit(1);
+            }
+            List<Path> inputFiles = new ArrayList<>();
+            if (line.hasOption(directoryOpt)) {
+                inputFiles.addAll(MzQCMerger.listInputFiles(Paths.get(line.getOptionValue(directoryOpt))));
+            }
+            if (line.hasOption(globOpt)) {
+                BatchProcessor.globInputFiles(line.getOptionValue(globOpt)).forEach(file -> inputFiles.add(file.toPath()));
+            }
+            if (line.hasOption(fileListOpt)) {
+                BatchProcessor.readFileList(Paths.get(line.getOptionValue(fileListOpt))).forEach(file -> inputFiles.add(file.toPath()));
+            }
+            line.getArgList().forEach(arg -> inputFiles.add(Paths.get(arg)));
+            System.exit(runMerge(inputFiles, Paths.get(line.getOptionValue(outputToFileOpt)), new MzQCCodec.WriteOptions(!gzip, gzip, false), line.hasOption(validateFragmentsOpt)));
+        } else if (line.hasOption(serveOpt)) {
+            int threads = line.hasOption(threadsOpt)
+                    ? Integer.parseInt(line.getOptionValue(threadsOpt))
+                    : BatchProcessor.defaultThreads(runOptions.streaming());
+            Optional<Path> root = Optional.ofNullable(line.getOptionValue(serveRootOpt)).map(Paths::get);
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(line.getOptionValue(serveOpt)));
+            QcHttpServer server = new QcHttpServer(address, runOptions, threads, root);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+            server.start();
+        } else if (line.hasOption(watchOpt)) {
+            List<Path> directories = new ArrayList<>();
+            for (String directory : line.getOptionValues(watchOpt)) {
+                directories.add(Paths.get(directory));
+            }
+            int threads = line.hasOption(threadsOpt)
+                    ? Integer.parseInt(line.getOptionValue(threadsOpt))
+                    : BatchProcessor.defaultThreads(runOptions.streaming());
+            Optional<ResultCache> cache = openCache(line, cacheOpt, cacheSizeOpt);
+            Duration stableFor = Duration.ofSeconds(Long.parseLong(line.getOptionValue(watchStableOpt, "30")));
+            Optional<MetricStore> store = openStore(line, storeOpt);
+            try {
+                new WatchFolderDaemon(directories, runOptions, writeOptions, cache, store, stableFor, threads).run();
+            } finally {
+                if (store.isPresent()) {
+                    store.get().close();
+                }
+            }
+        } else if (line.hasOption(directoryOpt) || line.hasOption(globOpt) || line.hasOption(fileListOpt)) {
+            List<File> inputFiles = new ArrayList<>();
+            if (line.hasOption(directoryOpt)) {
+                inputFiles.addAll(BatchProcessor.listInputFiles(Paths.get(line.getOptionValue(directoryOpt))));
+            }
+            if (line.hasOption(globOpt)) {
+                inputFiles.addAll(BatchProcessor.globInputFiles(line.getOptionValue(globOpt)));
+            }
+            if (line.hasOption(fileListOpt)) {
+                inputFiles.addAll(BatchProcessor.readFileList(Paths.get(line.getOptionValue(fileListOpt))));
+            }
+            int threads = line.hasOption(threadsOpt)
+                    ? Integer.parseInt(line.getOptionValue(threadsOpt))
+                    : BatchProcessor.defaultThreads(runOptions.streaming());
+            Optional<ResultCache> cache = openCache(line, cacheOpt, cacheSizeOpt);
+            Optional<MetricStore> store = openStore(line, storeOpt);
+            Optional<TicPlotter> plotter = openPlotter(line, plotsOpt, plotSizeOpt);
+            BatchProcessor batchProcessor = new BatchProcessor(runOptions, threads, cache, store, plotter);
+            Optional<File> combinedOutputFile = Optional.ofNullable(line.getOptionValue(outputToFileOpt)).map(File::new);
+            File outputDir = new File(line.getOptionValue(outputDirOpt, "."));
+            int status;
+            try {
+                status = runBatch(batchProcessor, inputFiles, combinedOutputFile, outputDir, writeOptions, line.hasOption(aggregateOpt));
+            } finally {
+                // write the buffered metrics before exiting
+                if (store.isPresent()) {
+                    store.get().close();
+                }
+            }
+            if (plotter.isPresent()) {
+                plotter.get().plotOverlay("overlay.tic.png")
+                        .ifPresent(overlay -> System.out.println("Saved TIC plots and overlay to '" + overlay.getParent() + "'."));
+            }
+            System.exit(status);
         } else {
             boolean toFile = false;
             String outputFile = "jmzqc.mzQC";
@@ -131,24 +259,38 @@ public class CmdLineParser {
             }
             Optional<MzQC> mzQC = Optional.empty();
             if (inputFile.isPresent()) {
-                mzQC = new ProteomicsDDAMs1QC(inputFile.get()).process();
+                mzQC = new ProteomicsDDAMs1QC(inputFile.get(), runOptions).process();
             }
-            if (mzQC.isPresent()) {
-                Set<ValidationMessage> messages = Converter.validate(mzQC.get());
-                if (!messages.isEmpty()) {
-                    System.out.println("Validation failed with " + messages.size() + " messages!");
-                    System.out.println(messages);
-                    System.exit(1);
-                } else {
-                    System.out.println("Validation successful!");
+            Optional<TicPlotter> plotter = openPlotter(line, plotsOpt, plotSizeOpt);
+            if (mzQC.isPresent() && plotter.isPresent()) {
+                plotter.get().plot(mzQC.get().runQualities().get(0));
+            }
+            if (mzQC.isPresent() && line.hasOption(storeOpt)) {
+                try ( MetricStore store = new MetricStore(Paths.get(line.getOptionValue(storeOpt)))) {
+                    store.append(mzQC.get().runQualities().get(0));
                 }
+            }
+            if (mzQC.isPresent()) {
                 if (toFile) {
-                    System.out.println("Saving output to '" + outputFile + "'.");
-                    boolean successful = writeToFile(new File(outputFile), mzQC.get());
+                    Set<ValidationMessage> messages = MzQCCodec.getInstance().validateAndWrite(Paths.get(outputFile), mzQC.get(), writeOptions);
+                    if (!messages.isEmpty()) {
+                        System.out.println("Validation failed with " + messages.size() + " messages!");
+                        System.out.println(messages);
+                        System.exit(1);
+                    }
+                    System.out.println("Validation successful!");
+                    System.out.println("Saved output to '" + outputFile + "'.");
                     System.exit(1);
                 } else {
+                    MzQCCodec.Encoded encoded = MzQCCodec.getInstance().encode(mzQC.get(), true);
+                    if (!encoded.isValid()) {
+                        System.out.println("Validation failed with " + encoded.getMessages().size() + " messages!");
+                        System.out.println(encoded.getMessages());
+                        System.exit(1);
+                    }
+                    System.out.println("Validation successful!");
                     System.out.println("Echoing output to stderr.");
-                    boolean successful = writeToStdOut(mzQC.get());
+                    encoded.writeTo(System.err);
                     System.exit(1);
                 }
             } else {
@@ -158,66 +300,169 @@ public class CmdLineParser {
         }
     }
 
-    private static boolean writeToStdOut(MzQC mzQC) {
-
-        try ( StringWriter sw = new StringWriter()) {
-            try ( BufferedWriter bw = new BufferedWriter(sw)) {
-                writeToWriter(bw, mzQC);
-            }
-            sw.flush();
-            sw.close();
-            System.err.println(sw.toString());
-            return true;
-        } catch (IOException ex) {
-            System.err.println("Caught exception while trying to write validation results string!");
-            ex.printStackTrace(System.err);
-            return false;
+    private static int runMerge(List<Path> inputFiles, Path outputFile, MzQCCodec.WriteOptions writeOptions, boolean validate) throws IOException {
+        if (inputFiles.isEmpty()) {
+            System.out.println("No mzQC files to merge!");
+            return 1;
         }
+        System.out.println("Merging " + inputFiles.size() + " files to '" + outputFile + "'.");
+        MzQCMerger.Result result = new MzQCMerger(validate, writeOptions).merge(inputFiles, outputFile);
+        System.out.println("Merged " + result.runQualities() + " run qualities and " + result.setQualities() + " set qualities.");
+        if (!result.rejected().isEmpty()) {
+            System.out.println("Skipped " + result.rejected().size() + " invalid qualities:");
+            result.rejected().forEach((location, messages) -> System.out.println(location + ": " + messages));
+            return 1;
+        }
+        return 0;
     }
 
-    private static boolean writeToFile(File f, MzQC mzQC) {
+    private static Optional<TicPlotter> openPlotter(CommandLine line, String plotsOpt, String plotSizeOpt) throws IOException {
+        if (!line.hasOption(plotsOpt)) {
+            return Optional.empty();
+        }
+        String[] size = line.getOptionValue(plotSizeOpt, "640x480").toLowerCase().split("x");
+        if (size.length != 2) {
+            throw new IllegalArgumentException("Plot size must be given as <width>x<height>, e.g. 640x480.");
+        }
+        return Optional.of(new TicPlotter(Paths.get(line.getOptionValue(plotsOpt)), Integer.parseInt(size[0].trim()), Integer.parseInt(size[1].trim())));
+    }
 
-        try ( BufferedWriter bw = Files.newBufferedWriter(f.toPath())) {
-            writeToWriter(bw, mzQC);
-            return true;
-        } catch (IOException ex) {
-            System.err.println("Caught exception while trying to write validation results to file " + f);
-            ex.printStackTrace(System.err);
-            return false;
+    private static Optional<MetricStore> openStore(CommandLine line, String storeOpt) throws IOException {
+        if (!line.hasOption(storeOpt)) {
+            return Optional.empty();
         }
+        return Optional.of(new MetricStore(Paths.get(line.getOptionValue(storeOpt))));
     }
 
-    private static void writeToWriter(BufferedWriter bw, MzQC mzQC) {
+    /**
+     * Parses an ISO date or date time. Dates without a time refer to the
+     * start of the day, or to its end if {@code endOfDay} is set, and times
+     * without an offset are taken as UTC.
+     */
+    static Instant parseTime(String text, boolean endOfDay) {
+        try {
+            return OffsetDateTime.parse(text).toInstant();
+        } catch (DateTimeParseException ex) {
+            // try the shorter forms
+        }
         try {
-            ObjectWriter writer = prepareJsonWriter();
-            bw.write(writer.writeValueAsString(new Coordinate(mzQC)));
-            bw.newLine();
-        } catch (IOException ex) {
-            System.err.println("Caught exception while trying to write validation results to buffered writer.");
-            ex.printStackTrace(System.err);
+            return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC);
+        } catch (DateTimeParseException ex) {
+            // try a plain date
         }
+        LocalDate date = LocalDate.parse(text);
+        return endOfDay
+                ? date.plusDays(1).atStartOfDay().toInstant(ZoneOffset.UTC).minusMillis(1)
+                : date.atStartOfDay().toInstant(ZoneOffset.UTC);
     }
 
+    private static void printPoints(List<MetricStore.Point> points) {
+        System.out.println("acquisitionTime\tinstrument\trun\tcolumn\tvalues");
+        StringBuilder sb = new StringBuilder();
+        for (MetricStore.Point point : points) {
+            sb.setLength(0);
+            sb.append(point.acquisitionTime()).append('\t')
+                    .append(point.instrument()).append('\t')
+                    .append(point.run()).append('\t')
+                    .append(point.column() == null ? "" : point.column()).append('\t');
+            for (int i = 0; i < point.values().length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(point.values()[i]);
+            }
+            System.out.println(sb);
+        }
+    }
+
+    private static Optional<ResultCache> openCache(CommandLine line, String cacheOpt, String cacheSizeOpt) throws IOException {
+        if (!line.hasOption(cacheOpt)) {
+            return Optional.empty();
+        }
+        long cacheSizeMiB = Long.parseLong(line.getOptionValue(cacheSizeOpt, "1024"));
+        return Optional.of(new ResultCache(Paths.get(line.getOptionValue(cacheOpt)), cacheSizeMiB * 1024L * 1024L));
+    }
+
+    /**
+     * Processes all input files with the batch processor. Without a combined
+     * output file, one mzQC file per run is written to the output directory.
+     * With {@code aggregate}, the set qualities of all runs go into the
+     * combined file, or into a separate {@code set} file in the output
+     * directory.
+     *
+     * @return the exit code, 0 if all runs were processed, validated and
+     * written successfully.
+     */
+    private static int runBatch(BatchProcessor batchProcessor, List<File> inputFiles, Optional<File> combinedOutputFile, File outputDir, MzQCCodec.WriteOptions writeOptions, boolean aggregate) throws InterruptedException, URISyntaxException {
+        if (inputFiles.isEmpty()) {
+            System.out.println("No input files found!");
+            return 1;
+        }
+        System.out.println("Processing " + inputFiles.size() + " files with " + batchProcessor.getThreads() + " threads.");
+        List<String> failures = new ArrayList<>();
+        if (combinedOutputFile.isPresent()) {
+            List<BaseQuality> runQualities = new ArrayList<>();
+            for (BatchProcessor.RunResult result : batchProcessor.process(inputFiles)) {
+                if (result.isSuccess()) {
+                    runQualities.add(result.runQuality().get());
+                } else {
+                    failures.add(result.inputFile() + ": " + result.failure().get());
+                }
+            }
+            if (!runQualities.isEmpty()) {
+                List<BaseQuality> setQualities = new ArrayList<>();
+                if (aggregate) {
+                    CrossRunAggregator aggregator = new CrossRunAggregator();
+                    runQualities.forEach(aggregator::add);
+                    setQualities.add(aggregator.toSetQuality());
+                }
+                MzQC mzQC = ProteomicsDDAMs1QC.createMzQC(runQualities, setQualities);
+                System.out.println("Saving combined output of " + runQualities.size() + " runs to '" + combinedOutputFile.get() + "'.");
+                try {
+                    Set<ValidationMessage> messages = MzQCCodec.getInstance().validateAndWrite(combinedOutputFile.get().toPath(), mzQC, writeOptions);
+                    if (!messages.isEmpty()) {
+                        failures.add(combinedOutputFile.get() + ": validation failed with " + messages.size() + " messages " + messages);
+                    }
+                } catch (IOException ex) {
+                    failures.add(combinedOutputFile.get() + ": could not write output file: " + ex);
+                }
+            }
+        } else {
+            System.out.println("Saving output to directory '" + outputDir + "'.");
+            Optional<CrossRunAggregator> aggregator = aggregate ? Optional.of(new CrossRunAggregator()) : Optional.empty();
+            for (BatchProcessor.RunResult result : batchProcessor.processAndWrite(inputFiles, outputDir, writeOptions, aggregator)) {
+                if (!result.isSuccess()) {
+                    failures.add(result.inputFile() + ": " + result.failure().get());
+                }
+            }
+            if (aggregator.isPresent() && aggregator.get().getRunCount() > 0) {
+                File setFile = new File(outputDir, "set" + writeOptions.fileExtension());
+                System.out.println("Saving set qualities of " + aggregator.get().getRunCount() + " runs to '" + setFile + "'.");
+                MzQC mzQC = ProteomicsDDAMs1QC.createMzQC(Collections.emptyList(), List.of(aggregator.get().toSetQuality()));
+                try {
+                    Set<ValidationMessage> messages = MzQCCodec.getInstance().validateAndWrite(setFile.toPath(), mzQC, writeOptions);
+                    if (!messages.isEmpty()) {
+                        failures.add(setFile + ": validation failed with " + messages.size() + " messages " + messages);
+                    }
+                } catch (IOException ex) {
+                    failures.add(setFile + ": could not write output file: " + ex);
+                }
+            }
+        }
+        if (!failures.isEmpty()) {
+            System.out.println("Processing failed for " + failures.size() + " of " + inputFiles.size() + " files:");
+            failures.forEach(System.out::println);
+            return 1;
+        }
+        System.out.println("Processed " + inputFiles.size() + " files successfully!");
+        return 0;
+    }
+
+    /**
+     * @return the shared, indenting writer of {@link MzQCCodec}.
+     */
     public static ObjectWriter prepareJsonWriter() {
-        JsonFactoryBuilder jfb = new JsonFactoryBuilder().
-                enable(JsonReadFeature.ALLOW_TRAILING_COMMA);
-        ObjectMapper mapper = new ObjectMapper(jfb.build());
-        mapper.findAndRegisterModules();
-        mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
-        mapper.configure(SerializationFeature.INDENT_OUTPUT, true);
-        mapper.configure(JsonParser.Feature.ALLOW_COMMENTS, true);
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
-
-        SimpleModule module = new SimpleModule();
-        module.addDeserializer(OffsetDateTime.class, new JsonDeserializer<OffsetDateTime>() {
-            @Override
-            public OffsetDateTime deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException, JsonProcessingException {
-                String value = jsonParser.getText();
-                return Converter.parseDateTimeString(value);
-            }
-        });
-        mapper.registerModule(module);
-        return mapper.writerFor(Coordinate.class);
+        return MzQCCodec.getInstance().getWriter();
     }
 
     protected static String addFileInputOption(Options options) {
@@ -238,6 +483,168 @@ public class CmdLineParser {
         return helpOpt;
     }
 
+    protected static String addStreamingOption(Options options) {
+        String streamingOpt = "streaming";
+        options.addOption("s", streamingOpt, false, "Read only spectrum metadata in a single streaming pass, without loading peak data.");
+        return streamingOpt;
+    }
+
+    protected static String addParallelRunOption(Options options) {
+        String parallelRunOpt = "parallelRun";
+        options.addOption("p", parallelRunOpt, false, "Read the spectra of a single indexedmzML file on all cores, using its offset index. Implies --streaming.");
+        return parallelRunOpt;
+    }
+
+    protected static String addMs2MetricsOption(Options options) {
+        String ms2MetricsOpt = "ms2Metrics";
+        options.addOption("m", ms2MetricsOpt, false, "Also compute MS2 metrics: precursor charges, MS2 spectra per cycle, top-10 intensity fraction and signal to noise. Decodes MS2 intensity arrays.");
+        return ms2MetricsOpt;
+    }
+
+    protected static String addAggregateOption(Options options) {
+        String aggregateOpt = "aggregate";
+        options.addOption("A", aggregateOpt, false, "Summarize all runs of a batch as set qualities: mean, standard deviation and quartiles of the TIC, base peak intensities, m/z and RT ranges, XIC areas and scalar metrics. Added to the combined output of -o, or written to 'set.mzQC' in the output directory.");
+        return aggregateOpt;
+    }
+
+    protected static String addDirectoryInputOption(Options options) {
+        String directoryOpt = "directory";
+        options.addOption("d", directoryOpt, true, "Process all mzML files in the given directory.");
+        return directoryOpt;
+    }
+
+    protected static String addGlobInputOption(Options options) {
+        String globOpt = "glob";
+        options.addOption("g", globOpt, true, "Process all files matching the given glob pattern, e.g. 'runs/*.mzML'.");
+        return globOpt;
+    }
+
+    protected static String addFileListInputOption(Options options) {
+        String fileListOpt = "fileList";
+        options.addOption("l", fileListOpt, true, "Process all files listed in the given text file, one per line.");
+        return fileListOpt;
+    }
+
+    protected static String addThreadsOption(Options options) {
+        String threadsOpt = "threads";
+        options.addOption("t", threadsOpt, true, "Number of files to process concurrently in batch mode. Defaults to a value based on the available cores and heap.");
+        return threadsOpt;
+    }
+
+    protected static String addOutputDirectoryOption(Options options) {
+        String outputDirOpt = "outputDir";
+        options.addOption("O", outputDirOpt, true, "Write one mzQC file per run to the given directory in batch mode. Ignored if -o is given, which writes one combined mzQC file.");
+        return outputDirOpt;
+    }
+
+    protected static String addGzipOption(Options options) {
+        String gzipOpt = "gzip";
+        options.addOption("z", gzipOpt, false, "Write compact, gzip compressed mzQC files. Implied if the output file name ends with '.gz'.");
+        return gzipOpt;
+    }
+
+    protected static String addBinarySidecarOption(Options options) {
+        String sidecarOpt = "binarySidecar";
+        options.addOption("b", sidecarOpt, false, "Store large numeric arrays as little-endian binary blocks in a '.bin' sidecar file next to each mzQC file.");
+        return sidecarOpt;
+    }
+
+    protected static String addPlotsOption(Options options) {
+        String plotsOpt = "plots";
+        options.addOption("G", plotsOpt, true, "Write a TIC plot of every run as '<run>.tic.png' to the given directory, downsampled to the plot width. Batch mode also writes an overlay of all runs as 'overlay.tic.png'.");
+        return plotsOpt;
+    }
+
+    protected static String addPlotSizeOption(Options options) {
+        String plotSizeOpt = "plotSize";
+        options.addOption("Y", plotSizeOpt, true, "Size of the TIC plots in pixels, as <width>x<height>. Defaults to 640x480.");
+        return plotSizeOpt;
+    }
+
+    protected static String addMergeOption(Options options) {
+        String mergeOpt = "merge";
+        options.addOption("x", mergeOpt, false, "Merge mzQC files into the file given with -o, streaming their run and set qualities without loading whole documents. Inputs are the mzQC files in the -d directory, matching -g, listed in -l, or given as arguments. Controlled vocabularies and analysis software are deduplicated.");
+        return mergeOpt;
+    }
+
+    protected static String addValidateFragmentsOption(Options options) {
+        String validateFragmentsOpt = "validateFragments";
+        options.addOption("V", validateFragmentsOpt, false, "With --merge, validate every run and set quality against the mzQC schema as it is copied, and skip invalid ones.");
+        return validateFragmentsOpt;
+    }
+
+    protected static String addStoreOption(Options options) {
+        String storeOpt = "store";
+        options.addOption("T", storeOpt, true, "Directory of a longitudinal metric store. The metrics of every processed run are appended to it, indexed by acquisition time, instrument and accession. Also the store read by --query.");
+        return storeOpt;
+    }
+
+    protected static String addQueryOption(Options options) {
+        String queryOpt = "query";
+        options.addOption("Q", queryOpt, true, "Print the values of the metric with the given accession from the metric store as tab separated text, ordered by acquisition time. Narrow down with --instrument, --from and --until.");
+        return queryOpt;
+    }
+
+    protected static String addInstrumentOption(Options options) {
+        String instrumentOpt = "instrument";
+        options.addOption("I", instrumentOpt, true, "Restrict --query to one instrument, identified by its serial number, or its model if the serial number is unknown.");
+        return instrumentOpt;
+    }
+
+    protected static String addFromOption(Options options) {
+        String fromOpt = "from";
+        options.addOption("F", fromOpt, true, "Earliest acquisition time for --query, as ISO date or date time, e.g. 2023-01-31. Defaults to all runs.");
+        return fromOpt;
+    }
+
+    protected static String addUntilOption(Options options) {
+        String untilOpt = "until";
+        options.addOption("U", untilOpt, true, "Latest acquisition time for --query, as ISO date or date time, inclusive. Defaults to now.");
+        return untilOpt;
+    }
+
+    protected static String addCacheOption(Options options) {
+        String cacheOpt = "cache";
+        options.addOption("C", cacheOpt, true, "Directory of a result cache for batch mode. Runs whose file content and metric set did not change are not processed again.");
+        return cacheOpt;
+    }
+
+    protected static String addCacheSizeOption(Options options) {
+        String cacheSizeOpt = "cacheSize";
+        options.addOption("M", cacheSizeOpt, true, "Maximum size of the result cache in MiB. Least recently used entries are evicted first. Defaults to 1024.");
+        return cacheSizeOpt;
+    }
+
+    protected static String addWatchOption(Options options) {
+        String watchOpt = "watch";
+        options.addOption("w", watchOpt, true, "Watch the directory for new mzML files and write an mzQC file next to each completed file. May be given more than once. Runs until stopped.");
+        return watchOpt;
+    }
+
+    protected static String addWatchStableSecondsOption(Options options) {
+        String watchStableOpt = "watchStableSeconds";
+        options.addOption("W", watchStableOpt, true, "Seconds the size of a watched file without closing indexedmzML tag must not change before it is processed. Defaults to 30.");
+        return watchStableOpt;
+    }
+
+    protected static String addServeOption(Options options) {
+        String serveOpt = "serve";
+        options.addOption("S", serveOpt, true, "Run a local HTTP QC service on the given port of the loopback interface. GET /qc?path=<mzML> or POST an mzML file to /qc to receive the validated mzQC document.");
+        return serveOpt;
+    }
+
+    protected static String addServeRootOption(Options options) {
+        String serveRootOpt = "serveRoot";
+        options.addOption("R", serveRootOpt, true, "Only serve mzML files below this directory when requested by path.");
+        return serveRootOpt;
+    }
+
+    protected static String addProfileOption(Options options) {
+        String profileOpt = "profile";
+        options.addOption("P", profileOpt, false, "Print time and allocated memory per processing phase and metric at the end. The phases are also recorded as Java Flight Recorder events.");
+        return profileOpt;
+    }
+
     protected static String addOutputToFileOption(Options options) {
         String outputToFileOpt = "outputFile";
         options.addOption("o", outputToFileOpt, true, "Write output to provided file in instead of to std out.");
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.DoubleConsumer;
+import org.lifstools.jmzqc.BaseQuality;
+import org.lifstools.jmzqc.InputFile;
+import org.lifstools.jmzqc.Metadata;
+import org.lifstools.jmzqc.QualityMetric;
+
+/**
+ * Summarizes the run qualities of a batch into set quality metrics, one run at
+ * a time. Every numeric series keeps a {@link RunningStatistics} and a
+ * {@link QuantileSketch}, so memory does not grow with the number of runs,
+ * apart from the input file entries the set metadata has to list. Aggregators
+ * of separate workers can be combined with {@link #merge(CrossRunAggregator)}.
+ * Instances are not thread safe.
+ * <p>
+ * Summarized are the TIC per run ({@code MS:4000104}), base peak intensities
+ * of all spectra ({@code MS:1000505}), both limits of the m/z and retention
+ * time ranges ({@code MS:4000069}, {@code MS:4000070}), the XIC area of every
+ * SRM transition ({@code MS:1001858}) and all other scalar metrics.
+ *
+ * @author Nils Hoffmann
+ */
+public class CrossRunAggregator {
+
+    private static final double[] QUARTILES = {0.25, 0.5, 0.75};
+    private static final Comparator<Transition> TRANSITION_ORDER = Comparator.comparingDouble(Transition::q1).thenComparingDouble(Transition::q3);
+
+    private record SeriesKey(String accession, String name, String description) {
+
+    }
+
+    private record Transition(double q1, double q3) {
+
+    }
+
+    /**
+     * Statistics and sketch of one series of values.
+     */
+    private static final class Summary {
+
+        final RunningStatistics statistics = new RunningStatistics();
+        final QuantileSketch sketch = new QuantileSketch();
+
+        void add(double value) {
+            statistics.add(value);
+            sketch.add(value);
+        }
+
+        void merge(Summary other) {
+            statistics.merge(other.statistics);
+            sketch.merge(other.sketch);
+        }
+    }
+
+    private final Map<SeriesKey, Summary> series = new LinkedHashMap<>();
+    private final Map<Transition, Summary> transitions = new TreeMap<>(TRANSITION_ORDER);
+    private final List<InputFile> inputFiles = new ArrayList<>();
+
+    /**
+     * Adds the metrics of one run.
+     *
+     * @param runQuality the run quality.
+     */
+    public void add(BaseQuality runQuality) {
+        if (runQuality.metadata() != null && runQuality.metadata().inputFiles() != null) {
+            inputFiles.addAll(runQuality.metadata().inputFiles());
+        }
+        for (QualityMetric metric : runQuality.qualityMetrics()) {
+            add(metric);
+        }
+    }
+
+    private void add(QualityMetric metric) {
+        Object value = metric.value();
+        switch (metric.accession()) {
+            case "MS:4000104" -> {
+                if (value instanceof Map<?, ?> table) {
+                    double[] tic = {0};
+                    forEachNumber(table.get("MS:1000285"), v -> tic[0] += v);
+                    summary(metric, "total ion current per run").add(tic[0]);
+                }
+            }
+            case "MS:1000505" -> {
+                Summary summary = summary(metric, "all spectra of all runs");
+                forEachNumber(value, summary::add);
+            }
+            case "MS:4000069", "MS:4000070" -> {
+                double[] limits = toDoubles(value);
+                if (limits.length == 2) {
+                    summary(metric, "lower limit per run").add(limits[0]);
+                    summary(metric, "upper limit per run").add(limits[1]);
+                }
+            }
+            case "MS:1001858" -> {
+                if (value instanceof Map<?, ?> table) {
+                    addTransitions(table);
+                }
+            }
+            default -> {
+                if (value instanceof Number number) {
+                    summary(metric, "value per run").add(number.doubleValue());
+                }
+            }
+        }
+    }
+
+    private void addTransitions(Map<?, ?> table) {
+        double[] q1 = toDoubles(table.get("MS:1000744"));
+        double[] q3 = toDoubles(table.get("MS:1000827"));
+        double[] area = toDoubles(table.get("MS:1001858"));
+        int rows = Math.min(q1.length, Math.min(q3.length, area.length));
+        for (int i = 0; i < rows; i++) {
+            transitions.computeIfAbsent(new Transition(q1[i], q3[i]), key -> new Summary()).add(area[i]);
+        }
+    }
+
+    private Summary summary(QualityMetric metric, String description) {
+        return series.computeIfAbsent(new SeriesKey(metric.accession(), metric.name(), description), key -> new Summary());
+    }
+
+    /**
+     * Adds the state of another aggregator, e.g. of another worker.
+     *
+     * @param other the other aggregator, not modified.
+     */
+    public void merge(CrossRunAggregator other) {
+        other.series.forEach((key, summary) -> series.computeIfAbsent(key, k -> new Summary()).merge(summary));
+        other.transitions.forEach((key, summary) -> transitions.computeIfAbsent(key, k -> new Summary()).merge(summary));
+        inputFiles.addAll(other.inputFiles);
+    }
+
+    /**
+     * @return the number of input files added so far.
+     */
+    public int getRunCount() {
+        return inputFiles.size();
+    }
+
+    /**
+     * Creates the set quality of all runs added so far. Every series becomes
+     * one metric with the accession of its source, whose value maps
+     * {@code n}, {@code mean}, {@code sd}, {@code min}, {@code q25},
+     * {@code median}, {@code q75} and {@code max} to numbers. Transitions
+     * become one {@code MS:1001858} table with one row per Q1 and Q3 pair.
+     *
+     * @return the set quality.
+     * @throws URISyntaxException if the analysis software URI is invalid.
+     */
+    public BaseQuality toSetQuality() throws URISyntaxException {
+        List<QualityMetric> metrics = new ArrayList<>(series.size() + 1);
+        series.forEach((key, summary) -> metrics.add(new QualityMetric(key.accession(), key.description(), key.name(), toStatisticsMap(summary), null)));
+        if (!transitions.isEmpty()) {
+            metrics.add(new QualityMetric("MS:1001858", "per transition, across runs", "XIC area", toTransitionTable(), null));
+        }
+        Metadata metadata = new Metadata(
+                List.of(ProteomicsDDAMs1QC.createAnalysisSoftware()),
+                List.of(),
+                new ArrayList<>(inputFiles),
+                null
+        );
+        return new BaseQuality(metadata, metrics);
+    }
+
+    private static Map<String, Object> toStatisticsMap(Summary summary) {
+        RunningStatistics statistics = summary.statistics;
+        double[] quartiles = summary.sketch.getQuantiles(QUARTILES);
+        var map = new LinkedHashMap<String, Object>();
+        map.put("n", statistics.getCount());
+        map.put("mean", statistics.getMean());
+        map.put("sd", statistics.getStandardDeviation());
+        map.put("min", statistics.getMin());
+        map.put("q25", quartiles[0]);
+        map.put("median", quartiles[1]);
+        map.put("q75", quartiles[2]);
+        map.put("max", statistics.getMax());
+        return map;
+    }
+
+    private Map<String, Object> toTransitionTable() {
+        int rows = transitions.size();
+        double[] q1 = new double[rows];
+        double[] q3 = new double[rows];
+        long[] n = new long[rows];
+        double[] mean = new double[rows];
+        double[] sd = new double[rows];
+        double[] min = new double[rows];
+        double[] q25 = new double[rows];
+        double[] median = new double[rows];
+        double[] q75 = new double[rows];
+        double[] max = new double[rows];
+        int row = 0;
+        for (Map.Entry<Transition, Summary> entry : transitions.entrySet()) {
+            RunningStatistics statistics = entry.getValue().statistics;
+            double[] quartiles = entry.getValue().sketch.getQuantiles(QUARTILES);
+            q1[row] = entry.getKey().q1();
+            q3[row] = entry.getKey().q3();
+            n[row] = statistics.getCount();
+            mean[row] = statistics.getMean();
+            sd[row] = statistics.getStandardDeviation();
+            min[row] = statistics.getMin();
+            q25[row] = quartiles[0];
+            median[row] = quartiles[1];
+            q75[row] = quartiles[2];
+            max[row] = statistics.getMax();
+            row++;
+        }
+        var table = new LinkedHashMap<String, Object>();
+        table.put("MS:1000744", q1);
+        table.put("MS:1000827", q3);
+        table.put("n", n);
+        table.put("mean", mean);
+        table.put("sd", sd);
+        table.put("min", min);
+        table.put("q25", q25);
+        table.put("median", median);
+        table.put("q75", q75);
+        table.put("max", max);
+        return table;
+    }
+
+    /**
+     * Visits the numbers of a metric value. Freshly computed metrics hold
+     * primitive arrays, metrics read back from JSON, e.g. from the
+     * {@link ResultCache}, hold lists.
+     */
+    static void forEachNumber(Object value, DoubleConsumer consumer) {
+        if (value instanceof float[] floats) {
+            for (float f : floats) {
+                consumer.accept(f);
+            }
+        } else if (value instanceof double[] doubles) {
+            for (double d : doubles) {
+                consumer.accept(d);
+            }
+        } else if (value instanceof int[] ints) {
+            for (int i : ints) {
+                consumer.accept(i);
+            }
+        } else if (value instanceof long[] longs) {
+            for (long l : longs) {
+                consumer.accept(l);
+            }
+        } else if (value instanceof Collection<?> collection) {
+            for (Object element : collection) {
+                if (element instanceof Number number) {
+                    consumer.accept(number.doubleValue());
+                }
+            }
+        } else if (value instanceof Number number) {
+            consumer.accept(number.doubleValue());
+        }
+    }
+
+    static double[] toDoubles(Object value) {
+        DoubleColumn column = new DoubleColumn(16);
+        forEachNumber(value, column::add);
+        return column.toArray();
+    }
+}
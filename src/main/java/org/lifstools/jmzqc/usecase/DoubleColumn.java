@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.util.Arrays;
+
+/**
+ * Growable column of primitive doubles, used instead of {@code List<Double>}
+ * for per-scan or per-chromatogram values that need double precision.
+ *
+ * @author Nils Hoffmann
+ */
+public class DoubleColumn {
+
+    private double[] values;
+    private int size;
+
+    public DoubleColumn() {
+        this(1024);
+    }
+
+    public DoubleColumn(int initialCapacity) {
+        this.values = new double[Math.max(1, initialCapacity)];
+    }
+
+    public void add(double value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[size++] = value;
+    }
+
+    public void addAll(DoubleColumn other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    public double get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a copy of the values, trimmed to the size of this column.
+     */
+    public double[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+    }
+}
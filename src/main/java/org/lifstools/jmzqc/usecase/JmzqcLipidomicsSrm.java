@@ -1,20 +1,6 @@
 package org.lifstools.jmzqc.usecase;
 
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.core.JsonFactoryBuilder;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.json.JsonReadFeature;
-import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.google.common.collect.Range;
-import com.networknt.schema.ValidationMessage;
-import io.github.msdk.MSDKException;
-import io.github.msdk.MSDKRuntimeException;
 import io.github.msdk.datamodel.ChromatogramType;
 import io.github.msdk.io.mzml.MzMLFileImportMethod;
 import io.github.msdk.io.mzml.data.MzMLRawDataFile;
@@ -23,21 +9,20 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.OffsetDateTime;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import org.lifstools.jmzqc.AnalysisSoftware;
 import org.lifstools.jmzqc.BaseQuality;
 import org.lifstools.jmzqc.ControlledVocabulary;
-import org.lifstools.jmzqc.Converter;
-import org.lifstools.jmzqc.Coordinate;
 import org.lifstools.jmzqc.CvParameter;
 import org.lifstools.jmzqc.InputFile;
 import org.lifstools.jmzqc.Metadata;
@@ -51,124 +36,134 @@ import org.lifstools.jmzqc.Unit;
  */
 public class JmzqcLipidomicsSrm {
 
+    /**
+     * Columnar table of the SRM transitions of one run, backed by primitive
+     * arrays. The run itself is identified by the input file of the run
+     * quality, so it is not repeated per transition.
+     */
+    public static class TransitionTable {
+
+        /**
+         * Local key of the column with the absolute retention time at which
+         * a transition starts. PSI-MS has no term for an absolute window
+         * limit, {@code MS:1000916} and {@code MS:1000917} are offsets.
+         */
+        public static final String RT_WINDOW_START = ScanMetrics.LOCAL_CV_PREFIX + "0000004";
+
+        /**
+         * Local key of the column with the absolute retention time at which
+         * a transition ends.
+         */
+        public static final String RT_WINDOW_END = ScanMetrics.LOCAL_CV_PREFIX + "0000005";
+
+        final DoubleColumn q1 = new DoubleColumn();
+        final DoubleColumn q3 = new DoubleColumn();
+        final IntColumn charge = new IntColumn();
+        final FloatColumn rtStart = new FloatColumn();
+        final FloatColumn rtEnd = new FloatColumn();
+        final DoubleColumn area = new DoubleColumn();
+
+        void add(double q1, double q3, int charge, float rtStart, float rtEnd, double area) {
+            this.q1.add(q1);
+            this.q3.add(q3);
+            this.charge.add(charge);
+            this.rtStart.add(rtStart);
+            this.rtEnd.add(rtEnd);
+            this.area.add(area);
+        }
+
+        public int size() {
+            return area.size();
+        }
+
+        /**
+         * @return the column map used as value of the {@code MS:1001858} "XIC
+         * area" metric, one row per transition. The retention time window is
+         * stored under the local keys {@link #RT_WINDOW_START} and
+         * {@link #RT_WINDOW_END}, in seconds.
+         */
+        public Map<String, Object> toColumnMap() {
+            var transitionTableMap = new LinkedHashMap<String, Object>();
+            transitionTableMap.put("MS:1000744", q1.toArray());
+            transitionTableMap.put("MS:1000827", q3.toArray());
+            transitionTableMap.put("MS:1000041", charge.toArray());
+            transitionTableMap.put(RT_WINDOW_START, rtStart.toArray());
+            transitionTableMap.put(RT_WINDOW_END, rtEnd.toArray());
+            transitionTableMap.put("MS:1001858", area.toArray());
+            return transitionTableMap;
+        }
+    }
+
+    /**
+     * Describes the {@code MS:1001858} "XIC area" values, which are no plain
+     * intensity sums but integrals over retention time.
+     */
+    static final String XIC_AREA_DESCRIPTION = "trapezoidal area under the chromatogram, in detector counts x retention time (s)";
+
     // TODO: add base peak intensity QC term and values
     public static void main(String[] args) {
         var outputDir = new File("MTBLS1375");
-        try {
-            outputDir.mkdirs();
-            var cmd = "wget -r -l 1 -A .mzML --reject 'index.html*' -P MTBLS1375 -nc -np -nd -nH --cut-dirs=6 -e robots=off https://ftp.ebi.ac.uk/pub/databases/metabolights/studies/public/MTBLS1375/";
-            var pb = new ProcessBuilder(cmd.split(" "));
-            System.out.println("Downloading of files with: " + pb.command());
-            pb.inheritIO();
-            Process p = pb.start();
-            p.waitFor();
-            System.out.println("Finished downloading of files!");
-        } catch (IOException | InterruptedException ex) {
-            System.err.println("Exception:" + ex.getLocalizedMessage());
-        }
+        // set -Djmzqc.fetch.connections=N to change the number of concurrent downloads
+        int connections = Integer.getInteger("jmzqc.fetch.connections", 4);
+        // set -Djmzqc.srm.concurrency=N to limit the number of files held in memory at once
+        int concurrency = Integer.getInteger("jmzqc.srm.concurrency", BatchProcessor.defaultThreads(false));
+        int queueCapacity = Integer.getInteger("jmzqc.pipeline.queue", 2);
+        var analysisSoftware = new AnalysisSoftware("MS:1000799", null, "custom unreleased software tool", "jmzqc", URI.create("https://github.com/MS-Quality-hub/jmzqc"), "1.0.0-RC1");
 
-        List<MzMLRawDataFile> mzMLData = Collections.emptyList();
+        StagedPipeline.Result<?, BaseQuality> result;
         try {
-            var mzMLFilePaths = Files.list(outputDir.toPath())
-                    .filter(file -> !Files.isDirectory(file))
-                    .filter((t) -> t.getFileName().toString().endsWith("mzML"))
-                    .collect(Collectors.toList());
-            mzMLData = mzMLFilePaths.stream().map(path -> {
-                try {
-                    return new MzMLFileImportMethod(path).execute();
-                } catch (MSDKException ex) {
-                    throw new MSDKRuntimeException(ex);
-                }
+            var fetcher = new StudyFetcher(URI.create(System.getProperty("jmzqc.srm.studyUri", "https://ftp.ebi.ac.uk/pub/databases/metabolights/studies/public/MTBLS1375/")), outputDir.toPath(), connections);
+            List<StudyFetcher.RemoteFile> remoteFiles = null;
+            try {
+                remoteFiles = fetcher.list((name) -> name.endsWith(".mzML"));
+            } catch (IOException ex) {
+                System.err.println("Could not list study files, processing local files only: " + ex.getLocalizedMessage());
+            }
+            if (remoteFiles != null) {
+                System.out.println("Processing " + remoteFiles.size() + " files with " + connections + " connections and " + concurrency + " threads.");
+                // file N+1 is fetched while file N is parsed and the metrics of file N-1 are written
+                var pipeline = StagedPipeline.<StudyFetcher.RemoteFile>create(queueCapacity)
+                        .then("fetch", StagedPipeline.threads("fetch", connections), (file) -> fetched(fetcher.fetch(file)));
+                result = processingStages(pipeline, concurrency, outputDir, analysisSoftware).run(remoteFiles);
+            } else {
+                var mzMLFilePaths = localFiles(outputDir.toPath());
+                System.out.println("Processing " + mzMLFilePaths.size() + " files with " + concurrency + " threads.");
+                result = processingStages(StagedPipeline.<Path>create(queueCapacity), concurrency, outputDir, analysisSoftware).run(mzMLFilePaths);
             }
-            ).collect(Collectors.toList());
         } catch (IOException ex) {
             System.err.println("Exception:" + ex.getLocalizedMessage());
+            return;
+        } catch (InterruptedException ex) {
+            System.err.println("Interrupted while processing files!");
+            Thread.currentThread().interrupt();
+            return;
         }
-        System.out.println("Loaded " + mzMLData.size() + " files!");
-
-        var mzMLFormatParameter = new CvParameter("MS:1000584", null, "mzML format", null);
-        Map<InputFile, List<QualityMetric>> mzMLFileStats = mzMLData.stream().map((t) -> {
-            System.out.println("Processing file: " + t.getName());
-            var precursorMzRange = t.getChromatograms().stream().filter(chrom -> chrom.getChromatogramType() == ChromatogramType.MRM_SRM).map(chrom -> {
-                var precMz = chrom.getIsolations().get(0).getPrecursorMz();
-                return Range.singleton(precMz);
-            }).filter(range -> range != null && !range.isEmpty()).reduce((l, r) -> l.span(r)).orElse(Range.singleton(0.0));
-            var precursorMzRangeMetric = new QualityMetric("MS:4000069", null, "m/z acquisition range", Arrays.asList(precursorMzRange.lowerEndpoint(), precursorMzRange.upperEndpoint()), null);
-            var numberOfChromatogramsMetric = new QualityMetric("MS:4000071", null, "number of chromatograms", t.getChromatograms().stream().filter(chrom -> chrom.getChromatogramType() == ChromatogramType.MRM_SRM).count(), null);
-            var rtRange = t.getChromatograms().stream().map(
-                    chrom -> {
-                        return chrom.getRtRange();
-                    }
-            ).reduce(
-                    (lrt, rrt) -> lrt.span(rrt)
-            ).get();
-            var xicArea = t.getChromatograms().stream().filter(chrom -> chrom.getChromatogramType() == ChromatogramType.MRM_SRM).map(chrom -> {
-                float[] areas_f = chrom.getIntensityValues();
-                var reactionAreaKey = "name: " + t.getName() + " | transition: " + chrom.getIsolations().get(0).getPrecursorMz() + " -> " + chrom.getIsolations().get(1).getPrecursorMz() + " | precCharge: " + Optional.ofNullable(chrom.getIsolations().get(0).getPrecursorCharge()).orElse(1) + " | rt: " + chrom.getRtRange();
-                var area = IntStream.range(0, areas_f.length).mapToDouble(i -> areas_f[i]).sum();
-                return new Object[]{reactionAreaKey, area};
-            }).collect(Collectors.toList());
-
-            var xicAreaMetric = new QualityMetric("MS:1001858", null, "XIC area", xicArea, new Unit(new CvParameter("MS:1000131", null, "number of detecter counts", null), null));
-
-            var rtRangeMetric = new QualityMetric("MS:4000070", null, "retention time acquisition range", Arrays.asList(rtRange.lowerEndpoint(), rtRange.upperEndpoint()), null);
-
-            var instrumentMetric = new CvParameter("MS:1000490", null, "Agilent instrument model", null);
-            var analysisMetric = new CvParameter("MS:1001838", null, "SRM quantitation analysis", null);
-
-            return new SimpleEntry<InputFile, List<QualityMetric>>(
-                    new InputFile(mzMLFormatParameter, Arrays.asList(instrumentMetric, analysisMetric), t.getOriginalFile().get().toURI(), t.getName()),
-                    Arrays.asList(
-                            numberOfChromatogramsMetric,
-                            precursorMzRangeMetric,
-                            rtRangeMetric,
-                            xicAreaMetric
-                    )
-            );
-        }).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        result.items().stream().filter((t) -> !t.isSuccess()).forEach((t) -> System.err.println("Exception while processing " + t.input() + ": " + t.failure().get()));
+        List<BaseQuality> bqs = result.items().stream().filter(StagedPipeline.Item::isSuccess).map((t) -> t.output().get()).collect(Collectors.toList());
+        System.out.println("Processed " + bqs.size() + " files!");
+        result.printStats(System.out);
 
-        MzQC mzQC = null;
         var file = "MTBLS1375/MTBLS1375";
         try {
-            var analysisSoftware = new AnalysisSoftware("MS:1000799", null, "custom unreleased software tool", "jmzqc", new URI("https://github.com/MS-Quality-hub/jmzqc"), "1.0.0-RC1");
-            List<BaseQuality> bqs = mzMLFileStats.entrySet().stream().map((t) -> {
-                Metadata metadata = new Metadata(
-                        Arrays.asList(analysisSoftware),
-                        Collections.emptyList(),
-                        Arrays.asList(t.getKey()),
-                        null
-                );
-                return new BaseQuality(metadata, t.getValue());
-            }
-            ).collect(Collectors.toList());
-            mzQC = new MzQC(
-                    "nils.hoffmann@cebitec.uni-bielefeld.de",
-                    "Nils Hoffmann",
-                    Arrays.asList(
-                            new ControlledVocabulary(
-                                    "Proteomics Standards Initiative Mass Spectrometry Ontology",
-                                    new URI("https://github.com/HUPO-PSI/psi-ms-CV/releases/download/v4.1.103/psi-ms.obo"),
-                                    "4.1.103"
-                            )
-                    ),
-                    OffsetDateTime.now(),
-                    "MzQC for basic QC information on MetaboLights dataset MTBLS1375",
-                    bqs,
-                    Collections.emptyList(),
-                    "1.0.0");
-            Set<ValidationMessage> messages = Converter.validate(mzQC);
-            System.out.println("Validation messages: " + messages);
-
-            if (!messages.isEmpty()) {
-                System.err.println("Validation failed with " + messages.size() + " messages!");
+            // XIC areas per transition and the other metrics across all runs
+            var aggregator = new CrossRunAggregator();
+            bqs.forEach(aggregator::add);
+            List<BaseQuality> setQualities = bqs.isEmpty() ? Collections.emptyList() : Arrays.asList(aggregator.toSetQuality());
+            MzQC mzQC = document(bqs, setQualities);
+            // serialize once, then validate, write and preview the same bytes
+            MzQCCodec.Encoded encoded = MzQCCodec.getInstance().encode(mzQC, true);
+            System.out.println("Validation messages: " + encoded.getMessages());
+
+            if (!encoded.isValid()) {
+                System.err.println("Validation failed with " + encoded.getMessages().size() + " messages!");
             } else {
-                ObjectWriter writer = prepareJsonWriter();
-                writer.writeValue(new File(file + ".mzQC"), new Coordinate(mzQC));
+                var mzQCFile = new File(file + ".mzQC");
+                MzQCCodec.getInstance().write(mzQCFile.toPath(), encoded, false);
                 // print the first 800 characters of the mzQC file
-                System.out.println(writer.writeValueAsString(new Coordinate(mzQC)).substring(0, 799));
+                System.out.println(encoded.head(799));
             }
 
-        }catch (URISyntaxException | IOException ex) {
+        } catch (URISyntaxException | IOException ex) {
             System.err.println("Exception:" + ex.getLocalizedMessage());
         }
         
@@ -185,26 +180,155 @@ public class JmzqcLipidomicsSrm {
 //            BitmapEncoder.getBufferedImage(chart);
     }
 
-    public static ObjectWriter prepareJsonWriter() {
-        JsonFactoryBuilder jfb = new JsonFactoryBuilder().
-                enable(JsonReadFeature.ALLOW_TRAILING_COMMA);
-        ObjectMapper mapper = new ObjectMapper(jfb.build());
-        mapper.findAndRegisterModules();
-        mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
-        mapper.configure(SerializationFeature.INDENT_OUTPUT, true);
-        mapper.configure(JsonParser.Feature.ALLOW_COMMENTS, true);
-        mapper.setSerializationInclusion(Include.NON_EMPTY);
-
-        SimpleModule module = new SimpleModule();
-        module.addDeserializer(OffsetDateTime.class, new JsonDeserializer<OffsetDateTime>() {
-            @Override
-            public OffsetDateTime deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException, JsonProcessingException {
-                String value = jsonParser.getText();
-                return Converter.parseDateTimeString(value);
-            }
+    /**
+     * Appends the parse, compute and write stages. At most {@code concurrency}
+     * files are held in memory at once: a file takes a permit before it is
+     * parsed and returns it once it is released after computing its metrics,
+     * whether it is being parsed, waiting for the compute stage or being
+     * computed. The parse and compute threads and the single slot queue
+     * between them add up to {@code concurrency}, so no permit stays unused.
+     * If {@code jmzqc.srm.runFiles} is true, the write stage also writes one
+     * mzQC file per run to the output directory.
+     *
+     * @param <I> the pipeline input.
+     * @param pipeline the stages that provide the local mzML files.
+     * @param concurrency the maximum number of files held in memory at once.
+     * @param outputDir the directory for the mzQC file of each run.
+     * @param analysisSoftware the software recorded in the run metadata.
+     * @return the pipeline with the run quality of each file as output.
+     */
+    public static <I> StagedPipeline<I, BaseQuality> processingStages(StagedPipeline<I, Path> pipeline, int concurrency, File outputDir, AnalysisSoftware analysisSoftware) {
+        Semaphore loaded = new Semaphore(Math.max(1, concurrency));
+        int computeThreads = Math.max(1, (concurrency - 1) / 2);
+        int parseThreads = Math.max(1, concurrency - 1 - computeThreads);
+        boolean runFiles = Boolean.getBoolean("jmzqc.srm.runFiles");
+        return pipeline
+                .then("parse", StagedPipeline.threads("parse", parseThreads), (path) -> {
+                    loaded.acquire();
+                    try ( PhaseProfiler.Phase phase = PhaseProfiler.start("parse", path.getFileName().toString())) {
+                        return new MzMLFileImportMethod(path).execute();
+                    } catch (Exception | Error ex) {
+                        loaded.release();
+                        throw ex;
+                    }
+                })
+                .then("compute", StagedPipeline.threads("compute", computeThreads), 1, (t) -> {
+                    try ( PhaseProfiler.Phase phase = PhaseProfiler.start("compute", t.getName())) {
+                        return computeMetrics(t);
+                    } finally {
+                        try {
+                            t.dispose();
+                        } finally {
+                            loaded.release();
+                        }
+                    }
+                })
+                .then("write", StagedPipeline.threads("write", 1), (t) -> {
+                    Metadata metadata = new Metadata(
+                            Arrays.asList(analysisSoftware),
+                            Collections.emptyList(),
+                            Arrays.asList(t.getKey()),
+                            null
+                    );
+                    var runQuality = new BaseQuality(metadata, t.getValue());
+                    if (!runFiles) {
+                        // the study document written at the end holds all runs
+                        return runQuality;
+                    }
+                    var runFile = new File(outputDir, t.getKey().name().replaceFirst("\\.mzML$", "") + ".mzQC");
+                    var messages = MzQCCodec.getInstance().validateAndWrite(runFile.toPath(), document(Arrays.asList(runQuality), Collections.emptyList()), MzQCCodec.WriteOptions.DEFAULT);
+                    if (!messages.isEmpty()) {
+                        throw new IOException("Validation of " + runFile + " failed with " + messages.size() + " messages: " + messages);
+                    }
+                    return runQuality;
+                });
+    }
+
+    static MzQC document(List<BaseQuality> runQualities, List<BaseQuality> setQualities) throws URISyntaxException {
+        return new MzQC(
+                "nils.hoffmann@cebitec.uni-bielefeld.de",
+                "Nils Hoffmann",
+                Arrays.asList(
+                        new ControlledVocabulary(
+                                "Proteomics Standards Initiative Mass Spectrometry Ontology",
+                                URI.create("https://github.com/HUPO-PSI/psi-ms-CV/releases/download/v4.1.103/psi-ms.obo"),
+                                "4.1.103"
+                        ),
+                        // for the local retention time window columns of the XIC area tables
+                        ScanMetrics.localVocabulary()
+                ),
+                OffsetDateTime.now(),
+                "MzQC for basic QC information on MetaboLights dataset MTBLS1375",
+                runQualities,
+                setQualities,
+                "1.0.0");
+    }
+
+    static Path fetched(StudyFetcher.FetchResult result) throws IOException {
+        if (!result.isSuccess()) {
+            throw new IOException("Failed to fetch " + result.file().uri() + ": " + result.failure().get());
+        }
+        return result.path();
+    }
+
+    static List<Path> localFiles(Path directory) throws IOException {
+        try ( var paths = Files.list(directory)) {
+            return paths
+                    .filter(file -> !Files.isDirectory(file))
+                    .filter((t) -> t.getFileName().toString().endsWith("mzML"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    static SimpleEntry<InputFile, List<QualityMetric>> computeMetrics(MzMLRawDataFile t) {
+        var mzMLFormatParameter = new CvParameter("MS:1000584", null, "mzML format", null);
+        System.out.println("Processing file: " + t.getName());
+        var precursorMzRange = t.getChromatograms().stream().filter(chrom -> chrom.getChromatogramType() == ChromatogramType.MRM_SRM).map(chrom -> {
+            var precMz = chrom.getIsolations().get(0).getPrecursorMz();
+            return Range.singleton(precMz);
+        }).filter(range -> range != null && !range.isEmpty()).reduce((l, r) -> l.span(r)).orElse(Range.singleton(0.0));
+        var precursorMzRangeMetric = new QualityMetric("MS:4000069", null, "m/z acquisition range", Arrays.asList(precursorMzRange.lowerEndpoint(), precursorMzRange.upperEndpoint()), null);
+        var numberOfChromatogramsMetric = new QualityMetric("MS:4000071", null, "number of chromatograms", t.getChromatograms().stream().filter(chrom -> chrom.getChromatogramType() == ChromatogramType.MRM_SRM).count(), null);
+        var rtRange = t.getChromatograms().stream().map(
+                chrom -> {
+                    return chrom.getRtRange();
+                }
+        ).reduce(
+                (lrt, rrt) -> lrt.span(rrt)
+        ).get();
+        // the stream is sequential, so one integrator and its buffers serve all chromatograms
+        var integrator = new ChromatogramIntegrator();
+        var transitionTable = new TransitionTable();
+        t.getChromatograms().stream().filter(chrom -> chrom.getChromatogramType() == ChromatogramType.MRM_SRM).forEach(chrom -> {
+            var chromRtRange = chrom.getRtRange();
+            transitionTable.add(
+                    chrom.getIsolations().get(0).getPrecursorMz(),
+                    chrom.getIsolations().get(1).getPrecursorMz(),
+                    Optional.ofNullable(chrom.getIsolations().get(0).getPrecursorCharge()).orElse(1),
+                    chromRtRange.lowerEndpoint(),
+                    chromRtRange.upperEndpoint(),
+                    integrator.integrate(chrom).getArea()
+            );
         });
-        mapper.registerModule(module);
-        return mapper.writerFor(Coordinate.class);
+
+        // the unit names the integrated intensity, the description the integration
+        var xicAreaMetric = new QualityMetric("MS:1001858", XIC_AREA_DESCRIPTION, "XIC area", transitionTable.toColumnMap(), new Unit(new CvParameter("MS:1000131", null, "number of detector counts", null), null));
+
+        var rtRangeMetric = new QualityMetric("MS:4000070", null, "retention time acquisition range", Arrays.asList(rtRange.lowerEndpoint(), rtRange.upperEndpoint()), null);
+
+        var instrumentMetric = new CvParameter("MS:1000490", null, "Agilent instrument model", null);
+        var analysisMetric = new CvParameter("MS:1001838", null, "SRM quantitation analysis", null);
+
+        return new SimpleEntry<InputFile, List<QualityMetric>>(
+                new InputFile(mzMLFormatParameter, Arrays.asList(instrumentMetric, analysisMetric), t.getOriginalFile().get().toURI(), t.getName()),
+                Arrays.asList(
+                        numberOfChromatogramsMetric,
+                        precursorMzRangeMetric,
+                        rtRangeMetric,
+                        xicAreaMetric
+                )
+        );
     }
 
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import org.lifstools.jmzqc.QualityMetric;
+
+/**
+ * Mutable accumulator for a single scan level quality metric. A
+ * {@link ScanMetricEngine} passes every spectrum of a run to all of its
+ * accumulators exactly once, and then asks each of them for its
+ * {@link QualityMetric}. Runs can also be split into consecutive ranges of
+ * spectra, each with its own accumulator, whose partial results are combined
+ * with {@link #merge(MetricAccumulator)} in the order of the ranges.
+ *
+ * @author Nils Hoffmann
+ */
+public interface MetricAccumulator {
+
+    /**
+     * Updates this accumulator with the values of one spectrum. The header
+     * instance is reused by the caller and must not be retained.
+     *
+     * @param header the spectrum header.
+     */
+    void accept(SpectrumHeader header);
+
+    /**
+     * Declares whether this accumulator reads the peak arrays of a spectrum.
+     * Peaks are only read, and decoded on demand, if at least one accumulator
+     * of an engine needs them, so metrics from header values stay cheap.
+     *
+     * @return true if {@link SpectrumHeader#getMzArray()} or
+     * {@link SpectrumHeader#getIntensityArray()} are used, false by default.
+     */
+    default boolean needsPeaks() {
+        return false;
+    }
+
+    /**
+     * Adds the state of an accumulator of the same type, which has seen the
+     * spectra directly following those seen by this accumulator.
+     *
+     * @param later the accumulator of the following range of spectra.
+     */
+    void merge(MetricAccumulator later);
+
+    /**
+     * Creates the quality metric from the accumulated values.
+     *
+     * @param summary the spectrum and chromatogram counts of the run.
+     * @return the quality metric.
+     */
+    QualityMetric finish(MzMLHeaderReader.Summary summary);
+}
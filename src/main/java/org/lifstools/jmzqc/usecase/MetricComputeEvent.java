@@ -0,0 +1,49 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event with the time one metric accumulator spent in a single
+ * pass over the scans of a run. The accumulators of a run share that pass, so
+ * the time is summed per accumulator and committed once per run.
+ *
+ * @author Nils Hoffmann
+ */
+@Name("org.lifstools.jmzqc.MetricCompute")
+@Label("QC Metric Compute")
+@Category({"jmzqc"})
+@Description("Time spent computing one quality metric of a run")
+class MetricComputeEvent extends jdk.jfr.Event {
+
+    @Label("Metric")
+    String metric;
+
+    @Label("File Name")
+    String fileName;
+
+    @Label("Scan Count")
+    long scanCount;
+
+    @Label("Compute Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long computeTime;
+}
@@ -0,0 +1,669 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.lifstools.jmzqc.BaseQuality;
+import org.lifstools.jmzqc.CvParameter;
+import org.lifstools.jmzqc.InputFile;
+import org.lifstools.jmzqc.QualityMetric;
+
+/**
+ * Local, append-only store for the quality metrics of many runs, for trend
+ * queries over months of acquisitions without re-reading mzQC files.
+ * <p>
+ * Appended metrics are buffered and written as immutable segment files. A
+ * segment holds one column each for the acquisition time, instrument,
+ * accession, run and table column of its rows, and all values as one flat
+ * column of doubles. Rows are sorted by instrument, accession and time. Scalars have one value, arrays all of their numeric
+ * values, and every numeric column of a table, e.g. a
+ * {@link ProteomicsDDAMs1QC.TicTable}, is stored as its own row. Strings are
+ * stored once, in an append-only dictionary file. The header of every segment
+ * holds its time range and the row range of every instrument and accession
+ * pair, so a query only reads the segments it needs, and only the rows within
+ * the requested time range of those. Small segments are merged into larger ones
+ * once there are many of them.
+ * <p>
+ * Only one instance may write to a store directory at a time. Instances are
+ * thread safe.
+ *
+ * @author Nils Hoffmann
+ */
+public class MetricStore implements Closeable {
+
+    /**
+     * The input file property holding the start time stamp of a run. PSI-MS
+     * only defines a completion time, so a local placeholder term is used.
+     */
+    public static final String START_TIME_ACCESSION = ScanMetrics.LOCAL_CV_PREFIX + "0000006";
+    /**
+     * The input file property holding the instrument model name.
+     */
+    public static final String INSTRUMENT_MODEL_ACCESSION = "MS:1000031";
+    /**
+     * The input file property holding the instrument serial number.
+     */
+    public static final String SERIAL_NUMBER_ACCESSION = "MS:1000529";
+    /**
+     * The instrument of runs without instrument file properties.
+     */
+    public static final String UNKNOWN_INSTRUMENT = "unknown";
+    /**
+     * Number of buffered values after which a segment is written.
+     */
+    static final int DEFAULT_SEGMENT_VALUES = 1 << 20;
+    /**
+     * Number of segments smaller than the segment size that triggers merging.
+     */
+    static final int MERGE_THRESHOLD = 16;
+
+    private static final int MAGIC = 0x4A4D5153;
+    private static final int VERSION = 1;
+    private static final int NO_COLUMN = -1;
+    private static final String DICTIONARY_FILE = "dictionary.txt";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".jmqs";
+
+    /**
+     * The values of one metric, or of one table column, of one run.
+     *
+     * @param acquisitionTime the acquisition time of the run.
+     * @param instrument the instrument of the run.
+     * @param run the name of the run.
+     * @param column the table column, or null if the metric is not a table.
+     * @param values the numeric values.
+     */
+    public static record Point(Instant acquisitionTime, String instrument, String run, String column, double[] values) {
+
+    }
+
+    private static record Row(long time, int instrument, int accession, int run, int column, double[] values) {
+
+    }
+
+    private final Path directory;
+    private final int segmentValues;
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final BufferedWriter dictionary;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Row> buffer = new ArrayList<>();
+    private int bufferedValues;
+    private int nextSequence;
+
+    /**
+     * @param directory the store directory, created if it does not exist.
+     * @throws IOException if the store can not be opened.
+     */
+    public MetricStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_VALUES);
+    }
+
+    /**
+     * @param directory the store directory, created if it does not exist.
+     * @param segmentValues the number of buffered values after which a
+     * segment is written.
+     * @throws IOException if the store can not be opened.
+     */
+    public MetricStore(Path directory, int segmentValues) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentValues = Math.max(1, segmentValues);
+        Path dictionaryFile = directory.resolve(DICTIONARY_FILE);
+        if (Files.exists(dictionaryFile)) {
+            readDictionary(dictionaryFile);
+        }
+        this.dictionary = Files.newBufferedWriter(dictionaryFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        openSegments();
+    }
+
+    private void readDictionary(Path dictionaryFile) throws IOException {
+        byte[] bytes = Files.readAllBytes(dictionaryFile);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end--;
+        }
+        if (end < bytes.length) {
+            // an interrupted append, no segment refers to the partial entry
+            try ( FileChannel channel = FileChannel.open(dictionaryFile, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        String text = new String(bytes, 0, end, StandardCharsets.UTF_8);
+        int start = 0;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', start)) {
+            String string = text.substring(start, i);
+            ids.putIfAbsent(string, strings.size());
+            strings.add(string);
+            start = i + 1;
+        }
+    }
+
+    private void openSegments() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        try ( Stream<Path> paths = Files.list(directory)) {
+            for (Path path : paths.filter(MetricStore::isSegment).sorted().collect(Collectors.toList())) {
+                found.add(new Segment(path));
+            }
+        }
+        // a merge may have been interrupted before its inputs were deleted
+        Set<Integer> replaced = new HashSet<>();
+        found.forEach(segment -> replaced.addAll(segment.replaced));
+        for (Segment segment : found) {
+            nextSequence = Math.max(nextSequence, segment.sequence + 1);
+            if (replaced.contains(segment.sequence)) {
+                delete(segment);
+            } else {
+                segments.add(segment);
+            }
+        }
+    }
+
+    private static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Appends the metrics of a run. The acquisition time and the instrument
+     * are taken from the file properties of the first input file, see
+     * {@link #acquisitionTime(InputFile)} and {@link #instrument(InputFile)}.
+     *
+     * @param runQuality the run quality.
+     * @throws IOException if a segment can not be written.
+     */
+    public void append(BaseQuality runQuality) throws IOException {
+        List<InputFile> inputFiles = runQuality.metadata().inputFiles();
+        if (inputFiles == null || inputFiles.isEmpty()) {
+            throw new IllegalArgumentException("Run quality has no input file!");
+        }
+        InputFile inputFile = inputFiles.get(0);
+        append(acquisitionTime(inputFile), instrument(inputFile), inputFile.name(), runQuality.qualityMetrics());
+    }
+
+    /**
+     * Appends the metrics of a run. Metrics without numeric values are
+     * skipped.
+     *
+     * @param acquisitionTime the acquisition time of the run.
+     * @param instrument the instrument of the run.
+     * @param run the name of the run.
+     * @param metrics the metrics of the run.
+     * @throws IOException if a segment can not be written.
+     */
+    public synchronized void append(Instant acquisitionTime, String instrument, String run, List<QualityMetric> metrics) throws IOException {
+        long time = acquisitionTime.toEpochMilli();
+        int instrumentId = id(instrument);
+        int runId = id(run);
+        for (QualityMetric metric : metrics) {
+            if (metric.value() instanceof Map<?, ?> table) {
+                for (Map.Entry<?, ?> column : table.entrySet()) {
+                    add(time, instrumentId, metric.accession(), runId, id(String.valueOf(column.getKey())), column.getValue());
+                }
+            } else {
+                add(time, instrumentId, metric.accession(), runId, NO_COLUMN, metric.value());
+            }
+        }
+        if (bufferedValues >= segmentValues) {
+            flush();
+        }
+    }
+
+    private void add(long time, int instrument, String accession, int run, int column, Object value) throws IOException {
+        double[] values = CrossRunAggregator.toDoubles(value);
+        if (values.length > 0) {
+            buffer.add(new Row(time, instrument, id(accession), run, column, values));
+            bufferedValues += values.length;
+        }
+    }
+
+    private int id(String string) throws IOException {
+        String key = string == null ? "" : string.replace('\n', ' ').replace('\r', ' ');
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = strings.size();
+            strings.add(key);
+            ids.put(key, id);
+            dictionary.write(key);
+            dictionary.write('\n');
+        }
+        return id;
+    }
+
+    /**
+     * Writes all buffered metrics as a new segment, and merges small segments
+     * if there are many of them.
+     *
+     * @throws IOException if the segment can not be written.
+     */
+    public synchronized void flush() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        // segments only refer to dictionary entries that are on disk
+        dictionary.flush();
+        segments.add(writeSegment(buffer, List.of()));
+        buffer.clear();
+        bufferedValues = 0;
+        mergeSmallSegments();
+    }
+
+    private void mergeSmallSegments() throws IOException {
+        List<Segment> small = segments.stream().filter(segment -> segment.valueCount < segmentValues).collect(Collectors.toList());
+        if (small.size() < MERGE_THRESHOLD) {
+            return;
+        }
+        List<Segment> group = new ArrayList<>();
+        long groupValues = 0;
+        for (Segment segment : small) {
+            if (!group.isEmpty() && groupValues + segment.valueCount > segmentValues) {
+                merge(group);
+                group.clear();
+                groupValues = 0;
+            }
+            group.add(segment);
+            groupValues += segment.valueCount;
+        }
+        merge(group);
+    }
+
+    private void merge(List<Segment> group) throws IOException {
+        if (group.size() < 2) {
+            return;
+        }
+        List<Row> rows = new ArrayList<>();
+        List<Integer> replaced = new ArrayList<>();
+        for (Segment segment : group) {
+            for (int i = 0; i < segment.rows; i++) {
+                rows.add(segment.row(i));
+            }
+            replaced.add(segment.sequence);
+        }
+        Segment merged = writeSegment(rows, replaced);
+        segments.removeAll(group);
+        segments.add(merged);
+        for (Segment segment : group) {
+            delete(segment);
+        }
+    }
+
+    private static void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException ex) {
+            // skipped when the store is opened again, as the merged segment replaces it
+            Logger.getLogger(MetricStore.class.getName()).log(Level.WARNING, "Could not delete merged segment " + segment.path, ex);
+        }
+    }
+
+    private Segment writeSegment(List<Row> rows, List<Integer> replaced) throws IOException {
+        List<Row> sorted = new ArrayList<>(rows);
+        sorted.sort(Comparator.comparingLong((Row row) -> key(row.instrument(), row.accession())).thenComparingLong(Row::time));
+        // row ranges of the keys, in key order
+        List<long[]> keys = new ArrayList<>();
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        int valueCount = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            Row row = sorted.get(i);
+            long key = key(row.instrument(), row.accession());
+            if (keys.isEmpty() || keys.get(keys.size() - 1)[0] != key) {
+                keys.add(new long[]{key, i});
+            }
+            minTime = Math.min(minTime, row.time());
+            maxTime = Math.max(maxTime, row.time());
+            valueCount += row.values().length;
+        }
+        Path segmentFile = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+        Path tmpFile = Files.createTempFile(directory, SEGMENT_PREFIX, ".tmp");
+        try {
+            try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+                out.writeInt(valueCount);
+                out.writeLong(minTime);
+                out.writeLong(maxTime);
+                out.writeInt(replaced.size());
+                for (int sequence : replaced) {
+                    out.writeInt(sequence);
+                }
+                out.writeInt(keys.size());
+                for (long[] key : keys) {
+                    out.writeLong(key[0]);
+                    out.writeInt((int) key[1]);
+                }
+                for (Row row : sorted) {
+                    out.writeLong(row.time());
+                }
+                for (Row row : sorted) {
+                    out.writeInt(row.instrument());
+                }
+                for (Row row : sorted) {
+                    out.writeInt(row.accession());
+                }
+                for (Row row : sorted) {
+                    out.writeInt(row.run());
+                }
+                for (Row row : sorted) {
+                    out.writeInt(row.column());
+                }
+                int offset = 0;
+                out.writeInt(offset);
+                for (Row row : sorted) {
+                    offset += row.values().length;
+                    out.writeInt(offset);
+                }
+                for (Row row : sorted) {
+                    for (double value : row.values()) {
+                        out.writeDouble(value);
+                    }
+                }
+            }
+            Files.move(tmpFile, segmentFile, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        return new Segment(segmentFile);
+    }
+
+    private static long key(int instrument, int accession) {
+        return ((long) instrument << 32) | (accession & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the values of a metric between two acquisition times, ordered by
+     * acquisition time. Buffered metrics that are not yet written to a segment
+     * are included.
+     *
+     * @param accession the accession of the metric.
+     * @param instrument the instrument, or null for all instruments.
+     * @param from the earliest acquisition time, inclusive.
+     * @param to the latest acquisition time, inclusive.
+     * @return the matching values.
+     */
+    public synchronized List<Point> query(String accession, String instrument, Instant from, Instant to) {
+        List<Point> points = new ArrayList<>();
+        Integer accessionId = ids.get(accession);
+        Integer instrumentId = instrument == null ? null : ids.get(instrument);
+        if (accessionId == null || (instrument != null && instrumentId == null)) {
+            return points;
+        }
+        long fromMillis = from.toEpochMilli();
+        long toMillis = to.toEpochMilli();
+        for (Segment segment : segments) {
+            if (segment.maxTime < fromMillis || segment.minTime > toMillis) {
+                continue;
+            }
+            for (int k = 0; k < segment.keys.length; k++) {
+                long key = segment.keys[k];
+                if ((int) key != accessionId || (instrumentId != null && (int) (key >>> 32) != instrumentId)) {
+                    continue;
+                }
+                int end = segment.keyEnd(k);
+                for (int i = segment.firstRowAtOrAfter(segment.keyStarts[k], end, fromMillis); i < end && segment.time(i) <= toMillis; i++) {
+                    points.add(toPoint(segment.row(i)));
+                }
+            }
+        }
+        for (Row row : buffer) {
+            if (row.accession() == accessionId && (instrumentId == null || row.instrument() == instrumentId)
+                    && row.time() >= fromMillis && row.time() <= toMillis) {
+                points.add(toPoint(row));
+            }
+        }
+        points.sort(Comparator.comparing(Point::acquisitionTime));
+        return points;
+    }
+
+    private Point toPoint(Row row) {
+        return new Point(
+                Instant.ofEpochMilli(row.time()),
+                strings.get(row.instrument()),
+                strings.get(row.run()),
+                row.column() == NO_COLUMN ? null : strings.get(row.column()),
+                row.values()
+        );
+    }
+
+    /**
+     * @return all instruments with stored metrics, sorted by name.
+     */
+    public synchronized Set<String> getInstruments() {
+        Set<String> instruments = new TreeSet<>();
+        for (Segment segment : segments) {
+            for (long key : segment.keys) {
+                instruments.add(strings.get((int) (key >>> 32)));
+            }
+        }
+        buffer.forEach(row -> instruments.add(strings.get(row.instrument())));
+        return instruments;
+    }
+
+    /**
+     * @return the number of segment files of the store.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Writes all buffered metrics and closes the dictionary.
+     *
+     * @throws IOException if the buffered metrics can not be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            dictionary.close();
+        }
+    }
+
+    /**
+     * Parses the start time property of an input file. Time stamps
+     * without an offset are taken as UTC. Without the property, the last
+     * modification time of the file is used, or the current time if the file
+     * is not accessible, as runs are usually appended right after acquisition.
+     *
+     * @param inputFile the input file.
+     * @return the acquisition time of the run.
+     */
+    public static Instant acquisitionTime(InputFile inputFile) {
+        for (CvParameter property : fileProperties(inputFile)) {
+            if (START_TIME_ACCESSION.equals(property.accession()) && property.value() != null) {
+                String text = property.value().toString();
+                try {
+                    return OffsetDateTime.parse(text).toInstant();
+                } catch (DateTimeParseException ex) {
+                    try {
+                        return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC);
+                    } catch (DateTimeParseException ex2) {
+                        Logger.getLogger(MetricStore.class.getName()).log(Level.WARNING, "Invalid start time {0} of {1}", new Object[]{text, inputFile.name()});
+                    }
+                }
+            }
+        }
+        try {
+            if (inputFile.location() != null && "file".equals(inputFile.location().getScheme())) {
+                return Files.getLastModifiedTime(Paths.get(inputFile.location())).toInstant();
+            }
+        } catch (IOException | RuntimeException ex) {
+            // fall through to the current time
+        }
+        return Instant.now();
+    }
+
+    /**
+     * Identifies the instrument of an input file by its serial number
+     * property, or by its instrument model property without a serial number.
+     *
+     * @param inputFile the input file.
+     * @return the instrument, or {@link #UNKNOWN_INSTRUMENT}.
+     */
+    public static String instrument(InputFile inputFile) {
+        String model = null;
+        for (CvParameter property : fileProperties(inputFile)) {
+            if (property.value() == null || property.value().toString().isBlank()) {
+                continue;
+            }
+            if (SERIAL_NUMBER_ACCESSION.equals(property.accession())) {
+                return property.value().toString();
+            }
+            if (INSTRUMENT_MODEL_ACCESSION.equals(property.accession())) {
+                model = property.value().toString();
+            }
+        }
+        return model == null ? UNKNOWN_INSTRUMENT : model;
+    }
+
+    private static List<CvParameter> fileProperties(InputFile inputFile) {
+        return inputFile.fileProperties() == null ? List.of() : inputFile.fileProperties();
+    }
+
+    /**
+     * A memory mapped segment file.
+     */
+    private static final class Segment {
+
+        private final Path path;
+        private final int sequence;
+        private final ByteBuffer buffer;
+        private final int rows;
+        private final int valueCount;
+        private final long minTime;
+        private final long maxTime;
+        private final List<Integer> replaced = new ArrayList<>();
+        private final long[] keys;
+        private final int[] keyStarts;
+        private final int timePos;
+        private final int instrumentPos;
+        private final int accessionPos;
+        private final int runPos;
+        private final int columnPos;
+        private final int offsetPos;
+        private final int valuePos;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            String name = path.getFileName().toString();
+            try {
+                this.sequence = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid segment file name " + path, ex);
+            }
+            try ( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.limit() < 2 * Integer.BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION) {
+                throw new IOException("Not a metric store segment or unsupported version: " + path);
+            }
+            buffer.position(2 * Integer.BYTES);
+            this.rows = buffer.getInt();
+            this.valueCount = buffer.getInt();
+            this.minTime = buffer.getLong();
+            this.maxTime = buffer.getLong();
+            int replacedCount = buffer.getInt();
+            for (int i = 0; i < replacedCount; i++) {
+                replaced.add(buffer.getInt());
+            }
+            int keyCount = buffer.getInt();
+            this.keys = new long[keyCount];
+            this.keyStarts = new int[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = buffer.getLong();
+                keyStarts[i] = buffer.getInt();
+            }
+            this.timePos = buffer.position();
+            this.instrumentPos = timePos + rows * Long.BYTES;
+            this.accessionPos = instrumentPos + rows * Integer.BYTES;
+            this.runPos = accessionPos + rows * Integer.BYTES;
+            this.columnPos = runPos + rows * Integer.BYTES;
+            this.offsetPos = columnPos + rows * Integer.BYTES;
+            this.valuePos = offsetPos + (rows + 1) * Integer.BYTES;
+            if (valuePos + (long) valueCount * Double.BYTES != buffer.limit()) {
+                throw new IOException("Truncated metric store segment: " + path);
+            }
+        }
+
+        int keyEnd(int key) {
+            return key + 1 < keyStarts.length ? keyStarts[key + 1] : rows;
+        }
+
+        int firstRowAtOrAfter(int low, int high, long time) {
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (time(mid) < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        long time(int row) {
+            return buffer.getLong(timePos + row * Long.BYTES);
+        }
+
+        int instrument(int row) {
+            return buffer.getInt(instrumentPos + row * Integer.BYTES);
+        }
+
+        int accession(int row) {
+            return buffer.getInt(accessionPos + row * Integer.BYTES);
+        }
+
+        Row row(int row) {
+            int start = buffer.getInt(offsetPos + row * Integer.BYTES);
+            int end = buffer.getInt(offsetPos + (row + 1) * Integer.BYTES);
+            double[] values = new double[end - start];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = buffer.getDouble(valuePos + (start + i) * Double.BYTES);
+            }
+            return new Row(time(row), instrument(row), accession(row), buffer.getInt(runPos + row * Integer.BYTES), buffer.getInt(columnPos + row * Integer.BYTES), values);
+        }
+    }
+}
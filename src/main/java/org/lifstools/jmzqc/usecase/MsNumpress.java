@@ -0,0 +1,195 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+/**
+ * Decoders for the MS-Numpress compression schemes linear ({@code MS:1002312}),
+ * positive integer ({@code MS:1002313}) and short logged float
+ * ({@code MS:1002314}), following the reference implementation at
+ * https://github.com/ms-numpress/ms-numpress. Results are written into a
+ * caller-provided array, which is grown if needed.
+ *
+ * @author Nils Hoffmann
+ */
+final class MsNumpress {
+
+    private MsNumpress() {
+    }
+
+    /**
+     * @return an upper bound for the number of values encoded in
+     * {@code length} bytes with the given scheme.
+     */
+    static int maxDecodedLength(BinaryDataArray.Numpress scheme, int length) {
+        return switch (scheme) {
+            case LINEAR ->
+                length < 12 ? 0 : length < 16 ? 1 : 2 + (length - 16) * 2;
+            case PIC ->
+                length * 2;
+            case SLOF ->
+                Math.max(0, (length - 8) / 2);
+            case NONE ->
+                0;
+        };
+    }
+
+    /**
+     * Decodes numpress linear data.
+     *
+     * @return the number of decoded values.
+     * @throws IllegalArgumentException if the data is corrupt.
+     */
+    static int decodeLinear(byte[] data, int length, double[] result) {
+        if (length < 8) {
+            throw new IllegalArgumentException("Numpress linear data is shorter than its fixed point");
+        }
+        double fixedPoint = decodeFixedPoint(data);
+        if (length < 12) {
+            return 0;
+        }
+        long previous = decodeUnsignedInt(data, 8);
+        result[0] = previous / fixedPoint;
+        if (length == 12) {
+            return 1;
+        }
+        if (length < 16) {
+            throw new IllegalArgumentException("Numpress linear data is truncated");
+        }
+        long current = decodeUnsignedInt(data, 12);
+        result[1] = current / fixedPoint;
+        int count = 2;
+        HalfByteReader reader = new HalfByteReader(data, 16, length);
+        while (reader.hasNext()) {
+            long extrapolated = current + (current - previous);
+            long value = extrapolated + reader.nextInt();
+            result[count++] = value / fixedPoint;
+            previous = current;
+            current = value;
+        }
+        return count;
+    }
+
+    /**
+     * Decodes numpress positive integer data.
+     *
+     * @return the number of decoded values.
+     * @throws IllegalArgumentException if the data is corrupt.
+     */
+    static int decodePic(byte[] data, int length, double[] result) {
+        int count = 0;
+        HalfByteReader reader = new HalfByteReader(data, 0, length);
+        while (reader.hasNext()) {
+            result[count++] = reader.nextInt() & 0xffffffffL;
+        }
+        return count;
+    }
+
+    /**
+     * Decodes numpress short logged float data.
+     *
+     * @return the number of decoded values.
+     * @throws IllegalArgumentException if the data is corrupt.
+     */
+    static int decodeSlof(byte[] data, int length, double[] result) {
+        if (length < 8) {
+            throw new IllegalArgumentException("Numpress slof data is shorter than its fixed point");
+        }
+        double fixedPoint = decodeFixedPoint(data);
+        int count = 0;
+        for (int i = 8; i + 1 < length; i += 2) {
+            int value = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8);
+            result[count++] = Math.exp(value / fixedPoint) - 1;
+        }
+        return count;
+    }
+
+    private static double decodeFixedPoint(byte[] data) {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (data[i] & 0xff);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long decodeUnsignedInt(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (data[offset + i] & 0xffL) << (8 * i);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the variable length integers of the linear and pic schemes, which
+     * are stored as half bytes, high half first. The first half byte of each
+     * integer is 0-8 for the number of leading zero half bytes, or 9-15 for 1-7
+     * leading 0xf half bytes; the remaining half bytes follow least
+     * significant first.
+     */
+    private static final class HalfByteReader {
+
+        private final byte[] data;
+        private final int length;
+        private int position;
+        private boolean lowHalf;
+
+        HalfByteReader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.length = length;
+        }
+
+        boolean hasNext() {
+            if (position >= length) {
+                return false;
+            }
+            // a single low half byte of 0 is padding, 8 encodes a zero
+            return !(position == length - 1 && lowHalf && (data[position] & 0xf) != 0x8);
+        }
+
+        int nextInt() {
+            int head = next();
+            int leading;
+            int value = 0;
+            if (head <= 8) {
+                leading = head;
+            } else {
+                leading = head - 8;
+                for (int i = 0; i < leading; i++) {
+                    value |= 0xf0000000 >>> (4 * i);
+                }
+            }
+            for (int i = 0; i < 8 - leading; i++) {
+                value |= next() << (4 * i);
+            }
+            return value;
+        }
+
+        private int next() {
+            if (position >= length) {
+                throw new IllegalArgumentException("Numpress data is truncated");
+            }
+            int halfByte;
+            if (lowHalf) {
+                halfByte = data[position++] & 0xf;
+            } else {
+                halfByte = (data[position] & 0xff) >>> 4;
+            }
+            lowHalf = !lowHalf;
+            return halfByte;
+        }
+    }
+}
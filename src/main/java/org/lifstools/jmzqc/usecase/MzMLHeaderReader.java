@@ -0,0 +1,623 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Single-pass StAX reader for mzML files that only extracts spectrum metadata.
+ * Binary data arrays and product lists are skipped without being decoded, so
+ * memory use does not depend on the size of the file. If peaks are requested,
+ * the m/z and intensity arrays are kept as base64 text, and only decoded when
+ * a consumer asks for them.
+ *
+ * @author Nils Hoffmann
+ */
+public class MzMLHeaderReader {
+
+    public static record Summary(long spectrumCount, long chromatogramCount) {
+
+    }
+
+    static record CvEntry(String accession, String value, String unitAccession, String unitName) {
+
+    }
+
+    /**
+     * Acquisition details from the header of an mzML file. Any component may
+     * be null if the file does not declare it.
+     *
+     * @param startTimeStamp the start time stamp of the run.
+     * @param modelAccession the accession of the instrument model term.
+     * @param modelName the name of the instrument model term.
+     * @param serialNumber the instrument serial number.
+     */
+    static record RunInfo(String startTimeStamp, String modelAccession, String modelName, String serialNumber) {
+
+    }
+
+    private static final String SERIAL_NUMBER_ACCESSION = "MS:1000529";
+    private static final String CUSTOMIZATION_ACCESSION = "MS:1000032";
+
+    private final boolean peaks;
+
+    /**
+     * Creates a reader that skips all peak arrays.
+     */
+    public MzMLHeaderReader() {
+        this(false);
+    }
+
+    /**
+     * @param peaks if true, keep the m/z and intensity arrays of every
+     * spectrum for lazy decoding, see {@link SpectrumHeader#getMzArray()}.
+     */
+    public MzMLHeaderReader(boolean peaks) {
+        this.peaks = peaks;
+    }
+
+    /**
+     * Reads all spectrum headers from the given mzML or indexedmzML file.
+     *
+     * @param mzML the file to read.
+     * @param consumer receives one reused {@link SpectrumHeader} per spectrum.
+     * @return the number of spectra and chromatograms in the file.
+     * @throws IOException if the file can not be read or is not well formed.
+     */
+    public Summary read(Path mzML, Consumer<SpectrumHeader> consumer) throws IOException {
+        try ( InputStream in = new BufferedInputStream(Files.newInputStream(mzML), 1 << 16)) {
+            XMLStreamReader reader = createInputFactory().createXMLStreamReader(in);
+            try {
+                return read(reader, consumer);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("Failed to read mzML file " + mzML, ex);
+        }
+    }
+
+    static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newDefaultFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+
+    /**
+     * Reads the referenceable param groups, which are defined before the
+     * run. Reading stops at the start of the run.
+     *
+     * @param mzML the file to read.
+     * @return the cv params per param group id.
+     * @throws IOException if the file can not be read or is not well formed.
+     */
+    Map<String, List<CvEntry>> readParamGroups(Path mzML) throws IOException {
+        Map<String, List<CvEntry>> paramGroups = new HashMap<>();
+        try ( InputStream in = new BufferedInputStream(Files.newInputStream(mzML), 1 << 16)) {
+            XMLStreamReader reader = createInputFactory().createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    if ("referenceableParamGroup".equals(reader.getLocalName())) {
+                        readParamGroup(reader, paramGroups);
+                    } else if ("run".equals(reader.getLocalName())) {
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("Failed to read mzML file " + mzML, ex);
+        }
+        return paramGroups;
+    }
+
+    /**
+     * Reads the start time stamp of the run and the instrument of the first
+     * instrument configuration. The first cvParam of the configuration,
+     * directly or from a referenced param group, that carries no value and is
+     * neither the serial number nor a customization is taken as the model.
+     * Reading stops at the start of the run.
+     *
+     * @param mzML the file to read.
+     * @return the acquisition details.
+     * @throws IOException if the file can not be read or is not well formed.
+     */
+    RunInfo readRunInfo(Path mzML) throws IOException {
+        Map<String, List<String[]>> paramGroups = new HashMap<>();
+        List<String[]> instrumentParams = null;
+        String startTimeStamp = null;
+        try ( InputStream in = new BufferedInputStream(Files.newInputStream(mzML), 1 << 16)) {
+            XMLStreamReader reader = createInputFactory().createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String name = reader.getLocalName();
+                    if ("referenceableParamGroup".equals(name)) {
+                        String id = reader.getAttributeValue(null, "id");
+                        List<String[]> params = readNamedParams(reader, paramGroups);
+                        if (id != null) {
+                            paramGroups.put(id, params);
+                        }
+                    } else if ("instrumentConfiguration".equals(name) && instrumentParams == null) {
+                        instrumentParams = readNamedParams(reader, paramGroups);
+                    } else if ("run".equals(name)) {
+                        startTimeStamp = reader.getAttributeValue(null, "startTimeStamp");
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("Failed to read mzML file " + mzML, ex);
+        }
+        String[] model = null;
+        String serialNumber = null;
+        for (String[] param : instrumentParams == null ? List.<String[]>of() : instrumentParams) {
+            if (SERIAL_NUMBER_ACCESSION.equals(param[0])) {
+                serialNumber = param[2];
+            } else if (model == null && !CUSTOMIZATION_ACCESSION.equals(param[0]) && (param[2] == null || param[2].isEmpty())) {
+                // model terms carry no value, unlike the other instrument attributes
+                model = param;
+            }
+        }
+        return new RunInfo(startTimeStamp, model == null ? null : model[0], model == null ? null : model[1], serialNumber);
+    }
+
+    /**
+     * Reads the accession, name and value of the cvParams that are direct
+     * children of the current element, resolving param group references, and
+     * skips all nested elements.
+     */
+    private List<String[]> readNamedParams(XMLStreamReader reader, Map<String, List<String[]>> paramGroups) throws XMLStreamException {
+        List<String[]> params = new ArrayList<>();
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return params;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            switch (reader.getLocalName()) {
+                case "cvParam" ->
+                    params.add(new String[]{
+                        reader.getAttributeValue(null, "accession"),
+                        reader.getAttributeValue(null, "name"),
+                        reader.getAttributeValue(null, "value")
+                    });
+                case "referenceableParamGroupRef" ->
+                    params.addAll(paramGroups.getOrDefault(reader.getAttributeValue(null, "ref"), List.of()));
+                default -> {
+                }
+            }
+            skipElement(reader);
+        }
+    }
+
+    /**
+     * Reads consecutive spectrum elements from a fragment of an mzML file.
+     * The fragment must be wrapped in a single root element, and reading
+     * stops after {@code maxSpectra} spectra.
+     *
+     * @param fragment the wrapped fragment.
+     * @param paramGroups the param groups of the file, see
+     * {@link #readParamGroups(Path)}.
+     * @param consumer receives one reused {@link SpectrumHeader} per spectrum.
+     * @param maxSpectra the number of spectra to read.
+     * @return the number of spectra read.
+     * @throws IOException if the fragment is not well formed.
+     */
+    long readSpectra(InputStream fragment, Map<String, List<CvEntry>> paramGroups, Consumer<SpectrumHeader> consumer, long maxSpectra) throws IOException {
+        SpectrumHeader header = new SpectrumHeader();
+        long spectra = 0;
+        try {
+            XMLStreamReader reader = createInputFactory().createXMLStreamReader(fragment, "UTF-8");
+            try {
+                while (spectra < maxSpectra && reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && "spectrum".equals(reader.getLocalName())) {
+                        readSpectrum(reader, header, paramGroups);
+                        spectra++;
+                        consumer.accept(header);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("Failed to read mzML fragment", ex);
+        }
+        return spectra;
+    }
+
+    private Summary read(XMLStreamReader reader, Consumer<SpectrumHeader> consumer) throws XMLStreamException {
+        SpectrumHeader header = new SpectrumHeader();
+        Map<String, List<CvEntry>> paramGroups = new HashMap<>();
+        long spectra = 0;
+        long chromatograms = 0;
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            switch (reader.getLocalName()) {
+                case "referenceableParamGroup" ->
+                    readParamGroup(reader, paramGroups);
+                case "spectrum" -> {
+                    readSpectrum(reader, header, paramGroups);
+                    spectra++;
+                    consumer.accept(header);
+                }
+                case "chromatogramList" ->
+                    chromatograms += countChildren(reader, "chromatogram");
+                default -> {
+                }
+            }
+        }
+        return new Summary(spectra, chromatograms);
+    }
+
+    private void readParamGroup(XMLStreamReader reader, Map<String, List<CvEntry>> paramGroups) throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        List<CvEntry> entries = new ArrayList<>();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if ("cvParam".equals(reader.getLocalName())) {
+                    entries.add(readCvEntry(reader));
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        if (id != null) {
+            paramGroups.put(id, entries);
+        }
+    }
+
+    private void readSpectrum(XMLStreamReader reader, SpectrumHeader header, Map<String, List<CvEntry>> paramGroups) throws XMLStreamException {
+        header.reset();
+        header.peaks = peaks;
+        header.id = reader.getAttributeValue(null, "id");
+        header.index = parseInt(reader.getAttributeValue(null, "index"), -1);
+        header.defaultArrayLength = parseInt(reader.getAttributeValue(null, "defaultArrayLength"), 0);
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "precursorList" ->
+                        readPrecursors(reader, header);
+                    case "binaryDataArrayList" -> {
+                        if (peaks) {
+                            readBinaryDataArrays(reader, header, paramGroups);
+                        } else {
+                            skipElement(reader);
+                        }
+                    }
+                    case "productList" ->
+                        skipElement(reader);
+                    case "cvParam" -> {
+                        apply(header, readCvEntry(reader));
+                        depth++;
+                    }
+                    case "referenceableParamGroupRef" -> {
+                        for (CvEntry entry : paramGroups.getOrDefault(reader.getAttributeValue(null, "ref"), List.of())) {
+                            apply(header, entry);
+                        }
+                        depth++;
+                    }
+                    default ->
+                        depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads the charge and selected ion m/z of the first precursor and leaves
+     * the reader positioned on the end of the precursor list.
+     */
+    private void readPrecursors(XMLStreamReader reader, SpectrumHeader header) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if ("cvParam".equals(reader.getLocalName())) {
+                    String accession = reader.getAttributeValue(null, "accession");
+                    if ("MS:1000041".equals(accession) && header.precursorCharge == 0) {
+                        header.precursorCharge = parseInt(reader.getAttributeValue(null, "value"), 0);
+                    } else if ("MS:1000744".equals(accession) && Double.isNaN(header.precursorMz)) {
+                        header.precursorMz = parseDouble(reader.getAttributeValue(null, "value"));
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Keeps the base64 text of the m/z and intensity arrays and leaves the
+     * reader positioned on the end of the binary data array list. Other arrays
+     * are skipped.
+     */
+    private void readBinaryDataArrays(XMLStreamReader reader, SpectrumHeader header, Map<String, List<CvEntry>> paramGroups) throws XMLStreamException {
+        ArrayDescription description = new ArrayDescription();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "binaryDataArray" -> {
+                        description.reset();
+                        depth++;
+                    }
+                    case "cvParam" -> {
+                        description.apply(reader.getAttributeValue(null, "accession"));
+                        depth++;
+                    }
+                    case "referenceableParamGroupRef" -> {
+                        for (CvEntry entry : paramGroups.getOrDefault(reader.getAttributeValue(null, "ref"), List.of())) {
+                            description.apply(entry.accession());
+                        }
+                        depth++;
+                    }
+                    case "binary" ->
+                        readBinary(reader, description.target(header), description);
+                    default ->
+                        depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private void readBinary(XMLStreamReader reader, BinaryDataArray target, ArrayDescription description) throws XMLStreamException {
+        if (target == null) {
+            skipElement(reader);
+            return;
+        }
+        target.reset();
+        target.dataType = description.dataType;
+        target.zlib = description.zlib;
+        target.numpress = description.numpress;
+        int event;
+        while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE) {
+                target.appendBase64(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+    }
+
+    /**
+     * The encoding and type of one binary data array, collected from its cv
+     * params.
+     */
+    private static final class ArrayDescription {
+
+        BinaryDataArray.DataType dataType;
+        boolean zlib;
+        BinaryDataArray.Numpress numpress;
+        boolean mz;
+        boolean intensity;
+
+        void reset() {
+            dataType = BinaryDataArray.DataType.FLOAT64;
+            zlib = false;
+            numpress = BinaryDataArray.Numpress.NONE;
+            mz = false;
+            intensity = false;
+        }
+
+        void apply(String accession) {
+            if (accession == null) {
+                return;
+            }
+            switch (accession) {
+                case "MS:1000521" ->
+                    dataType = BinaryDataArray.DataType.FLOAT32;
+                case "MS:1000523" ->
+                    dataType = BinaryDataArray.DataType.FLOAT64;
+                case "MS:1000519" ->
+                    dataType = BinaryDataArray.DataType.INT32;
+                case "MS:1000522" ->
+                    dataType = BinaryDataArray.DataType.INT64;
+                case "MS:1000574" ->
+                    zlib = true;
+                case "MS:1002312" ->
+                    numpress = BinaryDataArray.Numpress.LINEAR;
+                case "MS:1002313" ->
+                    numpress = BinaryDataArray.Numpress.PIC;
+                case "MS:1002314" ->
+                    numpress = BinaryDataArray.Numpress.SLOF;
+                case "MS:1002746" -> {
+                    numpress = BinaryDataArray.Numpress.LINEAR;
+                    zlib = true;
+                }
+                case "MS:1002747" -> {
+                    numpress = BinaryDataArray.Numpress.PIC;
+                    zlib = true;
+                }
+                case "MS:1002748" -> {
+                    numpress = BinaryDataArray.Numpress.SLOF;
+                    zlib = true;
+                }
+                case "MS:1000514" ->
+                    mz = true;
+                case "MS:1000515" ->
+                    intensity = true;
+                default -> {
+                }
+            }
+        }
+
+        BinaryDataArray target(SpectrumHeader header) {
+            if (mz) {
+                return header.mzArray;
+            }
+            return intensity ? header.intensityArray : null;
+        }
+    }
+
+    private CvEntry readCvEntry(XMLStreamReader reader) {
+        return new CvEntry(
+                reader.getAttributeValue(null, "accession"),
+                reader.getAttributeValue(null, "value"),
+                reader.getAttributeValue(null, "unitAccession"),
+                reader.getAttributeValue(null, "unitName")
+        );
+    }
+
+    private void apply(SpectrumHeader header, CvEntry entry) {
+        if (entry.accession() == null) {
+            return;
+        }
+        switch (entry.accession()) {
+            case "MS:1000511" ->
+                header.msLevel = parseInt(entry.value(), 1);
+            case "MS:1000285" ->
+                header.tic = parseFloat(entry.value());
+            case "MS:1000505" -> {
+                header.basePeakIntensity = parseFloat(entry.value());
+                header.basePeakIntensityPresent = true;
+                header.basePeakIntensityUnit = entry.unitAccession();
+            }
+            case "MS:1000528" ->
+                header.lowestObservedMz = parseDouble(entry.value());
+            case "MS:1000527" ->
+                header.highestObservedMz = parseDouble(entry.value());
+            case "MS:1000501" ->
+                header.scanWindowLowerLimit = minIgnoringNaN(header.scanWindowLowerLimit, parseDouble(entry.value()));
+            case "MS:1000500" ->
+                header.scanWindowUpperLimit = maxIgnoringNaN(header.scanWindowUpperLimit, parseDouble(entry.value()));
+            case "MS:1000016" -> {
+                float scanStartTime = parseFloat(entry.value());
+                // retention times are reported in seconds, like msdk does
+                if ("UO:0000031".equals(entry.unitAccession()) || "minute".equals(entry.unitName())) {
+                    scanStartTime *= 60.0f;
+                }
+                header.retentionTime = scanStartTime;
+            }
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Counts the direct children with the given name of the current element
+     * and leaves the reader positioned on its end element.
+     */
+    private long countChildren(XMLStreamReader reader, String childName) throws XMLStreamException {
+        long count = 0;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1 && childName.equals(reader.getLocalName())) {
+                    count++;
+                }
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Skips the current element including all of its children, without
+     * materializing any character content.
+     */
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static double minIgnoringNaN(double current, double value) {
+        return Double.isNaN(current) ? value : Math.min(current, value);
+    }
+
+    private static double maxIgnoringNaN(double current, double value) {
+        return Double.isNaN(current) ? value : Math.max(current, value);
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    private static float parseFloat(String value) {
+        if (value == null || value.isEmpty()) {
+            return Float.NaN;
+        }
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException ex) {
+            return Float.NaN;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null || value.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The byte offset index of an indexedmzML file. Only spectrum offsets are
+ * kept, chromatograms are only counted.
+ *
+ * @author Nils Hoffmann
+ */
+final class MzMLIndex {
+
+    private static final int TAIL_BYTES = 4096;
+    private static final Pattern INDEX_LIST_OFFSET = Pattern.compile("<indexListOffset>\\s*(\\d+)\\s*</indexListOffset>");
+    private static final byte[] SPECTRUM_LIST_END = "</spectrumList>".getBytes(StandardCharsets.US_ASCII);
+
+    private final long[] spectrumOffsets;
+    private final long chromatogramCount;
+    private final long indexListOffset;
+
+    private MzMLIndex(long[] spectrumOffsets, long chromatogramCount, long indexListOffset) {
+        this.spectrumOffsets = spectrumOffsets;
+        this.chromatogramCount = chromatogramCount;
+        this.indexListOffset = indexListOffset;
+    }
+
+    /**
+     * Reads the index of an indexedmzML file.
+     *
+     * @param channel the open file.
+     * @return the index, or an empty optional if the file has no usable index.
+     * @throws IOException if the file can not be read.
+     */
+    static Optional<MzMLIndex> read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(TAIL_BYTES, size));
+        readFully(channel, tail, size - tail.capacity());
+        Matcher matcher = INDEX_LIST_OFFSET.matcher(StandardCharsets.US_ASCII.decode(tail));
+        if (!matcher.find()) {
+            return Optional.empty();
+        }
+        long indexListOffset = Long.parseLong(matcher.group(1));
+        if (indexListOffset <= 0 || indexListOffset >= size) {
+            return Optional.empty();
+        }
+        long[] offsets = new long[1024];
+        int spectra = 0;
+        long chromatograms = 0;
+        // the index list is balanced, everything after it is not read
+        InputStream in = Channels.newInputStream(channel.position(indexListOffset));
+        try {
+            XMLStreamReader reader = MzMLHeaderReader.createInputFactory().createXMLStreamReader(in, "UTF-8");
+            String indexName = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "index" ->
+                            indexName = reader.getAttributeValue(null, "name");
+                        case "offset" -> {
+                            String text = reader.getElementText().trim();
+                            if ("spectrum".equals(indexName)) {
+                                if (spectra == offsets.length) {
+                                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                                }
+                                offsets[spectra++] = Long.parseLong(text);
+                            } else if ("chromatogram".equals(indexName)) {
+                                chromatograms++;
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "indexList".equals(reader.getLocalName())) {
+                    break;
+                }
+            }
+        } catch (XMLStreamException | NumberFormatException ex) {
+            return Optional.empty();
+        }
+        long[] spectrumOffsets = Arrays.copyOf(offsets, spectra);
+        for (int i = 1; i < spectra; i++) {
+            if (spectrumOffsets[i] <= spectrumOffsets[i - 1]) {
+                return Optional.empty();
+            }
+        }
+        if (spectra > 0 && (spectrumOffsets[0] <= 0 || spectrumOffsets[spectra - 1] >= indexListOffset)) {
+            return Optional.empty();
+        }
+        return Optional.of(new MzMLIndex(spectrumOffsets, chromatograms, indexListOffset));
+    }
+
+    int getSpectrumCount() {
+        return spectrumOffsets.length;
+    }
+
+    long getSpectrumOffset(int index) {
+        return spectrumOffsets[index];
+    }
+
+    long getChromatogramCount() {
+        return chromatogramCount;
+    }
+
+    /**
+     * Finds the end of the last spectrum, which is the start of the closing
+     * {@code </spectrumList>} tag.
+     *
+     * @param channel the open file.
+     * @return the offset of {@code </spectrumList>}.
+     * @throws IOException if the tag is not found.
+     */
+    long findSpectrumListEnd(FileChannel channel) throws IOException {
+        long position = spectrumOffsets[spectrumOffsets.length - 1];
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        int matched = 0;
+        while (position < indexListOffset) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                matched = b == SPECTRUM_LIST_END[matched] ? matched + 1 : (b == SPECTRUM_LIST_END[0] ? 1 : 0);
+                if (matched == SPECTRUM_LIST_END.length) {
+                    return position + i + 1 - SPECTRUM_LIST_END.length;
+                }
+            }
+            position += read;
+        }
+        throw new IOException("Missing </spectrumList> after the last indexed spectrum");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+}
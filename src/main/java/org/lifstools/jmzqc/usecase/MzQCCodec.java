@@ -0,0 +1,476 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactoryBuilder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.networknt.schema.JsonSchema;
+import com.networknt.schema.JsonSchemaFactory;
+import com.networknt.schema.SpecVersion;
+import com.networknt.schema.SpecVersionDetector;
+import com.networknt.schema.ValidationMessage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.lifstools.jmzqc.Converter;
+import org.lifstools.jmzqc.Coordinate;
+import org.lifstools.jmzqc.MzQC;
+
+/**
+ * Shared JSON codec for mzQC documents. The {@link ObjectMapper} is configured
+ * once, on first use, and its readers and writers are immutable and thread
+ * safe, so they can be reused for any number of documents. This also keeps
+ * Jackson's serializer cache warm.
+ *
+ * @author Nils Hoffmann
+ */
+public final class MzQCCodec {
+
+    /**
+     * Options for writing mzQC files.
+     *
+     * @param pretty indent the JSON output.
+     * @param gzip compress the file with gzip, using the ".mzQC.gz" extension.
+     * @param sidecar move large numeric arrays to a binary sidecar file, see
+     * {@link BinarySidecar}.
+     */
+    public static record WriteOptions(boolean pretty, boolean gzip, boolean sidecar) {
+
+        /**
+         * Indented, uncompressed JSON without sidecar.
+         */
+        public static final WriteOptions DEFAULT = new WriteOptions(true, false, false);
+
+        /**
+         * @return the file extension for mzQC files written with these
+         * options.
+         */
+        public String fileExtension() {
+            return gzip ? ".mzQC.gz" : ".mzQC";
+        }
+    }
+
+    /**
+     * Class path location of the mzQC JSON schema in the jmzqc jar, from which
+     * jmzqc generates its model classes.
+     */
+    static final String SCHEMA_RESOURCE = "/schema/mzqc_schema.json";
+
+    /**
+     * Encode buffers larger than this are not kept for reuse.
+     */
+    static final int MAX_RETAINED_BUFFER_BYTES = 16 * 1024 * 1024;
+
+    private static final class Holder {
+
+        private static final MzQCCodec INSTANCE = new MzQCCodec();
+    }
+
+    private static final class SchemaHolder {
+
+        private static final Optional<JsonSchema> SCHEMA = loadSchema();
+    }
+
+    /**
+     * Byte array output stream that exposes its array, so that serialized
+     * documents do not have to be copied.
+     */
+    private static final class EncodeBuffer extends ByteArrayOutputStream {
+
+        EncodeBuffer() {
+            super(1 << 16);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * An mzQC document that was serialized once and validated. The bytes
+     * belong to a per-thread buffer, which is reused by the next call of
+     * {@link #encode(MzQC, boolean)} on the same thread.
+     */
+    public static final class Encoded {
+
+        private final byte[] bytes;
+        private final int length;
+        private final Set<ValidationMessage> messages;
+
+        private Encoded(byte[] bytes, int length, Set<ValidationMessage> messages) {
+            this.bytes = bytes;
+            this.length = length;
+            this.messages = messages;
+        }
+
+        public boolean isValid() {
+            return messages.isEmpty();
+        }
+
+        /**
+         * @return the validation messages, empty if the document is valid.
+         */
+        public Set<ValidationMessage> getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return the number of serialized bytes.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Writes the serialized bytes. The stream is flushed, but not closed.
+         *
+         * @param out the output stream.
+         * @throws IOException if writing fails.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+            out.flush();
+        }
+
+        /**
+         * @param maxChars the maximum number of characters.
+         * @return the start of the serialized document, e.g. for a preview.
+         */
+        public String head(int maxChars) {
+            String head = new String(bytes, 0, Math.min(length, maxChars), StandardCharsets.UTF_8);
+            return head.length() > maxChars ? head.substring(0, maxChars) : head;
+        }
+    }
+
+    private final ThreadLocal<EncodeBuffer> encodeBuffers = ThreadLocal.withInitial(EncodeBuffer::new);
+
+    private final ObjectMapper mapper;
+    private final ObjectWriter prettyWriter;
+    private final ObjectWriter compactWriter;
+    private final ObjectReader reader;
+
+    private MzQCCodec() {
+        JsonFactoryBuilder jfb = new JsonFactoryBuilder().
+                enable(JsonReadFeature.ALLOW_TRAILING_COMMA);
+        mapper = new ObjectMapper(jfb.build());
+        mapper.findAndRegisterModules();
+        mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        mapper.configure(JsonParser.Feature.ALLOW_COMMENTS, true);
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
+
+        SimpleModule module = new SimpleModule();
+        module.addDeserializer(OffsetDateTime.class, new JsonDeserializer<OffsetDateTime>() {
+            @Override
+            public OffsetDateTime deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException, JsonProcessingException {
+                String value = jsonParser.getText();
+                return Converter.parseDateTimeString(value);
+            }
+        });
+        mapper.registerModule(module);
+        compactWriter = mapper.writerFor(Coordinate.class).without(SerializationFeature.INDENT_OUTPUT);
+        prettyWriter = compactWriter.with(SerializationFeature.INDENT_OUTPUT);
+        reader = mapper.readerFor(Coordinate.class);
+    }
+
+    /**
+     * @return the shared codec instance.
+     */
+    public static MzQCCodec getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @return the configured mapper. It is shared, so callers must not change
+     * its configuration.
+     */
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @return a writer for {@link Coordinate}s that indents its output.
+     */
+    public ObjectWriter getWriter() {
+        return prettyWriter;
+    }
+
+    /**
+     * @param pretty whether the output should be indented.
+     * @return a writer for {@link Coordinate}s.
+     */
+    public ObjectWriter getWriter(boolean pretty) {
+        return pretty ? prettyWriter : compactWriter;
+    }
+
+    /**
+     * @return a reader for {@link Coordinate}s.
+     */
+    public ObjectReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Serializes the mzQC document straight to the output stream, followed by
+     * a line break. The stream is flushed, but not closed.
+     *
+     * @param out the output stream.
+     * @param mzQC the mzQC document.
+     * @param pretty whether the output should be indented.
+     * @throws IOException if writing fails.
+     */
+    public void write(OutputStream out, MzQC mzQC, boolean pretty) throws IOException {
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("serialize", null)) {
+            getWriter(pretty).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET).writeValue(out, new Coordinate(mzQC));
+            out.write(System.lineSeparator().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes the mzQC document to a file.
+     *
+     * @param file the output file.
+     * @param mzQC the mzQC document.
+     * @param options the write options.
+     * @throws IOException if writing fails.
+     */
+    public void write(Path file, MzQC mzQC, WriteOptions options) throws IOException {
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("write", file.getFileName().toString())) {
+            MzQC document = options.sidecar() ? BinarySidecar.extract(mzQC, BinarySidecar.sidecarFor(file)) : mzQC;
+            try ( OutputStream out = Files.newOutputStream(file)) {
+                if (options.gzip()) {
+                    try ( GZIPOutputStream gzipOut = new GZIPOutputStream(out, 1 << 16)) {
+                        write(gzipOut, document, options.pretty());
+                    }
+                } else {
+                    write(new BufferedOutputStream(out, 1 << 16), document, options.pretty());
+                }
+            }
+            phase.bytes(Files.size(file));
+        }
+    }
+
+    /**
+     * Validates the mzQC document against the mzQC JSON schema.
+     *
+     * @param mzQC the mzQC document.
+     * @return the validation messages, empty if the document is valid.
+     */
+    public Set<ValidationMessage> validate(MzQC mzQC) {
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("validate", null)) {
+            if (SchemaHolder.SCHEMA.isPresent()) {
+                return SchemaHolder.SCHEMA.get().validate(mapper.valueToTree(new Coordinate(mzQC)));
+            }
+            return Converter.validate(mzQC);
+        }
+    }
+
+    /**
+     * Validates an mzQC document that is already parsed into a tree, e.g. a
+     * single quality wrapped into a minimal document.
+     *
+     * @param document the document tree, with the {@code mzQC} root field.
+     * @return the validation messages, empty if the document is valid.
+     * @throws IOException if the schema is not on the class path and the tree
+     * can not be bound for {@link Converter#validate(MzQC)}.
+     */
+    public Set<ValidationMessage> validate(JsonNode document) throws IOException {
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("validate", null)) {
+            if (SchemaHolder.SCHEMA.isPresent()) {
+                return SchemaHolder.SCHEMA.get().validate(document);
+            }
+            return Converter.validate(mapper.treeToValue(document, Coordinate.class).mzQC());
+        }
+    }
+
+    /**
+     * Serializes the mzQC document once into a reusable buffer and validates
+     * the serialized form against the cached, compiled mzQC schema. The same
+     * bytes can then be written with {@link Encoded#writeTo(OutputStream)}.
+     * If the schema is not on the class path, validation falls back to
+     * {@link Converter#validate(MzQC)}, which serializes the document again.
+     *
+     * @param mzQC the mzQC document.
+     * @param pretty whether the output should be indented.
+     * @return the serialized document and its validation messages.
+     * @throws IOException if serialization fails.
+     */
+    public Encoded encode(MzQC mzQC, boolean pretty) throws IOException {
+        EncodeBuffer buffer = encodeBuffers.get();
+        if (buffer.array().length > MAX_RETAINED_BUFFER_BYTES) {
+            buffer = new EncodeBuffer();
+            encodeBuffers.set(buffer);
+        }
+        buffer.reset();
+        write(buffer, mzQC, pretty);
+        Set<ValidationMessage> messages;
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("validate", null).bytes(buffer.size())) {
+            if (SchemaHolder.SCHEMA.isPresent()) {
+                messages = SchemaHolder.SCHEMA.get().validate(mapper.readTree(buffer.array(), 0, buffer.size()));
+            } else {
+                messages = Converter.validate(mzQC);
+            }
+        }
+        return new Encoded(buffer.array(), buffer.size(), messages);
+    }
+
+    /**
+     * Serializes and validates the mzQC document once, and writes it to a
+     * file only if it is valid.
+     *
+     * @param file the output file.
+     * @param mzQC the mzQC document.
+     * @param options the write options.
+     * @return the validation messages, empty if the file was written.
+     * @throws IOException if serialization or writing fails.
+     */
+    public Set<ValidationMessage> validateAndWrite(Path file, MzQC mzQC, WriteOptions options) throws IOException {
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("write", file.getFileName().toString())) {
+            Path sidecarFile = BinarySidecar.sidecarFor(file);
+            MzQC document = options.sidecar() ? BinarySidecar.extract(mzQC, sidecarFile) : mzQC;
+            Encoded encoded = encode(document, options.pretty());
+            if (!encoded.isValid()) {
+                if (options.sidecar()) {
+                    Files.deleteIfExists(sidecarFile);
+                }
+                return encoded.getMessages();
+            }
+            write(file, encoded, options.gzip());
+            phase.bytes(Files.size(file));
+            return Set.of();
+        }
+    }
+
+    /**
+     * Writes an encoded mzQC document to a file.
+     *
+     * @param file the output file.
+     * @param encoded the encoded document.
+     * @param gzip whether to compress the file with gzip.
+     * @throws IOException if writing fails.
+     */
+    public void write(Path file, Encoded encoded, boolean gzip) throws IOException {
+        try ( OutputStream out = Files.newOutputStream(file)) {
+            if (gzip) {
+                try ( GZIPOutputStream gzipOut = new GZIPOutputStream(out, 1 << 16)) {
+                    encoded.writeTo(gzipOut);
+                }
+            } else {
+                encoded.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Loads and compiles the schema once. If it is missing, a warning is
+     * logged once, and validation falls back to {@link Converter#validate(MzQC)}
+     * for the rest of the run.
+     */
+    private static Optional<JsonSchema> loadSchema() {
+        try ( InputStream in = Converter.class.getResourceAsStream(SCHEMA_RESOURCE)) {
+            if (in == null) {
+                Logger.getLogger(MzQCCodec.class.getName()).log(Level.WARNING, "mzQC schema " + SCHEMA_RESOURCE + " is not on the class path, documents are serialized a second time for validation.");
+                return Optional.empty();
+            }
+            JsonNode schemaNode = new ObjectMapper().readTree(in);
+            SpecVersion.VersionFlag versionFlag;
+            try {
+                versionFlag = SpecVersionDetector.detect(schemaNode);
+            } catch (RuntimeException ex) {
+                versionFlag = SpecVersion.VersionFlag.V201909;
+            }
+            return Optional.of(JsonSchemaFactory.getInstance(versionFlag).getSchema(schemaNode));
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(MzQCCodec.class.getName()).log(Level.WARNING, "Could not load mzQC schema from " + SCHEMA_RESOURCE + ", documents are serialized a second time for validation.", ex);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Reads an mzQC file that was written with any {@link WriteOptions}.
+     * Gzip compression is detected from the content and sidecar references
+     * are resolved relative to the directory of the file.
+     *
+     * @param file the mzQC file.
+     * @return the mzQC document.
+     * @throws IOException if reading or parsing fails.
+     */
+    public MzQC read(Path file) throws IOException {
+        MzQC mzQC;
+        try ( InputStream in = openMaybeGzipped(file)) {
+            mzQC = read(in);
+        }
+        Path baseDirectory = file.toAbsolutePath().getParent();
+        return BinarySidecar.resolve(mzQC, baseDirectory);
+    }
+
+    /**
+     * Opens a file for reading and decompresses it if it starts with the gzip
+     * magic bytes.
+     *
+     * @param file the file to open.
+     * @return a buffered input stream.
+     * @throws IOException if the file can not be opened.
+     */
+    public static InputStream openMaybeGzipped(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if (first == 0x1f && second == 0x8b) {
+            return new BufferedInputStream(new GZIPInputStream(in, 1 << 16), 1 << 16);
+        }
+        return in;
+    }
+
+    /**
+     * Reads an mzQC document. The stream is not closed.
+     *
+     * @param in the input stream.
+     * @return the mzQC document.
+     * @throws IOException if reading or parsing fails.
+     */
+    public MzQC read(InputStream in) throws IOException {
+        Coordinate coordinate = reader.without(JsonParser.Feature.AUTO_CLOSE_SOURCE).readValue(in);
+        return coordinate.mzQC();
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.networknt.schema.ValidationMessage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import org.lifstools.jmzqc.ControlledVocabulary;
+
+/**
+ * Combines many mzQC files into one document without binding them. The run
+ * qualities of all inputs are copied token by token into the output, followed
+ * by the set qualities, which are read in a second pass over the inputs that
+ * have any. Controlled vocabularies are collected while copying, and written
+ * once, without duplicates, at the end of the document. Duplicate analysis
+ * software entries within the metadata of a quality are dropped. Memory use
+ * thus depends on the largest quality, not on the number of inputs.
+ * <p>
+ * Sidecar references of the inputs are rewritten relative to the output file,
+ * so that the merged document still finds the sidecar files of the inputs.
+ * Contact details are taken from the first input that has them.
+ *
+ * @author Nils Hoffmann
+ */
+public class MzQCMerger {
+
+    /**
+     * The outcome of a merge.
+     *
+     * @param runQualities the number of run qualities written.
+     * @param setQualities the number of set qualities written.
+     * @param rejected the validation messages of the qualities that were not
+     * written, keyed by input file and position within the input.
+     */
+    public static record Result(int runQualities, int setQualities, Map<String, Set<ValidationMessage>> rejected) {
+
+    }
+
+    private final boolean validate;
+    private final MzQCCodec.WriteOptions writeOptions;
+    private final ObjectMapper mapper;
+
+    /**
+     * @param validate if true, every quality is validated against the mzQC
+     * schema on its own before it is written, and invalid qualities are
+     * skipped.
+     * @param writeOptions the options for the output file. Sidecar output is
+     * not supported, existing references are kept.
+     */
+    public MzQCMerger(boolean validate, MzQCCodec.WriteOptions writeOptions) {
+        this.validate = validate;
+        this.writeOptions = writeOptions;
+        this.mapper = MzQCCodec.getInstance().getMapper();
+    }
+
+    /**
+     * @param directory the directory to list.
+     * @return all mzQC files, optionally gzip compressed, directly within the
+     * directory, sorted by path.
+     * @throws IOException if the directory can not be listed.
+     */
+    public static List<Path> listInputFiles(Path directory) throws IOException {
+        try ( Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> {
+                        String name = path.getFileName().toString().toLowerCase();
+                        return name.endsWith(".mzqc") || name.endsWith(".mzqc.gz");
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Merges the input files into one output file. The output is written to a
+     * temporary file next to it and only replaces an existing output once all
+     * inputs have been merged. The output file itself is never read as input,
+     * e.g. when it is located in the listed input directory.
+     *
+     * @param inputFiles the mzQC files to merge, in output order.
+     * @param outputFile the merged file.
+     * @return the number of qualities written and the rejected qualities.
+     * @throws IOException if an input can not be read or parsed, or the output
+     * can not be written.
+     */
+    public Result merge(List<Path> inputFiles, Path outputFile) throws IOException {
+        Path target = outputFile.toAbsolutePath().normalize();
+        List<Path> inputs = new ArrayList<>(inputFiles.size());
+        for (Path inputFile : inputFiles) {
+            if (target.equals(inputFile.toAbsolutePath().normalize())) {
+                Logger.getLogger(MzQCMerger.class.getName()).log(Level.INFO, "Skipping the output file {0} as input", outputFile);
+            } else {
+                inputs.add(inputFile);
+            }
+        }
+        Path outputDirectory = target.getParent();
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("merge", outputFile.getFileName().toString())) {
+            Result result;
+            Path tmp = Files.createTempFile(outputDirectory, target.getFileName().toString(), ".tmp");
+            try {
+                try ( OutputStream out = Files.newOutputStream(tmp)) {
+                    if (writeOptions.gzip()) {
+                        try ( GZIPOutputStream gzipOut = new GZIPOutputStream(out, 1 << 16)) {
+                            result = merge(inputs, gzipOut, outputDirectory);
+                        }
+                    } else {
+                        result = merge(inputs, new BufferedOutputStream(out, 1 << 16), outputDirectory);
+                    }
+                }
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            phase.bytes(Files.size(target));
+            return result;
+        }
+    }
+
+    private Result merge(List<Path> inputFiles, OutputStream out, Path outputDirectory) throws IOException {
+        Merge merge = new Merge(outputDirectory);
+        try ( JsonGenerator generator = mapper.createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            if (writeOptions.pretty()) {
+                generator.useDefaultPrettyPrinter();
+            }
+            generator.writeStartObject();
+            generator.writeFieldName("mzQC");
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("runQualities");
+            List<Path> withSetQualities = new ArrayList<>();
+            for (Path inputFile : inputFiles) {
+                if (copy(inputFile, generator, merge, false)) {
+                    withSetQualities.add(inputFile);
+                }
+            }
+            generator.writeEndArray();
+            if (!withSetQualities.isEmpty()) {
+                generator.writeArrayFieldStart("setQualities");
+                for (Path inputFile : withSetQualities) {
+                    copy(inputFile, generator, merge, true);
+                }
+                generator.writeEndArray();
+            }
+            generator.writeFieldName("controlledVocabularies");
+            mapper.writeValue(generator, new ArrayList<>(merge.controlledVocabularies));
+            for (Map.Entry<String, String> field : merge.header.entrySet()) {
+                generator.writeStringField(field.getKey(), field.getValue());
+            }
+            generator.writeStringField("description", "Merged from " + inputFiles.size() + " mzQC files.");
+            generator.writeFieldName("creationDate");
+            mapper.writeValue(generator, OffsetDateTime.now());
+            generator.writeStringField("version", "1.0.0");
+            generator.writeEndObject();
+            generator.writeEndObject();
+            generator.writeRaw(System.lineSeparator());
+        }
+        out.flush();
+        return new Result(merge.runQualities, merge.setQualities, merge.rejected);
+    }
+
+    /**
+     * State of one merge.
+     */
+    private final class Merge {
+
+        final Path outputDirectory;
+        final Set<ControlledVocabulary> controlledVocabularies = new LinkedHashSet<>();
+        final Map<String, String> header = new LinkedHashMap<>();
+        final Map<String, Set<ValidationMessage>> rejected = new LinkedHashMap<>();
+        int runQualities;
+        int setQualities;
+
+        Merge(Path outputDirectory) {
+            this.outputDirectory = outputDirectory;
+        }
+    }
+
+    /**
+     * Rewrites sidecar locations of one input relative to the output.
+     */
+    private static record Sidecars(Path inputDirectory, Path outputDirectory) {
+
+        String relocate(String location) {
+            if (inputDirectory.equals(outputDirectory)) {
+                return location;
+            }
+            return outputDirectory.relativize(inputDirectory.resolve(location)).toString();
+        }
+    }
+
+    /**
+     * Copies either the run or the set qualities of one input.
+     *
+     * @return whether the input has set qualities.
+     */
+    private boolean copy(Path inputFile, JsonGenerator generator, Merge merge, boolean setQualities) throws IOException {
+        String listName = setQualities ? "setQualities" : "runQualities";
+        Path inputDirectory = inputFile.toAbsolutePath().getParent();
+        Sidecars sidecars = new Sidecars(inputDirectory, merge.outputDirectory);
+        boolean hasSetQualities = false;
+        try ( InputStream in = MzQCCodec.openMaybeGzipped(inputFile); JsonParser parser = mapper.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Not an mzQC document: " + inputFile);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String rootField = parser.currentName();
+                if (parser.nextToken() != JsonToken.START_OBJECT || !"mzQC".equals(rootField)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken token = parser.nextToken();
+                    if (listName.equals(field) && token == JsonToken.START_ARRAY) {
+                        int index = 0;
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            copyQuality(parser, generator, merge, sidecars, setQualities, inputFile + "#/mzQC/" + listName + "/" + index++);
+                        }
+                    } else if (!setQualities && "setQualities".equals(field) && token == JsonToken.START_ARRAY) {
+                        hasSetQualities = parser.nextToken() != JsonToken.END_ARRAY;
+                        if (hasSetQualities) {
+                            parser.skipChildren();
+                            skipToEndOfArray(parser);
+                        }
+                    } else if (!setQualities && "controlledVocabularies".equals(field) && token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            merge.controlledVocabularies.add(mapper.readValue(parser, ControlledVocabulary.class));
+                        }
+                    } else if (!setQualities && ("contactName".equals(field) || "contactAddress".equals(field)) && token == JsonToken.VALUE_STRING) {
+                        merge.header.putIfAbsent(field, parser.getText());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+        return hasSetQualities;
+    }
+
+    private static void skipToEndOfArray(JsonParser parser) throws IOException {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            parser.skipChildren();
+        }
+    }
+
+    private void copyQuality(JsonParser parser, JsonGenerator generator, Merge merge, Sidecars sidecars, boolean setQuality, String location) throws IOException {
+        if (!validate) {
+            copyQuality(parser, generator, sidecars);
+        } else {
+            TokenBuffer buffer = new TokenBuffer(parser);
+            copyQuality(parser, buffer, sidecars);
+            JsonNode quality;
+            try ( JsonParser bufferParser = buffer.asParser(mapper)) {
+                quality = mapper.readTree(bufferParser);
+            }
+            Set<ValidationMessage> messages = MzQCCodec.getInstance().validate(wrap(quality, setQuality, merge));
+            if (!messages.isEmpty()) {
+                merge.rejected.put(location, messages);
+                return;
+            }
+            buffer.serialize(generator);
+        }
+        if (setQuality) {
+            merge.setQualities++;
+        } else {
+            merge.runQualities++;
+        }
+    }
+
+    /**
+     * Wraps a single quality into a minimal document, with the vocabularies
+     * seen so far, for validation.
+     */
+    private JsonNode wrap(JsonNode quality, boolean setQuality, Merge merge) {
+        ObjectNode document = mapper.createObjectNode();
+        ObjectNode mzQC = document.putObject("mzQC");
+        mzQC.put("version", "1.0.0");
+        mzQC.set("creationDate", mapper.valueToTree(OffsetDateTime.now()));
+        mzQC.set("controlledVocabularies", mapper.valueToTree(new ArrayList<>(merge.controlledVocabularies)));
+        mzQC.putArray(setQuality ? "setQualities" : "runQualities").add(quality);
+        return document;
+    }
+
+    private void copyQuality(JsonParser parser, JsonGenerator generator, Sidecars sidecars) throws IOException {
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            generator.writeFieldName(field);
+            if (parser.nextToken() == JsonToken.START_OBJECT && "metadata".equals(field)) {
+                copyMetadata(parser, generator, sidecars);
+            } else {
+                copyValue(parser, generator, sidecars);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private void copyMetadata(JsonParser parser, JsonGenerator generator, Sidecars sidecars) throws IOException {
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            generator.writeFieldName(field);
+            if (parser.nextToken() == JsonToken.START_ARRAY && "analysisSoftware".equals(field)) {
+                Set<JsonNode> analysisSoftware = new LinkedHashSet<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    analysisSoftware.add(mapper.readTree(parser));
+                }
+                generator.writeStartArray();
+                for (JsonNode software : analysisSoftware) {
+                    generator.writeTree(software);
+                }
+                generator.writeEndArray();
+            } else {
+                copyValue(parser, generator, sidecars);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Copies the current value, and rewrites sidecar references on the way.
+     */
+    private void copyValue(JsonParser parser, JsonGenerator generator, Sidecars sidecars) throws IOException {
+        switch (parser.currentToken()) {
+            case START_OBJECT -> {
+                generator.writeStartObject();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    generator.writeFieldName(field);
+                    if (parser.nextToken() == JsonToken.VALUE_STRING && BinarySidecar.REFERENCE_KEY.equals(field)) {
+                        generator.writeString(sidecars.relocate(parser.getText()));
+                    } else {
+                        copyValue(parser, generator, sidecars);
+                    }
+                }
+                generator.writeEndObject();
+            }
+            case START_ARRAY -> {
+                generator.writeStartArray();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    copyValue(parser, generator, sidecars);
+                }
+                generator.writeEndArray();
+            }
+            default ->
+                generator.copyCurrentEventExact(parser);
+        }
+    }
+}
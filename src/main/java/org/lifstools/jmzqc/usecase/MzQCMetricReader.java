@@ -0,0 +1,239 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.lifstools.jmzqc.InputFile;
+import org.lifstools.jmzqc.QualityMetric;
+
+/**
+ * Reads only the quality metrics with the given accessions from mzQC files.
+ * The token stream is walked with the parser of the {@link MzQCCodec} mapper,
+ * so comments, trailing commas and dates are handled as by
+ * {@link MzQCCodec#read(Path)}. Unwanted metrics and all other parts of the
+ * document are skipped without being bound, only the input files of every
+ * quality and the selected metrics are. Scanning many files for a few metrics
+ * thus allocates little beyond the selected values.
+ * <p>
+ * Instances are thread safe.
+ *
+ * @author Nils Hoffmann
+ */
+public class MzQCMetricReader {
+
+    private static final TypeReference<List<InputFile>> INPUT_FILE_LIST_TYPE = new TypeReference<List<InputFile>>() {
+    };
+
+    /**
+     * The selected metrics of one run or set quality.
+     *
+     * @param setQuality true for an entry of {@code setQualities}, false for
+     * an entry of {@code runQualities}.
+     * @param index the index of the quality within its list.
+     * @param inputFiles the input files of the quality.
+     * @param metrics the selected metrics, in document order.
+     */
+    public static record SelectedQuality(boolean setQuality, int index, List<InputFile> inputFiles, List<QualityMetric> metrics) {
+
+    }
+
+    private final Set<String> accessions;
+    private final ObjectMapper mapper;
+
+    /**
+     * @param accessions the accessions of the metrics to read.
+     */
+    public MzQCMetricReader(Collection<String> accessions) {
+        this.accessions = Set.copyOf(accessions);
+        this.mapper = MzQCCodec.getInstance().getMapper();
+    }
+
+    /**
+     * Reads the selected metrics of all qualities of an mzQC file. Gzip
+     * compression is detected from the content and sidecar references of the
+     * selected metrics are resolved relative to the directory of the file.
+     *
+     * @param file the mzQC file.
+     * @return one entry per quality, including qualities without selected
+     * metrics.
+     * @throws IOException if reading or parsing fails.
+     */
+    public List<SelectedQuality> read(Path file) throws IOException {
+        List<SelectedQuality> qualities = new ArrayList<>();
+        read(file, qualities::add);
+        return qualities;
+    }
+
+    /**
+     * Like {@link #read(Path)}, but hands every quality to the consumer as
+     * soon as it is read.
+     *
+     * @param file the mzQC file.
+     * @param consumer receives one entry per quality.
+     * @throws IOException if reading or parsing fails.
+     */
+    public void read(Path file, Consumer<SelectedQuality> consumer) throws IOException {
+        Path baseDirectory = file.toAbsolutePath().getParent();
+        try ( InputStream in = MzQCCodec.openMaybeGzipped(file)) {
+            read(in, quality -> consumer.accept(resolve(quality, baseDirectory)));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static SelectedQuality resolve(SelectedQuality quality, Path baseDirectory) {
+        try {
+            return new SelectedQuality(quality.setQuality(), quality.index(), quality.inputFiles(), BinarySidecar.resolve(quality.metrics(), baseDirectory));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Reads the selected metrics of all qualities of an mzQC document.
+     * Sidecar references are not resolved. The stream is not closed.
+     *
+     * @param in the input stream.
+     * @param consumer receives one entry per quality.
+     * @throws IOException if reading or parsing fails.
+     */
+    public void read(InputStream in, Consumer<SelectedQuality> consumer) throws IOException {
+        try ( JsonParser parser = mapper.createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("mzQC".equals(field)) {
+                    readDocument(parser, consumer);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void readDocument(JsonParser parser, Consumer<SelectedQuality> consumer) throws IOException {
+        expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            boolean setQualities = "setQualities".equals(field);
+            if ((setQualities || "runQualities".equals(field)) && token == JsonToken.START_ARRAY) {
+                int index = 0;
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    consumer.accept(readQuality(parser, setQualities, index++));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private SelectedQuality readQuality(JsonParser parser, boolean setQuality, int index) throws IOException {
+        List<InputFile> inputFiles = List.of();
+        List<QualityMetric> metrics = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("metadata".equals(field) && token == JsonToken.START_OBJECT) {
+                inputFiles = readInputFiles(parser);
+            } else if ("qualityMetrics".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    QualityMetric metric = readMetric(parser);
+                    if (metric != null) {
+                        metrics.add(metric);
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new SelectedQuality(setQuality, index, inputFiles, metrics);
+    }
+
+    private List<InputFile> readInputFiles(JsonParser parser) throws IOException {
+        List<InputFile> inputFiles = List.of();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            if (parser.nextToken() == JsonToken.START_ARRAY && "inputFiles".equals(field)) {
+                inputFiles = mapper.readValue(parser, INPUT_FILE_LIST_TYPE);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return inputFiles;
+    }
+
+    /**
+     * Decides on a metric by its accession. Fields before the accession are
+     * copied to a token buffer, in case the metric is selected, all fields
+     * after the accession of an unwanted metric are skipped. mzQC writers
+     * usually put the accession first, so unwanted metrics are not copied.
+     *
+     * @return the metric, or null if it is not selected.
+     */
+    private QualityMetric readMetric(JsonParser parser) throws IOException {
+        TokenBuffer buffer = null;
+        boolean selected = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (!selected && "accession".equals(field)) {
+                if (!accessions.contains(parser.getValueAsString())) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        parser.nextToken();
+                        parser.skipChildren();
+                    }
+                    return null;
+                }
+                selected = true;
+            }
+            if (buffer == null) {
+                buffer = new TokenBuffer(parser);
+                buffer.writeStartObject();
+            }
+            buffer.writeFieldName(field);
+            buffer.copyCurrentStructure(parser);
+        }
+        if (!selected) {
+            return null;
+        }
+        buffer.writeEndObject();
+        try ( JsonParser metricParser = buffer.asParser(parser.getCodec())) {
+            return mapper.readValue(metricParser, QualityMetric.class);
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but found " + actual + " at " + parser.currentLocation());
+        }
+    }
+}
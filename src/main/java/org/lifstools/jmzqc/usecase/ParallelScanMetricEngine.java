@@ -0,0 +1,224 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lifstools.jmzqc.QualityMetric;
+
+/**
+ * Computes scan level metrics of a single indexedmzML file on several cores.
+ * The spectrum offset index splits the spectrum list into byte ranges, each
+ * range is memory mapped and parsed with its own set of accumulators, and the
+ * partial results are merged in file order. Files without a usable index are
+ * processed sequentially by {@link ScanMetricEngine}.
+ *
+ * @author Nils Hoffmann
+ */
+public class ParallelScanMetricEngine {
+
+    private static final byte[] FRAGMENT_START = "<fragment>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FRAGMENT_END = "</fragment>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SPECTRUM_START = "<spectrum".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Ranges with fewer spectra are not split any further.
+     */
+    private static final int MIN_SPECTRA_PER_TASK = 64;
+
+    private final Supplier<List<MetricAccumulator>> accumulators;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a new engine that runs in the common fork join pool.
+     *
+     * @param accumulators creates a fresh set of accumulators per byte range.
+     */
+    public ParallelScanMetricEngine(Supplier<List<MetricAccumulator>> accumulators) {
+        this(accumulators, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a new engine.
+     *
+     * @param accumulators creates a fresh set of accumulators per byte range,
+     * always in the same order.
+     * @param pool the pool to parse the byte ranges in.
+     */
+    public ParallelScanMetricEngine(Supplier<List<MetricAccumulator>> accumulators, ForkJoinPool pool) {
+        this.accumulators = accumulators;
+        this.pool = pool;
+    }
+
+    /**
+     * Computes the metrics of an mzML file.
+     *
+     * @param mzML the mzML file.
+     * @return the quality metrics, in the order of the accumulators.
+     * @throws IOException if the file can not be read.
+     */
+    public List<QualityMetric> process(Path mzML) throws IOException {
+        String fileName = mzML.getFileName().toString();
+        try ( FileChannel channel = FileChannel.open(mzML, StandardOpenOption.READ)) {
+            Optional<MzMLIndex> index = MzMLIndex.read(channel);
+            if (index.isEmpty() || index.get().getSpectrumCount() == 0) {
+                return sequential(mzML);
+            }
+            MzMLIndex mzMLIndex = index.get();
+            try ( PhaseProfiler.Phase phase = PhaseProfiler.start("parse and compute", fileName).bytes(Files.size(mzML))) {
+                MzMLHeaderReader reader = new MzMLHeaderReader(new ScanMetricEngine(accumulators.get()).needsPeaks());
+                Map<String, List<MzMLHeaderReader.CvEntry>> paramGroups = reader.readParamGroups(mzML);
+                long spectrumListEnd = mzMLIndex.findSpectrumListEnd(channel);
+                int spectra = mzMLIndex.getSpectrumCount();
+                int threshold = Math.max(MIN_SPECTRA_PER_TASK, spectra / (pool.getParallelism() * 4));
+                RangeTask task = new RangeTask(channel, mzMLIndex, spectrumListEnd, paramGroups, reader, 0, spectra, threshold);
+                ScanMetricEngine engine = pool.invoke(task);
+                engine.setFileName(fileName);
+                phase.scans(spectra);
+                return engine.finish(new MzMLHeaderReader.Summary(spectra, mzMLIndex.getChromatogramCount()));
+            } catch (IOException | UncheckedIOException ex) {
+                // a stale index fails in findSpectrumListEnd or in the range tasks
+                Logger.getLogger(ParallelScanMetricEngine.class.getName()).log(Level.WARNING, "Index of " + mzML + " does not match its content, reading it sequentially", ex instanceof UncheckedIOException ? ex.getCause() : ex);
+                return sequential(mzML);
+            }
+        }
+    }
+
+    private List<QualityMetric> sequential(Path mzML) throws IOException {
+        return new ScanMetricEngine(accumulators.get()).process(mzML);
+    }
+
+    /**
+     * Parses the spectra [from, to) of the index, splitting the range in halves
+     * until it is small enough.
+     */
+    private final class RangeTask extends RecursiveTask<ScanMetricEngine> {
+
+        private final FileChannel channel;
+        private final MzMLIndex index;
+        private final long spectrumListEnd;
+        private final Map<String, List<MzMLHeaderReader.CvEntry>> paramGroups;
+        private final MzMLHeaderReader reader;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        RangeTask(FileChannel channel, MzMLIndex index, long spectrumListEnd, Map<String, List<MzMLHeaderReader.CvEntry>> paramGroups, MzMLHeaderReader reader, int from, int to, int threshold) {
+            this.channel = channel;
+            this.index = index;
+            this.spectrumListEnd = spectrumListEnd;
+            this.paramGroups = paramGroups;
+            this.reader = reader;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected ScanMetricEngine compute() {
+            long start = index.getSpectrumOffset(from);
+            long end = to < index.getSpectrumCount() ? index.getSpectrumOffset(to) : spectrumListEnd;
+            // a single mapping is limited to 2 GiB
+            if (to - from > 1 && (to - from > threshold || end - start > Integer.MAX_VALUE)) {
+                int middle = (from + to) >>> 1;
+                RangeTask left = new RangeTask(channel, index, spectrumListEnd, paramGroups, reader, from, middle, threshold);
+                RangeTask right = new RangeTask(channel, index, spectrumListEnd, paramGroups, reader, middle, to, threshold);
+                left.fork();
+                ScanMetricEngine later = right.compute();
+                ScanMetricEngine earlier = left.join();
+                earlier.merge(later);
+                return earlier;
+            }
+            try {
+                return parse(start, end);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private ScanMetricEngine parse(long start, long end) throws IOException {
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("Spectrum at offset " + start + " is larger than 2 GiB");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            for (int i = 0; i < SPECTRUM_START.length; i++) {
+                if (i >= buffer.limit() || buffer.get(i) != SPECTRUM_START[i]) {
+                    throw new IOException("No spectrum at indexed offset " + start);
+                }
+            }
+            ScanMetricEngine engine = new ScanMetricEngine(accumulators.get());
+            InputStream fragment = new SequenceInputStream(Collections.enumeration(List.of(
+                    new ByteArrayInputStream(FRAGMENT_START),
+                    new ByteBufferInputStream(buffer),
+                    new ByteArrayInputStream(FRAGMENT_END))));
+            long read = reader.readSpectra(fragment, paramGroups, engine, to - from);
+            if (read != to - from) {
+                throw new IOException("Expected " + (to - from) + " spectra at offset " + start + " but found " + read);
+            }
+            return engine;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
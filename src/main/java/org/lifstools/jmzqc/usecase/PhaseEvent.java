@@ -0,0 +1,49 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one phase of creating an mzQC document, e.g.
+ * parsing or validation. Use {@link PhaseProfiler#start(String, String)}
+ * instead of creating events directly.
+ *
+ * @author Nils Hoffmann
+ */
+@Name("org.lifstools.jmzqc.Phase")
+@Label("QC Phase")
+@Category({"jmzqc"})
+@Description("A phase of creating an mzQC document")
+class PhaseEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("File Name")
+    String fileName;
+
+    @Label("Scan Count")
+    long scanCount;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the phases of creating an mzQC document. Every phase is emitted as
+ * a {@link PhaseEvent} to Java Flight Recorder, if a recording is running. If
+ * enabled with {@link #enable()}, e.g. by the {@code --profile} option, wall
+ * time and allocated bytes are also summed per phase for
+ * {@link #printSummary(PrintStream)}. When neither is active, a phase costs
+ * little more than an object allocation.
+ *
+ * @author Nils Hoffmann
+ */
+public final class PhaseProfiler {
+
+    private static volatile boolean enabled;
+    private static final Map<String, PhaseTotals> TOTALS = new LinkedHashMap<>();
+
+    private PhaseProfiler() {
+    }
+
+    private static final class PhaseTotals {
+
+        long count;
+        long nanos;
+        long allocatedBytes;
+        long scans;
+        long bytes;
+    }
+
+    /**
+     * A running phase. Close it to end the phase, preferably with
+     * try-with-resources.
+     */
+    public static final class Phase implements AutoCloseable {
+
+        private final PhaseEvent event;
+        private final boolean summarize;
+        private final long startNanos;
+        private final long startAllocatedBytes;
+
+        private Phase(String phase, String fileName) {
+            this.event = new PhaseEvent();
+            this.summarize = enabled;
+            event.phase = phase;
+            event.fileName = fileName;
+            event.begin();
+            this.startNanos = summarize ? System.nanoTime() : 0;
+            this.startAllocatedBytes = summarize ? allocatedBytes() : 0;
+        }
+
+        public Phase scans(long scanCount) {
+            event.scanCount = scanCount;
+            return this;
+        }
+
+        public Phase bytes(long bytes) {
+            event.bytes = bytes;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+            if (summarize) {
+                record(event.phase, System.nanoTime() - startNanos, allocatedBytes() - startAllocatedBytes, event.scanCount, event.bytes);
+            }
+        }
+    }
+
+    /**
+     * Enables the in-process summary of all phases.
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    /**
+     * @return true if phases are summarized, or if a Flight Recorder recording
+     * is interested in metric compute events.
+     */
+    static boolean isMetricTimingActive() {
+        return enabled || new MetricComputeEvent().isEnabled();
+    }
+
+    /**
+     * Starts a phase.
+     *
+     * @param phase the phase name, e.g. {@code parse}.
+     * @param fileName the file the phase works on, may be null.
+     * @return the running phase.
+     */
+    public static Phase start(String phase, String fileName) {
+        return new Phase(phase, fileName);
+    }
+
+    /**
+     * Records the compute time of one metric, measured by the caller.
+     *
+     * @param metric the metric name.
+     * @param fileName the file the metric was computed for.
+     * @param scanCount the number of scans visited.
+     * @param computeNanos the time spent computing the metric.
+     */
+    static void recordMetric(String metric, String fileName, long scanCount, long computeNanos) {
+        MetricComputeEvent event = new MetricComputeEvent();
+        if (event.shouldCommit()) {
+            event.metric = metric;
+            event.fileName = fileName;
+            event.scanCount = scanCount;
+            event.computeTime = computeNanos;
+            event.commit();
+        }
+        if (enabled) {
+            // allocations are not measured per metric, they happen in one shared loop
+            record("compute: " + metric, computeNanos, 0, scanCount, 0);
+        }
+    }
+
+    private static void record(String phase, long nanos, long allocatedBytes, long scans, long bytes) {
+        synchronized (TOTALS) {
+            PhaseTotals totals = TOTALS.computeIfAbsent(phase, key -> new PhaseTotals());
+            totals.count++;
+            totals.nanos += nanos;
+            totals.allocatedBytes += allocatedBytes;
+            totals.scans += scans;
+            totals.bytes += bytes;
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or 0 if the
+     * JVM can not measure this.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean sunThreadMXBean && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+            return sunThreadMXBean.getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * Prints one line per phase, in the order the phases first occurred. Times
+     * of nested phases, like serialize within write, are also contained in
+     * the outer phase.
+     *
+     * @param out the stream to print to.
+     */
+    public static void printSummary(PrintStream out) {
+        List<Map.Entry<String, PhaseTotals>> entries;
+        synchronized (TOTALS) {
+            entries = new ArrayList<>(TOTALS.entrySet());
+        }
+        out.println(String.format("%-56s %8s %12s %12s %14s %12s %14s", "phase", "count", "total ms", "mean ms", "allocated MiB", "scans", "bytes"));
+        for (Map.Entry<String, PhaseTotals> entry : entries) {
+            PhaseTotals totals = entry.getValue();
+            out.println(String.format("%-56s %8d %12.1f %12.2f %14.1f %12d %14d",
+                    entry.getKey(),
+                    totals.count,
+                    totals.nanos / 1e6,
+                    totals.nanos / 1e6 / totals.count,
+                    totals.allocatedBytes / (1024.0 * 1024.0),
+                    totals.scans,
+                    totals.bytes));
+        }
+    }
+}
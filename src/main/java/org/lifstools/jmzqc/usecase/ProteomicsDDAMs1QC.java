@@ -4,26 +4,21 @@
  */
 package org.lifstools.jmzqc.usecase;
 
-import com.google.common.collect.Range;
 import io.github.msdk.MSDKException;
 import io.github.msdk.io.mzml.MzMLFileImportMethod;
-import io.github.msdk.io.mzml.data.MzMLMsScan;
 import io.github.msdk.io.mzml.data.MzMLRawDataFile;
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.lifstools.jmzqc.AnalysisSoftware;
@@ -34,7 +29,6 @@ import org.lifstools.jmzqc.InputFile;
 import org.lifstools.jmzqc.Metadata;
 import org.lifstools.jmzqc.MzQC;
 import org.lifstools.jmzqc.QualityMetric;
-import org.lifstools.jmzqc.Unit;
 
 /**
  *
@@ -42,156 +36,335 @@ import org.lifstools.jmzqc.Unit;
  */
 public class ProteomicsDDAMs1QC {
 
+    /**
+     * Version of the metrics created by {@link #createAccumulators()}. Must be
+     * increased whenever the metric output changes, to invalidate
+     * {@link ResultCache} entries.
+     */
+    static final String METRIC_SET_VERSION = "ProteomicsDDAMs1QC/2";
+
+    /**
+     * Options for computing the metrics of a run.
+     *
+     * @param streaming read only the spectrum headers in a single streaming
+     * pass with {@link MzMLHeaderReader} instead of loading the whole file with
+     * msdk. Peak arrays are only decoded for metrics that need them.
+     * @param parallel read the spectrum headers of an indexedmzML file on
+     * several cores with {@link ParallelScanMetricEngine}. Implies streaming.
+     * @param ms2Metrics also compute the metrics of
+     * {@link #createMs2Accumulators()}, some of which decode peak arrays.
+     */
+    public static record Options(boolean streaming, boolean parallel, boolean ms2Metrics) {
+
+        /**
+         * Loads the whole file with msdk and computes the MS1 metrics only.
+         */
+        public static final Options DEFAULT = new Options(false, false, false);
+
+        public Options {
+            streaming = streaming || parallel;
+        }
+
+        /**
+         * @param streaming see {@link #streaming()}.
+         * @return these options with a different reading mode. Parallel
+         * reading always streams.
+         */
+        public Options withStreaming(boolean streaming) {
+            return new Options(streaming, parallel, ms2Metrics);
+        }
+    }
+
     private final File inputMzML;
+    private final boolean streaming;
+    private final boolean parallel;
+    private final boolean ms2Metrics;
+    private final Optional<ResultCache> cache;
 
     public ProteomicsDDAMs1QC(File inputMzML) {
+        this(inputMzML, Options.DEFAULT);
+    }
+
+    /**
+     * @param inputMzML the mzML file to process.
+     * @param options the reading mode and metrics.
+     */
+    public ProteomicsDDAMs1QC(File inputMzML, Options options) {
+        this(inputMzML, options, Optional.empty());
+    }
+
+    /**
+     * @param inputMzML the mzML file to process.
+     * @param options the reading mode and metrics.
+     * @param cache if present, metrics are looked up in and stored to this
+     * cache.
+     */
+    public ProteomicsDDAMs1QC(File inputMzML, Options options, Optional<ResultCache> cache) {
         this.inputMzML = inputMzML;
+        this.streaming = options.streaming();
+        this.parallel = options.parallel();
+        this.ms2Metrics = options.ms2Metrics();
+        this.cache = cache;
     }
 
+    /**
+     * Columnar table of the per-scan MS1 values, backed by primitive arrays.
+     * Native spectrum ids are stored without their common "scan=" prefix in a
+     * shared char buffer.
+     */
     public static class TicTable {
 
-        List<Float> tic = new ArrayList<>();
-        List<Float> rt = new ArrayList<>();
-        List<String> nativeSpectrumIdentifier = new ArrayList<>();
-        List<Integer> nPeaks = new ArrayList<>();
+        final FloatColumn tic = new FloatColumn();
+        final FloatColumn rt = new FloatColumn();
+        final StringColumn nativeSpectrumIdentifier = new StringColumn("scan=");
+        final IntColumn nPeaks = new IntColumn();
+
+        void add(float tic, float rt, String nativeId, int nPeaks) {
+            this.tic.add(tic);
+            this.rt.add(rt);
+            this.nativeSpectrumIdentifier.add(nativeId);
+            this.nPeaks.add(nPeaks);
+        }
+
+        void addAll(TicTable later) {
+            this.tic.addAll(later.tic);
+            this.rt.addAll(later.rt);
+            this.nativeSpectrumIdentifier.addAll(later.nativeSpectrumIdentifier);
+            this.nPeaks.addAll(later.nPeaks);
+        }
+
+        public int size() {
+            return tic.size();
+        }
+
+        /**
+         * @return the column map used as value of the {@code MS:4000104}
+         * "total ion currents" metric.
+         */
+        public Map<String, Object> toColumnMap() {
+            var ticTableMap = new LinkedHashMap<String, Object>();
+            ticTableMap.put("MS:1000285", tic.toArray());
+            ticTableMap.put("MS:1000894", rt.toArray());
+            ticTableMap.put("MS:1000767", nativeSpectrumIdentifier.asList());
+            ticTableMap.put("MS:1003059", nPeaks.toArray());
+            return ticTableMap;
+        }
+    }
+
+    /**
+     * @return new accumulators for the metrics of this QC, in output order.
+     */
+    static List<MetricAccumulator> createAccumulators() {
+        return Arrays.asList(
+                ScanMetrics.numberOfChromatograms(),
+                ScanMetrics.mzRange(1),
+                ScanMetrics.rtRange(1),
+                ScanMetrics.basePeakIntensity(1),
+                ScanMetrics.totalIonCurrents(),
+                ScanMetrics.emptyMs1Scans()
+        );
     }
 
-    public static record RunInfo(Range<Float> rtRange, Range<Double> mzRange) {
+    /**
+     * @return new accumulators for the optional MS2 and peak metrics, in
+     * output order.
+     */
+    static List<MetricAccumulator> createMs2Accumulators() {
+        return Arrays.asList(
+                ScanMetrics.precursorChargeFractions(),
+                ScanMetrics.ms2PerCycle(),
+                ScanMetrics.topNIntensityFraction(2, 10),
+                ScanMetrics.signalToNoise(2)
+        );
+    }
 
+    private List<MetricAccumulator> accumulators() {
+        if (!ms2Metrics) {
+            return createAccumulators();
+        }
+        List<MetricAccumulator> accumulators = new ArrayList<>(createAccumulators());
+        accumulators.addAll(createMs2Accumulators());
+        return accumulators;
     }
 
     public Optional<MzQC> process() throws URISyntaxException {
-        MzMLRawDataFile mzMLFile;
-        try {
-            mzMLFile = new MzMLFileImportMethod(inputMzML.toPath()).execute();
-        } catch (MSDKException ex) {
-            Logger.getLogger(ProteomicsDDAMs1QC.class.getName()).log(Level.SEVERE, null, ex);
+        Optional<BaseQuality> runQuality = processRun();
+        if (runQuality.isEmpty()) {
             return Optional.empty();
         }
-        var mzMLFormatParameter = new CvParameter("MS:1000584", null, "mzML format", null);
-        var inputFile = new InputFile(mzMLFormatParameter, Collections.emptyList(), inputMzML.toURI(), mzMLFile.getName());
-        System.out.println("Processing file: " + mzMLFile.getName());
-        System.out.println("RT and m/z range...");
-        var runInfoResult = mzMLFile.getScans().stream().filter(
-                scan -> scan.getMsLevel() == 1
-        ).map(
-                scan -> {
-                    return new RunInfo(Range.singleton(scan.getRetentionTime()), scan.getMzRange());
-                }
-        ).reduce(
-                (lrt, rrt) -> {
-                    return new RunInfo(lrt.rtRange.span(rrt.rtRange), lrt.mzRange.span(rrt.mzRange));
-                }
-        ).get();
-
-        System.out.println("TIC and Base Peak values...");
-
-        final TicTable ticTable = new TicTable();
-        final List<Float> ms1BasePeakIntensities = new ArrayList<>();
-        final Set<String> ms1BasePeakIntensityUnit = new LinkedHashSet<>(1);
-        final AtomicLong emptyMs1 = new AtomicLong();
-        Map<String, String> basePeakIntensityUnitLookup = Map.of(
-                "MS:1000131", "number of detector counts",
-                "MS:1000132", "percent of base peak",
-                "MS:1000814", "counts per second",
-                "MS:1000905", "percent of base peak times 100",
-                "UO:0000269", "absorbance unit");
-        mzMLFile.getScans().stream().filter(
-                scan -> scan.getMsLevel() == 1
-        ).forEach(
-                scan -> {
-                    var mzMLScan = (MzMLMsScan) scan;
-                    mzMLScan.getCVParams().getCVParamsList().stream().filter(cvParam -> "MS:1000505".equals(cvParam.getAccession())).findFirst().ifPresent((t) -> {
-                        ms1BasePeakIntensities.add(Float.parseFloat(t.getValue().orElse("NaN")));
-                        if (ms1BasePeakIntensityUnit.isEmpty()) {
-                            ms1BasePeakIntensityUnit.add(t.getUnitAccession().orElse("MS:1000131"));
-                        }
-                    });
-
-                    ticTable.tic.add(scan.getTIC());
-                    ticTable.rt.add(scan.getRetentionTime());
-                    ticTable.nativeSpectrumIdentifier.add("scan=" + mzMLScan.getId());
-                    ticTable.nPeaks.add(scan.getNumberOfDataPoints());
-                    if (scan.getNumberOfDataPoints() == 0) {
-                        emptyMs1.incrementAndGet();
-                    } else if (scan.getTIC() == 0) {
-                        emptyMs1.incrementAndGet();
-                    }
+        return Optional.of(createMzQC(Arrays.asList(runQuality.get())));
+    }
+
+    /**
+     * Computes the quality metrics of the input file.
+     *
+     * @return the run quality of the input file, or an empty optional if the
+     * file could not be read.
+     * @throws URISyntaxException if the analysis software URI is invalid.
+     */
+    public Optional<BaseQuality> processRun() throws URISyntaxException {
+        Optional<String> cacheKey = cache.flatMap(this::cacheKey);
+        if (cacheKey.isPresent()) {
+            try {
+                Optional<ResultCache.Entry> cached = cache.get().get(cacheKey.get());
+                if (cached.isPresent()) {
+                    System.out.println("Using cached metrics for file: " + inputMzML.getName());
+                    return Optional.of(createRunQuality(inputMzML.getName(), cached.get().fileProperties(), cached.get().metrics()));
                 }
-        );
+            } catch (IOException ex) {
+                Logger.getLogger(ProteomicsDDAMs1QC.class.getName()).log(Level.WARNING, "Ignoring unreadable cache entry for " + inputMzML, ex);
+            }
+        }
+        String name;
+        List<QualityMetric> qualityMetrics;
+        if (parallel) {
+            name = inputMzML.getName();
+            System.out.println("Streaming spectrum headers of file in parallel: " + name);
+            try {
+                qualityMetrics = new ParallelScanMetricEngine(this::accumulators).process(inputMzML.toPath());
+            } catch (IOException ex) {
+                Logger.getLogger(ProteomicsDDAMs1QC.class.getName()).log(Level.SEVERE, null, ex);
+                return Optional.empty();
+            }
+        } else if (streaming) {
+            name = inputMzML.getName();
+            System.out.println("Streaming spectrum headers of file: " + name);
+            try {
+                qualityMetrics = new ScanMetricEngine(accumulators()).process(inputMzML.toPath());
+            } catch (IOException ex) {
+                Logger.getLogger(ProteomicsDDAMs1QC.class.getName()).log(Level.SEVERE, null, ex);
+                return Optional.empty();
+            }
+        } else {
+            MzMLRawDataFile mzMLFile;
+            try ( PhaseProfiler.Phase phase = PhaseProfiler.start("parse", inputMzML.getName()).bytes(inputMzML.length())) {
+                mzMLFile = new MzMLFileImportMethod(inputMzML.toPath()).execute();
+                phase.scans(mzMLFile.getScans().size());
+            } catch (MSDKException ex) {
+                Logger.getLogger(ProteomicsDDAMs1QC.class.getName()).log(Level.SEVERE, null, ex);
+                return Optional.empty();
+            }
+            name = mzMLFile.getName();
+            System.out.println("Processing file: " + name);
+            qualityMetrics = new ScanMetricEngine(accumulators()).process(mzMLFile);
+        }
+        List<CvParameter> fileProperties = createFileProperties();
+        if (cacheKey.isPresent()) {
+            try {
+                cache.get().put(cacheKey.get(), new ResultCache.Entry(fileProperties, qualityMetrics));
+            } catch (IOException ex) {
+                Logger.getLogger(ProteomicsDDAMs1QC.class.getName()).log(Level.WARNING, "Could not cache metrics for " + inputMzML, ex);
+            }
+        }
+        return Optional.of(createRunQuality(name, fileProperties, qualityMetrics));
+    }
 
-        var ms1MzRangeMetric = new QualityMetric(
-                "MS:4000069",
-                null,
-                "m/z acquisition range",
-                Arrays.asList(runInfoResult.mzRange.lowerEndpoint(), runInfoResult.mzRange.upperEndpoint()),
-                null
-        );
-        var rtRangeMetric = new QualityMetric(
-                "MS:4000070",
-                null,
-                "retention time acquisition range",
-                Arrays.asList(runInfoResult.rtRange.lowerEndpoint(), runInfoResult.rtRange.upperEndpoint()),
-                new Unit(new CvParameter("UO:0000010", null, "second", null), null)
-        );
-        var ms1BasePeakIntensityUnitTerm = ms1BasePeakIntensityUnit.stream().findFirst().orElse("MS:1000131");
-        var basePeakIntensityMetric = new QualityMetric(
-                "MS:1000505",
-                null,
-                "base peak intensity",
-                ms1BasePeakIntensities,
-                new Unit(new CvParameter(ms1BasePeakIntensityUnitTerm, null, basePeakIntensityUnitLookup.getOrDefault(ms1BasePeakIntensityUnitTerm, "number of detector counts"), null), null)
-        );
-        var ticTableMap = new LinkedHashMap<String, List<?>>();
-        ticTableMap.put("MS:1000285", ticTable.tic);
-        ticTableMap.put("MS:1000894", ticTable.rt);
-        ticTableMap.put("MS:1000767", ticTable.nativeSpectrumIdentifier);
-        ticTableMap.put("MS:1003059", ticTable.nPeaks);
-
-        var totalIonChromatogram = new QualityMetric(
-                "MS:4000104",
-                null,
-                "total ion currents",
-                ticTableMap, null);
-        var numberOfChromatogramsMetric = new QualityMetric("MS:4000071", null, "number of chromatograms", mzMLFile.getChromatograms().stream().count(), null);
-
-        var qualityMetrics = Arrays.asList(
-                numberOfChromatogramsMetric,
-                ms1MzRangeMetric,
-                rtRangeMetric,
-                basePeakIntensityMetric,
-                totalIonChromatogram
-        );
+    private Optional<String> cacheKey(ResultCache resultCache) {
+        try {
+            // both modes derive some values differently, so they are cached separately,
+            // the parallel mode produces the same metrics as the streaming mode
+            return Optional.of(ResultCache.key(inputMzML.toPath(), METRIC_SET_VERSION + (ms2Metrics ? "+ms2" : "") + (streaming ? "/streaming" : "/msdk")));
+        } catch (IOException ex) {
+            Logger.getLogger(ProteomicsDDAMs1QC.class.getName()).log(Level.WARNING, "Could not compute cache key for " + inputMzML, ex);
+            return Optional.empty();
+        }
+    }
 
-        var analysisSoftware = new AnalysisSoftware("MS:1000799", null, "custom unreleased software tool", "jmzqc", new URI("https://github.com/MS-Quality-hub/jmzqc"), "1.0.0-RC1");
+    private BaseQuality createRunQuality(String name, List<CvParameter> fileProperties, List<QualityMetric> qualityMetrics) throws URISyntaxException {
+        var mzMLFormatParameter = new CvParameter("MS:1000584", null, "mzML format", null);
+        var inputFile = new InputFile(mzMLFormatParameter, fileProperties, inputMzML.toURI(), name);
         Metadata metadata = new Metadata(
-                Arrays.asList(analysisSoftware),
+                Arrays.asList(createAnalysisSoftware()),
                 Collections.emptyList(),
                 Arrays.asList(inputFile),
                 null
         );
-        List<BaseQuality> bqs = Arrays.asList(new BaseQuality(metadata, qualityMetrics));
+        return new BaseQuality(metadata, qualityMetrics);
+    }
+
+    /**
+     * Records the run start time stamp, the instrument model and the serial
+     * number declared in the mzML header, so that runs can be ordered by time
+     * and grouped by instrument, e.g. by the {@link MetricStore}. The model
+     * term accession is kept as the description of the instrument model
+     * property.
+     */
+    private List<CvParameter> createFileProperties() {
+        MzMLHeaderReader.RunInfo runInfo;
+        try {
+            runInfo = new MzMLHeaderReader().readRunInfo(inputMzML.toPath());
+        } catch (IOException ex) {
+            Logger.getLogger(ProteomicsDDAMs1QC.class.getName()).log(Level.WARNING, "Could not read the run details of " + inputMzML, ex);
+            return Collections.emptyList();
+        }
+        List<CvParameter> properties = new ArrayList<>();
+        if (runInfo.startTimeStamp() != null) {
+            properties.add(new CvParameter(MetricStore.START_TIME_ACCESSION, ScanMetrics.LOCAL_TERM_NOTE, "run start time", runInfo.startTimeStamp()));
+        }
+        if (runInfo.modelName() != null) {
+            properties.add(new CvParameter(MetricStore.INSTRUMENT_MODEL_ACCESSION, runInfo.modelAccession(), "instrument model", runInfo.modelName()));
+        }
+        if (runInfo.serialNumber() != null) {
+            properties.add(new CvParameter(MetricStore.SERIAL_NUMBER_ACCESSION, null, "instrument serial number", runInfo.serialNumber()));
+        }
+        return properties;
+    }
+
+    /**
+     * @return the analysis software entry of the qualities created here.
+     * @throws URISyntaxException if the software URI is invalid.
+     */
+    static AnalysisSoftware createAnalysisSoftware() throws URISyntaxException {
+        return new AnalysisSoftware("MS:1000799", null, "custom unreleased software tool", "jmzqc", new URI("https://github.com/MS-Quality-hub/jmzqc"), "1.0.0-RC1");
+    }
+
+    /**
+     * Creates an mzQC document for one or more run qualities created by
+     * {@link #processRun()}.
+     *
+     * @param bqs the run qualities.
+     * @return the mzQC document.
+     * @throws URISyntaxException if a controlled vocabulary URI is invalid.
+     */
+    public static MzQC createMzQC(List<BaseQuality> bqs) throws URISyntaxException {
+        return createMzQC(bqs, Collections.emptyList());
+    }
+
+    /**
+     * Creates an mzQC document for run qualities and set qualities, e.g. from a
+     * {@link CrossRunAggregator}.
+     *
+     * @param bqs the run qualities.
+     * @param setQualities the set qualities.
+     * @return the mzQC document.
+     * @throws URISyntaxException if a controlled vocabulary URI is invalid.
+     */
+    public static MzQC createMzQC(List<BaseQuality> bqs, List<BaseQuality> setQualities) throws URISyntaxException {
+        List<ControlledVocabulary> controlledVocabularies = new ArrayList<>(Arrays.asList(
+                new ControlledVocabulary(
+                        "Proteomics Standards Initiative Mass Spectrometry Ontology",
+                        new URI("https://github.com/HUPO-PSI/psi-ms-CV/releases/download/v4.1.103/psi-ms.obo"),
+                        "4.1.103"
+                ),
+                new ControlledVocabulary(
+                        "Unit Ontology",
+                        new URI("https://raw.githubusercontent.com/bio-ontology-research-group/unit-ontology/master/unit.obo"),
+                        "f9ff25b"
+                )
+        ));
+        if (ScanMetrics.usesLocalTerms(bqs) || ScanMetrics.usesLocalTerms(setQualities)) {
+            controlledVocabularies.add(ScanMetrics.localVocabulary());
+        }
         MzQC mzQC = new MzQC(
                 "n.hoffmann@fz-juelich.de",
                 "Nils Hoffmann",
-                Arrays.asList(
-                        new ControlledVocabulary(
-                                "Proteomics Standards Initiative Mass Spectrometry Ontology",
-                                new URI("https://github.com/HUPO-PSI/psi-ms-CV/releases/download/v4.1.103/psi-ms.obo"),
-                                "4.1.103"
-                        ),
-                        new ControlledVocabulary(
-                                "Unit Ontology",
-                                new URI("https://raw.githubusercontent.com/bio-ontology-research-group/unit-ontology/master/unit.obo"),
-                                "f9ff25b"
-                        )
-                ),
+                controlledVocabularies,
                 OffsetDateTime.now(),
                 "MzQC for basic TIC QC information",
                 bqs,
-                Collections.emptyList(),
+                setQualities,
                 "1.0.0");
-        return Optional.of(mzQC);
+        return mzQC;
     }
 
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.networknt.schema.ValidationMessage;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lifstools.jmzqc.MzQC;
+
+/**
+ * Local HTTP service that creates validated mzQC documents with
+ * {@link ProteomicsDDAMs1QC} in a warm JVM. Supported requests:
+ * <ul>
+ * <li>{@code GET /qc?path=<mzML path>} processes a file readable by the
+ * server.</li>
+ * <li>{@code POST /qc?name=<file name>} processes the mzML file sent as
+ * request body.</li>
+ * <li>{@code GET /health} returns {@code ok}.</li>
+ * </ul>
+ * Both {@code /qc} requests accept {@code streaming=true|false} to override the
+ * default reading mode, the other options apply to all requests. Requests are handled on virtual threads when the
+ * runtime supports them, and the number of concurrent parses is limited to
+ * protect the heap.
+ *
+ * @author Nils Hoffmann
+ */
+public class QcHttpServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Semaphore parsePermits;
+    private final ProteomicsDDAMs1QC.Options options;
+    private final Optional<Path> root;
+
+    /**
+     * @param address the address to bind to.
+     * @param options the reading mode and metrics of every request.
+     * @param maxConcurrentParses the maximum number of files processed at the
+     * same time. Further requests wait.
+     * @param root if present, only files below this directory may be
+     * requested by path.
+     * @throws IOException if the server can not be bound.
+     */
+    public QcHttpServer(InetSocketAddress address, ProteomicsDDAMs1QC.Options options, int maxConcurrentParses, Optional<Path> root) throws IOException {
+        this.options = options;
+        this.parsePermits = new Semaphore(Math.max(1, maxConcurrentParses), true);
+        this.root = root.map(path -> path.toAbsolutePath().normalize());
+        this.executor = createRequestExecutor();
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/qc", this::handleQc);
+        this.server.createContext("/health", exchange -> respond(exchange, 200, "ok"));
+        this.server.setExecutor(executor);
+    }
+
+    /**
+     * Uses one virtual thread per request if the runtime provides them (Java
+     * 21 and later), and a cached platform thread pool otherwise. Blocking
+     * request threads are cheap either way, since heavy work is limited by
+     * the parse permits.
+     */
+    static ExecutorService createRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Serving QC requests on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/qc");
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops accepting requests and waits up to the given delay for running
+     * requests to finish.
+     *
+     * @param delaySeconds the maximum time to wait.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    private void handleQc(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            try {
+                serveQc(exchange);
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(QcHttpServer.class.getName()).log(Level.SEVERE, "QC request failed", ex);
+                // the client gets a status unless a response was already started
+                if (exchange.getResponseCode() < 0) {
+                    respond(exchange, 500, "QC request failed: " + ex);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(QcHttpServer.class.getName()).log(Level.WARNING, "Could not send the error response", ex);
+        }
+    }
+
+    private void serveQc(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        ProteomicsDDAMs1QC.Options requestOptions = options.withStreaming(Boolean.parseBoolean(query.getOrDefault("streaming", Boolean.toString(options.streaming()))));
+        switch (exchange.getRequestMethod()) {
+            case "GET" -> {
+                String path = query.get("path");
+                if (path == null) {
+                    respond(exchange, 400, "Missing query parameter 'path'.");
+                    return;
+                }
+                Path inputFile = Paths.get(path).toAbsolutePath().normalize();
+                if (root.isPresent() && !inputFile.startsWith(root.get())) {
+                    respond(exchange, 403, "Path is outside of the served directory.");
+                } else if (!Files.isRegularFile(inputFile)) {
+                    respond(exchange, 404, "No such file: " + path);
+                } else {
+                    processAndRespond(exchange, inputFile, requestOptions);
+                }
+            }
+            case "POST" -> {
+                // keep only the file name, it ends up in the mzQC input file metadata
+                String name = uploadName(query.getOrDefault("name", "upload.mzML"));
+                if (name == null) {
+                    respond(exchange, 400, "Invalid file name '" + query.get("name") + "'.");
+                    return;
+                }
+                Path uploadDir = Files.createTempDirectory("jmzqc-upload");
+                Path inputFile = uploadDir.resolve(name);
+                try {
+                    try ( InputStream in = exchange.getRequestBody()) {
+                        Files.copy(in, inputFile);
+                    }
+                    processAndRespond(exchange, inputFile, requestOptions);
+                } finally {
+                    Files.deleteIfExists(inputFile);
+                    Files.deleteIfExists(uploadDir);
+                }
+            }
+            default -> {
+                exchange.getResponseHeaders().set("Allow", "GET, POST");
+                respond(exchange, 405, "Method not allowed.");
+            }
+        }
+    }
+
+    /**
+     * @return the file name part of an upload name, or null if it does not
+     * name a file, e.g. for "/", "", "." or "..".
+     */
+    static String uploadName(String name) {
+        Path fileName;
+        try {
+            fileName = Paths.get(name).getFileName();
+        } catch (InvalidPathException ex) {
+            return null;
+        }
+        if (fileName == null) {
+            return null;
+        }
+        String text = fileName.toString();
+        return text.isEmpty() || ".".equals(text) || "..".equals(text) ? null : text;
+    }
+
+    private void processAndRespond(HttpExchange exchange, Path inputFile, ProteomicsDDAMs1QC.Options requestOptions) throws IOException {
+        Optional<MzQC> mzQC;
+        Optional<MzQCCodec.Encoded> encoded = Optional.empty();
+        try {
+            parsePermits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Interrupted while waiting for a free worker.");
+            return;
+        }
+        try {
+            mzQC = new ProteomicsDDAMs1QC(inputFile.toFile(), requestOptions).process();
+            if (mzQC.isPresent()) {
+                encoded = Optional.of(MzQCCodec.getInstance().encode(mzQC.get(), true));
+            }
+        } catch (URISyntaxException | IOException | RuntimeException ex) {
+            // e.g. corrupt binary arrays, the client still gets a status
+            Logger.getLogger(QcHttpServer.class.getName()).log(Level.SEVERE, "Processing of " + inputFile.getFileName() + " failed", ex);
+            respond(exchange, 500, "Processing of " + inputFile.getFileName() + " failed: " + ex);
+            return;
+        } finally {
+            parsePermits.release();
+        }
+        if (encoded.isEmpty()) {
+            respond(exchange, 422, "MzQC creation failed for " + inputFile.getFileName());
+        } else if (!encoded.get().isValid()) {
+            Set<ValidationMessage> messages = encoded.get().getMessages();
+            respond(exchange, 500, "Validation failed with " + messages.size() + " messages " + messages);
+        } else {
+            // the validated bytes are sent as they are, without serializing again
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, encoded.get().getLength());
+            try ( OutputStream out = exchange.getResponseBody()) {
+                encoded.get().writeTo(out);
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try ( OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int separator = pair.indexOf('=');
+            String key = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            parameters.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+}
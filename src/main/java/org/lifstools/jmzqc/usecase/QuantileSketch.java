@@ -0,0 +1,211 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch in the style of KLL (Karnin, Lang and Liberty,
+ * 2016). Values are kept in levels of compactors, an item on level h stands
+ * for 2^h input values. A full level is sorted and every other item, starting
+ * at a random offset, is promoted to the next level. Level capacities shrink
+ * geometrically towards the bottom, so memory stays at a few times
+ * {@code k} items regardless of the number of values, with a rank error of
+ * roughly 1.7 / k. The random offsets come from a fixed seed, so results are
+ * reproducible.
+ *
+ * @author Nils Hoffmann
+ */
+public class QuantileSketch {
+
+    /**
+     * Default size parameter, for a rank error below 1%.
+     */
+    public static final int DEFAULT_K = 200;
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+    private final int k;
+    private double[][] levels = new double[1][];
+    private int[] sizes = new int[1];
+    private long count;
+    private long random = 0x9E3779B97F4A7C15L;
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the capacity of the top level, at least 8.
+     */
+    public QuantileSketch(int k) {
+        if (k < 8) {
+            throw new IllegalArgumentException("k must be at least 8, was " + k);
+        }
+        this.k = k;
+        this.levels[0] = new double[capacity(0)];
+    }
+
+    /**
+     * Adds a value, NaN is ignored.
+     *
+     * @param value the value.
+     */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        append(0, value);
+        count++;
+        if (sizes[0] >= capacity(0)) {
+            compress();
+        }
+    }
+
+    /**
+     * Adds the values of another sketch to this one.
+     *
+     * @param other the other sketch, not modified.
+     */
+    public void merge(QuantileSketch other) {
+        while (levels.length < other.levels.length) {
+            addLevel();
+        }
+        for (int level = 0; level < other.levels.length; level++) {
+            for (int i = 0; i < other.sizes[level]; i++) {
+                append(level, other.levels[level][i]);
+            }
+        }
+        count += other.count;
+        compress();
+    }
+
+    /**
+     * @return the number of values added.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @param quantile the quantile, between 0 and 1.
+     * @return the approximate value at the quantile, or NaN if empty.
+     */
+    public double getQuantile(double quantile) {
+        return getQuantiles(quantile)[0];
+    }
+
+    /**
+     * @param quantiles the quantiles, between 0 and 1.
+     * @return the approximate values at the quantiles, NaN if empty.
+     */
+    public double[] getQuantiles(double... quantiles) {
+        double[] result = new double[quantiles.length];
+        int items = 0;
+        for (int size : sizes) {
+            items += size;
+        }
+        if (items == 0) {
+            Arrays.fill(result, Double.NaN);
+            return result;
+        }
+        // sort the items by value, keeping their weights
+        double[] values = new double[items];
+        long[] weights = new long[items];
+        Integer[] order = new Integer[items];
+        int n = 0;
+        long totalWeight = 0;
+        for (int level = 0; level < levels.length; level++) {
+            for (int i = 0; i < sizes[level]; i++) {
+                values[n] = levels[level][i];
+                weights[n] = 1L << level;
+                totalWeight += weights[n];
+                order[n] = n;
+                n++;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+        for (int q = 0; q < quantiles.length; q++) {
+            double target = Math.max(0, Math.min(1, quantiles[q])) * totalWeight;
+            long cumulative = 0;
+            result[q] = values[order[items - 1]];
+            for (int i = 0; i < items; i++) {
+                cumulative += weights[order[i]];
+                if (cumulative >= target) {
+                    result[q] = values[order[i]];
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private int capacity(int level) {
+        int depth = levels.length - 1 - level;
+        return Math.max(2, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    private void compress() {
+        for (int level = 0; level < levels.length; level++) {
+            if (sizes[level] >= capacity(level)) {
+                if (level + 1 == levels.length) {
+                    addLevel();
+                }
+                compact(level);
+            }
+        }
+    }
+
+    /**
+     * Promotes every other item of a level to the next level. With an odd
+     * number of items, the largest stays behind.
+     */
+    private void compact(int level) {
+        double[] items = levels[level];
+        int size = sizes[level];
+        Arrays.sort(items, 0, size);
+        int even = size & ~1;
+        for (int i = nextBit(); i < even; i += 2) {
+            append(level + 1, items[i]);
+        }
+        if (even < size) {
+            items[0] = items[size - 1];
+            sizes[level] = 1;
+        } else {
+            sizes[level] = 0;
+        }
+    }
+
+    private void append(int level, double value) {
+        if (sizes[level] == levels[level].length) {
+            levels[level] = Arrays.copyOf(levels[level], Math.max(2, levels[level].length * 2));
+        }
+        levels[level][sizes[level]++] = value;
+    }
+
+    private void addLevel() {
+        levels = Arrays.copyOf(levels, levels.length + 1);
+        sizes = Arrays.copyOf(sizes, sizes.length + 1);
+        levels[levels.length - 1] = new double[capacity(levels.length - 1)];
+    }
+
+    private int nextBit() {
+        // xorshift64
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return (int) (random & 1);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.lifstools.jmzqc.CvParameter;
+import org.lifstools.jmzqc.QualityMetric;
+
+/**
+ * Persistent, size bounded cache for the quality metrics and the input file
+ * properties of a run. Entries are
+ * keyed by a fingerprint of the input file content and the version of the
+ * metric set, so unchanged runs are never processed twice, while changed files
+ * or changed metric implementations miss the cache. The least recently used
+ * entries are evicted once the cache grows beyond its maximum size.
+ *
+ * @author Nils Hoffmann
+ */
+public class ResultCache {
+
+    /**
+     * Number of bytes hashed at the start and at the end of a file.
+     */
+    static final int PARTIAL_HASH_BYTES = 1024 * 1024;
+
+    private static final String ENTRY_SUFFIX = ".json.gz";
+    private static final TypeReference<Entry> ENTRY_TYPE = new TypeReference<Entry>() {
+    };
+
+    private final Path directory;
+    private final long maxBytes;
+    private final ObjectWriter writer;
+    private final ObjectReader reader;
+
+    /**
+     * @param directory the cache directory, created if it does not exist.
+     * @param maxBytes the maximum total size of all cache entries.
+     * @throws IOException if the directory can not be created.
+     */
+    public ResultCache(Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+        this.writer = MzQCCodec.getInstance().getMapper().writerFor(ENTRY_TYPE);
+        this.reader = MzQCCodec.getInstance().getMapper().readerFor(ENTRY_TYPE);
+    }
+
+    /**
+     * The cached results of a run.
+     *
+     * @param fileProperties the input file properties, e.g. the acquisition
+     * time and instrument read from the file header.
+     * @param metrics the quality metrics.
+     */
+    public static record Entry(List<CvParameter> fileProperties, List<QualityMetric> metrics) {
+
+    }
+
+    /**
+     * Computes the cache key of a file. For speed, only the size, the
+     * modification time and the first and last
+     * {@link #PARTIAL_HASH_BYTES} of the file are hashed.
+     *
+     * @param file the input file.
+     * @param metricSetVersion identifies the metrics computed for the file.
+     * Must change whenever the metric output changes.
+     * @return the hex encoded SHA-256 key.
+     * @throws IOException if the file can not be read.
+     */
+    public static String key(Path file, String metricSetVersion) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        digest.update(metricSetVersion.getBytes(StandardCharsets.UTF_8));
+        long size = Files.size(file);
+        ByteBuffer header = ByteBuffer.allocate(2 * Long.BYTES);
+        header.putLong(size).putLong(Files.getLastModifiedTime(file).toMillis());
+        digest.update(header.array());
+        try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(PARTIAL_HASH_BYTES);
+            update(digest, channel, buffer, 0);
+            if (size > PARTIAL_HASH_BYTES) {
+                update(digest, channel, buffer, Math.max(PARTIAL_HASH_BYTES, size - PARTIAL_HASH_BYTES));
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        digest.update(buffer);
+    }
+
+    /**
+     * Looks up the results for a key and marks the entry as recently used.
+     *
+     * @param key the cache key.
+     * @return the cached results, or an empty optional on a cache miss.
+     * @throws IOException if the entry exists but can not be read.
+     */
+    public Optional<Entry> get(String key) throws IOException {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        Entry cached;
+        try ( InputStream in = new GZIPInputStream(Files.newInputStream(entry), 1 << 16)) {
+            cached = reader.readValue(in);
+        } catch (NoSuchFileException ex) {
+            return Optional.empty();
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException ex) {
+            // evicted concurrently, the results are still valid
+        }
+        return Optional.of(cached);
+    }
+
+    /**
+     * Stores the results for a key and evicts the least recently used entries
+     * if the cache has grown beyond its maximum size.
+     *
+     * @param key the cache key.
+     * @param results the results to store.
+     * @throws IOException if the entry can not be written.
+     */
+    public void put(String key, Entry results) throws IOException {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try ( OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+                writer.writeValue(out, results);
+            }
+            Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        evict();
+    }
+
+    private synchronized void evict() throws IOException {
+        List<Path> entries;
+        try ( Stream<Path> paths = Files.list(directory)) {
+            entries = paths.filter(path -> path.getFileName().toString().endsWith(ENTRY_SUFFIX)).collect(Collectors.toList());
+        }
+        List<CacheEntry> cacheEntries = new ArrayList<>(entries.size());
+        long totalBytes = 0;
+        for (Path path : entries) {
+            try {
+                CacheEntry cacheEntry = new CacheEntry(path, Files.size(path), Files.getLastModifiedTime(path).toMillis());
+                cacheEntries.add(cacheEntry);
+                totalBytes += cacheEntry.bytes();
+            } catch (NoSuchFileException ex) {
+                // removed concurrently
+            }
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        cacheEntries.sort(Comparator.comparingLong(CacheEntry::lastUsed));
+        for (CacheEntry cacheEntry : cacheEntries) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(cacheEntry.path());
+            totalBytes -= cacheEntry.bytes();
+        }
+    }
+
+    private static record CacheEntry(Path path, long bytes, long lastUsed) {
+
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import io.github.msdk.datamodel.MsScan;
+import io.github.msdk.datamodel.RawDataFile;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import org.lifstools.jmzqc.QualityMetric;
+
+/**
+ * Computes a set of scan level metrics in a single pass over the spectra of a
+ * run. Adding another {@link MetricAccumulator} does not add another pass over
+ * the data.
+ *
+ * @author Nils Hoffmann
+ */
+public class ScanMetricEngine implements Consumer<SpectrumHeader> {
+
+    private final List<MetricAccumulator> accumulators;
+    private final SpectrumHeader header = new SpectrumHeader();
+    /**
+     * Time spent in each accumulator, only tracked while profiling.
+     */
+    private final long[] computeNanos;
+    private String fileName;
+
+    public ScanMetricEngine(MetricAccumulator... accumulators) {
+        this(Arrays.asList(accumulators));
+    }
+
+    public ScanMetricEngine(List<MetricAccumulator> accumulators) {
+        this.accumulators = new ArrayList<>(accumulators);
+        this.computeNanos = PhaseProfiler.isMetricTimingActive() ? new long[accumulators.size()] : null;
+    }
+
+    /**
+     * @return true if any accumulator needs the peak arrays.
+     */
+    public boolean needsPeaks() {
+        for (MetricAccumulator accumulator : accumulators) {
+            if (accumulator.needsPeaks()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void accept(SpectrumHeader header) {
+        if (computeNanos == null) {
+            for (MetricAccumulator accumulator : accumulators) {
+                accumulator.accept(header);
+            }
+        } else {
+            for (int i = 0; i < accumulators.size(); i++) {
+                long start = System.nanoTime();
+                accumulators.get(i).accept(header);
+                computeNanos[i] += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Visits all scans of an msdk raw data file once.
+     *
+     * @param rawDataFile the raw data file.
+     * @return the quality metrics, in the order of the accumulators.
+     */
+    public List<QualityMetric> process(RawDataFile rawDataFile) {
+        fileName = rawDataFile.getName();
+        List<MsScan> scans = rawDataFile.getScans();
+        boolean peaks = needsPeaks();
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("compute", fileName).scans(scans.size())) {
+            for (MsScan scan : scans) {
+                header.set(scan, peaks);
+                accept(header);
+            }
+            return finish(new MzMLHeaderReader.Summary(scans.size(), rawDataFile.getChromatograms().size()));
+        }
+    }
+
+    /**
+     * Streams the spectrum headers of an mzML file once. Peak data is only
+     * read if an accumulator needs it.
+     *
+     * @param mzML the mzML file.
+     * @return the quality metrics, in the order of the accumulators.
+     * @throws IOException if the file can not be read.
+     */
+    public List<QualityMetric> process(Path mzML) throws IOException {
+        fileName = mzML.getFileName().toString();
+        // parsing and computing are one pass in streaming mode
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("parse and compute", fileName).bytes(Files.size(mzML))) {
+            MzMLHeaderReader.Summary summary = new MzMLHeaderReader(needsPeaks()).read(mzML, this);
+            phase.scans(summary.spectrumCount());
+            return finish(summary);
+        }
+    }
+
+    /**
+     * Merges the state of an engine that saw the spectra directly following
+     * the spectra seen by this engine. Both engines must have been created
+     * with the same kind of accumulators, in the same order.
+     *
+     * @param later the engine for the later spectra.
+     */
+    void merge(ScanMetricEngine later) {
+        if (later.accumulators.size() != accumulators.size()) {
+            throw new IllegalArgumentException("Can not merge engines with " + accumulators.size() + " and " + later.accumulators.size() + " accumulators");
+        }
+        for (int i = 0; i < accumulators.size(); i++) {
+            accumulators.get(i).merge(later.accumulators.get(i));
+            if (computeNanos != null && later.computeNanos != null) {
+                computeNanos[i] += later.computeNanos[i];
+            }
+        }
+    }
+
+    void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Finalizes all accumulators.
+     *
+     * @param summary the spectrum and chromatogram counts of the run.
+     * @return the quality metrics, in the order of the accumulators.
+     */
+    public List<QualityMetric> finish(MzMLHeaderReader.Summary summary) {
+        List<QualityMetric> metrics = new ArrayList<>(accumulators.size());
+        for (int i = 0; i < accumulators.size(); i++) {
+            long start = System.nanoTime();
+            QualityMetric metric = accumulators.get(i).finish(summary);
+            metrics.add(metric);
+            if (computeNanos != null) {
+                PhaseProfiler.recordMetric(metric.accession() + " " + metric.name(), fileName, summary.spectrumCount(), computeNanos[i] + System.nanoTime() - start);
+            }
+        }
+        return metrics;
+    }
+}
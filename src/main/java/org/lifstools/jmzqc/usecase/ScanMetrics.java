@@ -0,0 +1,678 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.lifstools.jmzqc.BaseQuality;
+import org.lifstools.jmzqc.ControlledVocabulary;
+import org.lifstools.jmzqc.CvParameter;
+import org.lifstools.jmzqc.QualityMetric;
+import org.lifstools.jmzqc.Unit;
+
+/**
+ * Factory for the {@link MetricAccumulator}s of the scan level metrics.
+ * Accumulators are stateful, so every run needs new instances.
+ *
+ * @author Nils Hoffmann
+ */
+public final class ScanMetrics {
+
+    /**
+     * Accepts spectra of all ms levels.
+     */
+    public static final int ALL_MS_LEVELS = 0;
+
+    /**
+     * Prefix of the metrics and table columns that have no PSI-MS term yet.
+     * Documents that use them must declare {@link #localVocabulary()}.
+     */
+    public static final String LOCAL_CV_PREFIX = "JMZQC:";
+
+    /**
+     * Description of metrics with a {@link #LOCAL_CV_PREFIX} accession.
+     */
+    static final String LOCAL_TERM_NOTE = "local placeholder term, not defined in PSI-MS";
+
+    private static final Map<String, String> BASE_PEAK_INTENSITY_UNIT_LOOKUP = Map.of(
+            "MS:1000131", "number of detector counts",
+            "MS:1000132", "percent of base peak",
+            "MS:1000814", "counts per second",
+            "MS:1000905", "percent of base peak times 100",
+            "UO:0000269", "absorbance unit");
+
+    private ScanMetrics() {
+    }
+
+    /**
+     * @return accumulator for {@code MS:4000071} "number of chromatograms".
+     */
+    public static MetricAccumulator numberOfChromatograms() {
+        return new NumberOfChromatograms();
+    }
+
+    /**
+     * @param msLevel the ms level to include, or {@link #ALL_MS_LEVELS}.
+     * @return accumulator for {@code MS:4000069} "m/z acquisition range".
+     */
+    public static MetricAccumulator mzRange(int msLevel) {
+        return new MzRange(msLevel);
+    }
+
+    /**
+     * @param msLevel the ms level to include, or {@link #ALL_MS_LEVELS}.
+     * @return accumulator for {@code MS:4000070} "retention time acquisition
+     * range".
+     */
+    public static MetricAccumulator rtRange(int msLevel) {
+        return new RtRange(msLevel);
+    }
+
+    /**
+     * @param msLevel the ms level to include, or {@link #ALL_MS_LEVELS}.
+     * @return accumulator for {@code MS:1000505} "base peak intensity".
+     */
+    public static MetricAccumulator basePeakIntensity(int msLevel) {
+        return new BasePeakIntensity(msLevel);
+    }
+
+    /**
+     * @return accumulator for the MS1 {@code MS:4000104} "total ion currents"
+     * table.
+     */
+    public static MetricAccumulator totalIonCurrents() {
+        return new TotalIonCurrents();
+    }
+
+    /**
+     * @return accumulator for {@code MS:4000099} "number of empty MS1 scans".
+     */
+    public static MetricAccumulator emptyMs1Scans() {
+        return new EmptyMs1Scans();
+    }
+
+    /**
+     * @return accumulator for the MS2 {@code MS:4000063} "MS2 known precursor
+     * charges fractions" table.
+     */
+    public static MetricAccumulator precursorChargeFractions() {
+        return new PrecursorChargeFractions();
+    }
+
+    /**
+     * @return accumulator for {@code JMZQC:0000001} "number of MS2 spectra per
+     * cycle", one value per MS1 scan.
+     */
+    public static MetricAccumulator ms2PerCycle() {
+        return new Ms2PerCycle();
+    }
+
+    /**
+     * @param msLevel the ms level to include, or {@link #ALL_MS_LEVELS}.
+     * @param n the number of most intense peaks.
+     * @return accumulator for {@code JMZQC:0000002} "top-N intensity
+     * fraction", the share of the total intensity in the n most intense peaks
+     * of each spectrum. Reads peaks.
+     */
+    public static MetricAccumulator topNIntensityFraction(int msLevel, int n) {
+        return new TopNIntensityFraction(msLevel, n);
+    }
+
+    /**
+     * @param msLevel the ms level to include, or {@link #ALL_MS_LEVELS}.
+     * @return accumulator for {@code JMZQC:0000003} "signal to noise ratio",
+     * the maximum over the median intensity of each spectrum. Reads peaks.
+     */
+    public static MetricAccumulator signalToNoise(int msLevel) {
+        return new SignalToNoise(msLevel);
+    }
+
+    /**
+     * The {@link #LOCAL_CV_PREFIX} terms are placeholders for metrics without
+     * a PSI-MS term. There is no ontology file behind them, the URI only names
+     * the project that defines them.
+     *
+     * @return the controlled vocabulary of the {@link #LOCAL_CV_PREFIX} terms.
+     * @throws URISyntaxException if the vocabulary URI is invalid.
+     */
+    public static ControlledVocabulary localVocabulary() throws URISyntaxException {
+        return new ControlledVocabulary(
+                "jmzqc-usecase local placeholder terms, not a resolvable ontology",
+                new URI("https://github.com/nilshoffmann/jmzqc-usecase"),
+                "1"
+        );
+    }
+
+    /**
+     * @param bqs the qualities to check.
+     * @return true if any metric uses a {@link #LOCAL_CV_PREFIX} term.
+     */
+    public static boolean usesLocalTerms(List<BaseQuality> bqs) {
+        return bqs.stream()
+                .flatMap(bq -> bq.qualityMetrics().stream())
+                .anyMatch(metric -> metric.accession().startsWith(LOCAL_CV_PREFIX))
+                || bqs.stream()
+                        .filter(bq -> bq.metadata() != null && bq.metadata().inputFiles() != null)
+                        .flatMap(bq -> bq.metadata().inputFiles().stream())
+                        .filter(inputFile -> inputFile.fileProperties() != null)
+                        .flatMap(inputFile -> inputFile.fileProperties().stream())
+                        .anyMatch(property -> property.accession() != null && property.accession().startsWith(LOCAL_CV_PREFIX));
+    }
+
+    static boolean matches(int msLevel, SpectrumHeader header) {
+        return msLevel == ALL_MS_LEVELS || header.getMsLevel() == msLevel;
+    }
+
+    static class NumberOfChromatograms implements MetricAccumulator {
+
+        @Override
+        public void accept(SpectrumHeader header) {
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            return new QualityMetric("MS:4000071", null, "number of chromatograms", summary.chromatogramCount(), null);
+        }
+    }
+
+    static class MzRange implements MetricAccumulator {
+
+        final int msLevel;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        MzRange(int msLevel) {
+            this.msLevel = msLevel;
+        }
+
+        @Override
+        public void accept(SpectrumHeader header) {
+            if (!matches(msLevel, header)) {
+                return;
+            }
+            // comparisons with NaN are false, so missing values are skipped
+            if (header.getMzRangeLower() < min) {
+                min = header.getMzRangeLower();
+            }
+            if (header.getMzRangeUpper() > max) {
+                max = header.getMzRangeUpper();
+            }
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+            MzRange other = (MzRange) later;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            boolean empty = min > max;
+            return new QualityMetric(
+                    "MS:4000069",
+                    null,
+                    "m/z acquisition range",
+                    Arrays.asList(empty ? Double.NaN : min, empty ? Double.NaN : max),
+                    null
+            );
+        }
+    }
+
+    static class RtRange implements MetricAccumulator {
+
+        final int msLevel;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+
+        RtRange(int msLevel) {
+            this.msLevel = msLevel;
+        }
+
+        @Override
+        public void accept(SpectrumHeader header) {
+            if (!matches(msLevel, header)) {
+                return;
+            }
+            float rt = header.getRetentionTime();
+            if (rt < min) {
+                min = rt;
+            }
+            if (rt > max) {
+                max = rt;
+            }
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+            RtRange other = (RtRange) later;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            boolean empty = min > max;
+            return new QualityMetric(
+                    "MS:4000070",
+                    null,
+                    "retention time acquisition range",
+                    Arrays.asList(empty ? Float.NaN : min, empty ? Float.NaN : max),
+                    new Unit(new CvParameter("UO:0000010", null, "second", null), null)
+            );
+        }
+    }
+
+    static class BasePeakIntensity implements MetricAccumulator {
+
+        final int msLevel;
+        final FloatColumn intensities = new FloatColumn();
+        String unitAccession;
+
+        BasePeakIntensity(int msLevel) {
+            this.msLevel = msLevel;
+        }
+
+        @Override
+        public void accept(SpectrumHeader header) {
+            if (!matches(msLevel, header) || !header.hasBasePeakIntensity()) {
+                return;
+            }
+            intensities.add(header.getBasePeakIntensity());
+            if (unitAccession == null) {
+                unitAccession = header.getBasePeakIntensityUnit() == null ? "MS:1000131" : header.getBasePeakIntensityUnit();
+            }
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+            BasePeakIntensity other = (BasePeakIntensity) later;
+            intensities.addAll(other.intensities);
+            if (unitAccession == null) {
+                unitAccession = other.unitAccession;
+            }
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            String unitTerm = unitAccession == null ? "MS:1000131" : unitAccession;
+            return new QualityMetric(
+                    "MS:1000505",
+                    null,
+                    "base peak intensity",
+                    intensities.toArray(),
+                    new Unit(new CvParameter(unitTerm, null, BASE_PEAK_INTENSITY_UNIT_LOOKUP.getOrDefault(unitTerm, "number of detector counts"), null), null)
+            );
+        }
+    }
+
+    static class TotalIonCurrents implements MetricAccumulator {
+
+        final ProteomicsDDAMs1QC.TicTable ticTable = new ProteomicsDDAMs1QC.TicTable();
+
+        @Override
+        public void accept(SpectrumHeader header) {
+            if (header.getMsLevel() == 1) {
+                ticTable.add(header.getTIC(), header.getRetentionTime(), header.getId(), header.getNumberOfDataPoints());
+            }
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+            ticTable.addAll(((TotalIonCurrents) later).ticTable);
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            return new QualityMetric(
+                    "MS:4000104",
+                    null,
+                    "total ion currents",
+                    ticTable.toColumnMap(), null);
+        }
+    }
+
+    static class EmptyMs1Scans implements MetricAccumulator {
+
+        long count;
+
+        @Override
+        public void accept(SpectrumHeader header) {
+            if (header.getMsLevel() == 1 && (header.getNumberOfDataPoints() == 0 || header.getTIC() == 0)) {
+                count++;
+            }
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+            count += ((EmptyMs1Scans) later).count;
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            return new QualityMetric("MS:4000099", null, "number of empty MS1 scans", count, null);
+        }
+    }
+
+    static class PrecursorChargeFractions implements MetricAccumulator {
+
+        long[] counts = new long[8];
+        long ms2Spectra;
+
+        @Override
+        public void accept(SpectrumHeader header) {
+            if (header.getMsLevel() != 2) {
+                return;
+            }
+            ms2Spectra++;
+            int charge = header.getPrecursorCharge();
+            if (charge > 0) {
+                if (charge >= counts.length) {
+                    counts = Arrays.copyOf(counts, Math.max(charge + 1, counts.length * 2));
+                }
+                counts[charge]++;
+            }
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+            PrecursorChargeFractions other = (PrecursorChargeFractions) later;
+            if (other.counts.length > counts.length) {
+                counts = Arrays.copyOf(counts, other.counts.length);
+            }
+            for (int i = 0; i < other.counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            ms2Spectra += other.ms2Spectra;
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            IntColumn charges = new IntColumn(counts.length);
+            double[] fractions = new double[counts.length];
+            for (int charge = 1; charge < counts.length; charge++) {
+                if (counts[charge] > 0) {
+                    fractions[charges.size()] = (double) counts[charge] / ms2Spectra;
+                    charges.add(charge);
+                }
+            }
+            var table = new LinkedHashMap<String, Object>();
+            table.put("MS:1000041", charges.toArray());
+            table.put("UO:0000191", Arrays.copyOf(fractions, charges.size()));
+            return new QualityMetric("MS:4000063", null, "MS2 known precursor charges fractions", table, null);
+        }
+    }
+
+    static class Ms2PerCycle implements MetricAccumulator {
+
+        final IntColumn counts = new IntColumn();
+        /**
+         * MS2 spectra before the first MS1 scan, which belong to a cycle
+         * started in an earlier range.
+         */
+        int leading;
+        int current;
+        boolean inCycle;
+
+        @Override
+        public void accept(SpectrumHeader header) {
+            if (header.getMsLevel() == 1) {
+                if (inCycle) {
+                    counts.add(current);
+                }
+                current = 0;
+                inCycle = true;
+            } else if (header.getMsLevel() == 2) {
+                if (inCycle) {
+                    current++;
+                } else {
+                    leading++;
+                }
+            }
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+            Ms2PerCycle other = (Ms2PerCycle) later;
+            if (inCycle) {
+                current += other.leading;
+            } else {
+                leading += other.leading;
+            }
+            if (other.inCycle) {
+                if (inCycle) {
+                    counts.add(current);
+                }
+                counts.addAll(other.counts);
+                current = other.current;
+                inCycle = true;
+            }
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            IntColumn values = new IntColumn(counts.size() + 1);
+            values.addAll(counts);
+            if (inCycle) {
+                values.add(current);
+            }
+            return new QualityMetric("JMZQC:0000001", LOCAL_TERM_NOTE, "number of MS2 spectra per cycle", values.toArray(), null);
+        }
+    }
+
+    static class TopNIntensityFraction implements MetricAccumulator {
+
+        final int msLevel;
+        final int n;
+        final FloatColumn fractions = new FloatColumn();
+        /**
+         * Min-heap of the n largest intensities seen so far.
+         */
+        final double[] heap;
+
+        TopNIntensityFraction(int msLevel, int n) {
+            if (n < 1) {
+                throw new IllegalArgumentException("n must be at least 1, was " + n);
+            }
+            this.msLevel = msLevel;
+            this.n = n;
+            this.heap = new double[n];
+        }
+
+        @Override
+        public boolean needsPeaks() {
+            return true;
+        }
+
+        @Override
+        public void accept(SpectrumHeader header) {
+            if (!matches(msLevel, header)) {
+                return;
+            }
+            BinaryDataArray intensities = header.getIntensityArray();
+            int size = intensities.size();
+            if (size == 0) {
+                return;
+            }
+            double[] values = intensities.values();
+            double total = 0;
+            int heapSize = 0;
+            for (int i = 0; i < size; i++) {
+                double value = values[i];
+                total += value;
+                if (heapSize < n) {
+                    heap[heapSize] = value;
+                    siftUp(heapSize++);
+                } else if (value > heap[0]) {
+                    heap[0] = value;
+                    siftDown(heapSize);
+                }
+            }
+            double top = 0;
+            for (int i = 0; i < heapSize; i++) {
+                top += heap[i];
+            }
+            fractions.add(total > 0 ? (float) (top / total) : Float.NaN);
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (heap[parent] <= heap[index]) {
+                    return;
+                }
+                swap(parent, index);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int heapSize) {
+            int index = 0;
+            while (true) {
+                int smallest = index;
+                int left = 2 * index + 1;
+                int right = left + 1;
+                if (left < heapSize && heap[left] < heap[smallest]) {
+                    smallest = left;
+                }
+                if (right < heapSize && heap[right] < heap[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == index) {
+                    return;
+                }
+                swap(smallest, index);
+                index = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            double tmp = heap[i];
+            heap[i] = heap[j];
+            heap[j] = tmp;
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+            fractions.addAll(((TopNIntensityFraction) later).fractions);
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            return new QualityMetric("JMZQC:0000002", "N=" + n + "; " + LOCAL_TERM_NOTE, "top-N intensity fraction", fractions.toArray(), null);
+        }
+    }
+
+    static class SignalToNoise implements MetricAccumulator {
+
+        final int msLevel;
+        final FloatColumn ratios = new FloatColumn();
+        double[] scratch = new double[0];
+
+        SignalToNoise(int msLevel) {
+            this.msLevel = msLevel;
+        }
+
+        @Override
+        public boolean needsPeaks() {
+            return true;
+        }
+
+        @Override
+        public void accept(SpectrumHeader header) {
+            if (!matches(msLevel, header)) {
+                return;
+            }
+            BinaryDataArray intensities = header.getIntensityArray();
+            int size = intensities.size();
+            if (size == 0) {
+                return;
+            }
+            if (scratch.length < size) {
+                scratch = new double[Math.max(size, scratch.length * 2)];
+            }
+            System.arraycopy(intensities.values(), 0, scratch, 0, size);
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                max = Math.max(max, scratch[i]);
+            }
+            double median = select(scratch, size, size / 2);
+            if (size % 2 == 0) {
+                // the lower middle is the largest value below the upper middle
+                double lower = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < size / 2; i++) {
+                    lower = Math.max(lower, scratch[i]);
+                }
+                median = (median + lower) / 2;
+            }
+            ratios.add(median > 0 ? (float) (max / median) : Float.NaN);
+        }
+
+        /**
+         * Quickselect, leaves the k smallest values in front of index k.
+         */
+        private static double select(double[] values, int size, int k) {
+            int left = 0;
+            int right = size - 1;
+            while (left < right) {
+                double pivot = values[(left + right) >>> 1];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (values[i] < pivot) {
+                        i++;
+                    }
+                    while (values[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        double tmp = values[i];
+                        values[i] = values[j];
+                        values[j] = tmp;
+                        i++;
+                        j--;
+                    }
+                }
+                if (k <= j) {
+                    right = j;
+                } else if (k >= i) {
+                    left = i;
+                } else {
+                    break;
+                }
+            }
+            return values[k];
+        }
+
+        @Override
+        public void merge(MetricAccumulator later) {
+            ratios.addAll(((SignalToNoise) later).ratios);
+        }
+
+        @Override
+        public QualityMetric finish(MzMLHeaderReader.Summary summary) {
+            return new QualityMetric("JMZQC:0000003", "maximum / median intensity; " + LOCAL_TERM_NOTE, "signal to noise ratio", ratios.toArray(), null);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.google.common.collect.Range;
+import io.github.msdk.datamodel.IsolationInfo;
+import io.github.msdk.datamodel.MsScan;
+import io.github.msdk.io.mzml.data.MzMLCVParam;
+import io.github.msdk.io.mzml.data.MzMLMsScan;
+
+/**
+ * Mutable view on the metadata of a single mzML spectrum, as read by
+ * {@link MzMLHeaderReader} or copied from an msdk {@link MsScan}. Producers
+ * reuse one instance for all spectra of a file, so consumers must copy any
+ * values they want to keep. Peak arrays are only available if the producer was
+ * asked for them, see {@link MetricAccumulator#needsPeaks()}, and are decoded
+ * on first access.
+ *
+ * @author Nils Hoffmann
+ */
+public class SpectrumHeader {
+
+    String id;
+    int index;
+    int msLevel;
+    int defaultArrayLength;
+    float retentionTime;
+    float tic;
+    float basePeakIntensity;
+    boolean basePeakIntensityPresent;
+    String basePeakIntensityUnit;
+    double lowestObservedMz;
+    double highestObservedMz;
+    double scanWindowLowerLimit;
+    double scanWindowUpperLimit;
+    int precursorCharge;
+    double precursorMz;
+    boolean peaks;
+    final BinaryDataArray mzArray = new BinaryDataArray();
+    final BinaryDataArray intensityArray = new BinaryDataArray();
+    private double[] mzBuffer = new double[0];
+    private float[] intensityBuffer = new float[0];
+
+    public SpectrumHeader() {
+        reset();
+    }
+
+    final void reset() {
+        id = null;
+        index = -1;
+        msLevel = 1;
+        defaultArrayLength = 0;
+        retentionTime = Float.NaN;
+        tic = Float.NaN;
+        basePeakIntensity = Float.NaN;
+        basePeakIntensityPresent = false;
+        basePeakIntensityUnit = null;
+        lowestObservedMz = Double.NaN;
+        highestObservedMz = Double.NaN;
+        scanWindowLowerLimit = Double.NaN;
+        scanWindowUpperLimit = Double.NaN;
+        precursorCharge = 0;
+        precursorMz = Double.NaN;
+        mzArray.reset();
+        intensityArray.reset();
+    }
+
+    /**
+     * Replaces the values of this header with those of an msdk scan.
+     *
+     * @param scan the scan to copy the values from.
+     * @param peaks if true, also copy the peak arrays.
+     */
+    void set(MsScan scan, boolean peaks) {
+        reset();
+        this.peaks = peaks;
+        msLevel = scan.getMsLevel() == null ? 1 : scan.getMsLevel();
+        retentionTime = scan.getRetentionTime() == null ? Float.NaN : scan.getRetentionTime();
+        tic = scan.getTIC() == null ? Float.NaN : scan.getTIC();
+        defaultArrayLength = scan.getNumberOfDataPoints() == null ? 0 : scan.getNumberOfDataPoints();
+        Range<Double> mzRange = scan.getMzRange();
+        if (mzRange != null) {
+            lowestObservedMz = mzRange.lowerEndpoint();
+            highestObservedMz = mzRange.upperEndpoint();
+        }
+        if (scan instanceof MzMLMsScan mzMLScan) {
+            id = mzMLScan.getId();
+            for (MzMLCVParam cvParam : mzMLScan.getCVParams().getCVParamsList()) {
+                if ("MS:1000505".equals(cvParam.getAccession())) {
+                    basePeakIntensity = Float.parseFloat(cvParam.getValue().orElse("NaN"));
+                    basePeakIntensityPresent = true;
+                    basePeakIntensityUnit = cvParam.getUnitAccession().orElse(null);
+                    break;
+                }
+            }
+        }
+        if (!scan.getIsolations().isEmpty()) {
+            IsolationInfo isolation = scan.getIsolations().get(0);
+            precursorCharge = isolation.getPrecursorCharge() == null ? 0 : isolation.getPrecursorCharge();
+            precursorMz = isolation.getPrecursorMz() == null ? Double.NaN : isolation.getPrecursorMz();
+        }
+        if (peaks) {
+            mzBuffer = scan.getMzValues(mzBuffer);
+            intensityBuffer = scan.getIntensityValues(intensityBuffer);
+            mzArray.setDecoded(mzBuffer, defaultArrayLength);
+            intensityArray.setDecoded(intensityBuffer, defaultArrayLength);
+        }
+    }
+
+    /**
+     * @return the native spectrum id, e.g. {@code controllerType=0 controllerNumber=1 scan=1}.
+     */
+    public String getId() {
+        return id;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the ms level, defaults to 1 if the spectrum does not declare one.
+     */
+    public int getMsLevel() {
+        return msLevel;
+    }
+
+    /**
+     * @return the number of peaks, taken from the {@code defaultArrayLength}
+     * attribute.
+     */
+    public int getNumberOfDataPoints() {
+        return defaultArrayLength;
+    }
+
+    /**
+     * @return the scan start time in seconds, or NaN if not available.
+     */
+    public float getRetentionTime() {
+        return retentionTime;
+    }
+
+    /**
+     * @return the total ion current ({@code MS:1000285}), or NaN if not
+     * available.
+     */
+    public float getTIC() {
+        return tic;
+    }
+
+    /**
+     * @return the base peak intensity ({@code MS:1000505}), or NaN if not
+     * available.
+     */
+    public float getBasePeakIntensity() {
+        return basePeakIntensity;
+    }
+
+    public boolean hasBasePeakIntensity() {
+        return basePeakIntensityPresent;
+    }
+
+    /**
+     * @return the unit accession of the base peak intensity, or null if not
+     * given.
+     */
+    public String getBasePeakIntensityUnit() {
+        return basePeakIntensityUnit;
+    }
+
+    /**
+     * @return the lower end of the m/z range, preferring the lowest observed
+     * m/z over the scan window lower limit.
+     */
+    public double getMzRangeLower() {
+        return Double.isNaN(lowestObservedMz) ? scanWindowLowerLimit : lowestObservedMz;
+    }
+
+    /**
+     * @return the upper end of the m/z range, preferring the highest observed
+     * m/z over the scan window upper limit.
+     */
+    public double getMzRangeUpper() {
+        return Double.isNaN(highestObservedMz) ? scanWindowUpperLimit : highestObservedMz;
+    }
+
+    /**
+     * @return the charge of the first precursor, or 0 if unknown.
+     */
+    public int getPrecursorCharge() {
+        return precursorCharge;
+    }
+
+    /**
+     * @return the m/z of the first selected ion, or NaN if not available.
+     */
+    public double getPrecursorMz() {
+        return precursorMz;
+    }
+
+    /**
+     * @return the m/z array ({@code MS:1000514}), decoded on first access.
+     * @throws IllegalStateException if peaks were not read.
+     */
+    public BinaryDataArray getMzArray() {
+        checkPeaks();
+        return mzArray;
+    }
+
+    /**
+     * @return the intensity array ({@code MS:1000515}), decoded on first
+     * access.
+     * @throws IllegalStateException if peaks were not read.
+     */
+    public BinaryDataArray getIntensityArray() {
+        checkPeaks();
+        return intensityArray;
+    }
+
+    private void checkPeaks() {
+        if (!peaks) {
+            throw new IllegalStateException("Peak arrays were not read, the accumulator must declare needsPeaks()");
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A chain of stages connected by bounded queues. Every stage has its own pool
+ * of worker threads, so the stages work on different items at the same time,
+ * e.g. file N+1 is fetched while file N is parsed and the metrics of file N-1
+ * are written. A stage whose output queue is full blocks until the next stage
+ * catches up, which bounds the number of items in flight. An item that fails
+ * in one stage skips the remaining stages and is reported with its failure.
+ * A stage that is interrupted or throws an {@link Error} aborts the whole
+ * run instead.
+ *
+ * @author Nils Hoffmann
+ * @param <I> the type of the pipeline input.
+ * @param <O> the type of the output of the last stage.
+ */
+public class StagedPipeline<I, O> {
+
+    /**
+     * The work of one stage for one item.
+     */
+    @FunctionalInterface
+    public static interface StageFunction<A, B> {
+
+        B apply(A input) throws Exception;
+    }
+
+    /**
+     * Result of one input item. The output is only present if all stages
+     * succeeded.
+     */
+    public static record Item<I, O>(I input, Optional<O> output, Optional<String> failure) {
+
+        public boolean isSuccess() {
+            return failure.isEmpty();
+        }
+    }
+
+    /**
+     * Statistics of one stage. The queue depth is sampled from the queue in
+     * front of the stage whenever a worker takes an item. The blocked time is
+     * the time the workers waited for room in the next queue.
+     */
+    public static record StageStats(String name, int threads, long items, long failures, long busyNanos, long blockedNanos, long wallNanos, double meanQueueDepth, int maxQueueDepth, int queueCapacity) {
+
+        /**
+         * @return the items per second between the arrival of the first item
+         * and the end of the stage.
+         */
+        public double throughput() {
+            return wallNanos == 0 ? 0 : items * 1e9 / wallNanos;
+        }
+
+        /**
+         * @return the fraction of the worker time spent in the stage function.
+         */
+        public double utilization() {
+            return wallNanos == 0 ? 0 : (double) busyNanos / (threads * wallNanos);
+        }
+    }
+
+    /**
+     * Items in input order and the statistics of every stage.
+     */
+    public static record Result<I, O>(List<Item<I, O>> items, List<StageStats> stats) {
+
+        public void printStats(PrintStream out) {
+            out.println(String.format("%-16s %8s %8s %8s %10s %8s %12s %10s %12s", "stage", "threads", "items", "failed", "items/s", "busy %", "queue mean", "queue max", "blocked ms"));
+            for (StageStats stage : stats) {
+                out.println(String.format("%-16s %8d %8d %8d %10.2f %8.1f %12.2f %6d/%-3d %12.1f",
+                        stage.name(), stage.threads(), stage.items(), stage.failures(), stage.throughput(),
+                        stage.utilization() * 100, stage.meanQueueDepth(), stage.maxQueueDepth(), stage.queueCapacity(),
+                        stage.blockedNanos() / 1e6));
+            }
+        }
+    }
+
+    private static final class Envelope {
+
+        static final Envelope END = new Envelope(-1, null);
+
+        final int index;
+        final Object input;
+        Object value;
+        String failure;
+
+        Envelope(int index, Object input) {
+            this.index = index;
+            this.input = input;
+            this.value = input;
+        }
+    }
+
+    private static final class Stage {
+
+        final String name;
+        final int threads;
+        final int queueCapacity;
+        final StageFunction<Object, Object> function;
+
+        Stage(String name, int threads, int queueCapacity, StageFunction<Object, Object> function) {
+            this.name = name;
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+            this.function = function;
+        }
+    }
+
+    /**
+     * Counters of one stage for one run.
+     */
+    private static final class Counters {
+
+        final LongAdder items = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder blockedNanos = new LongAdder();
+        final LongAdder depthSum = new LongAdder();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        final AtomicLong firstArrival = new AtomicLong();
+        final AtomicInteger remainingWorkers;
+        volatile long end;
+
+        Counters(int threads) {
+            this.remainingWorkers = new AtomicInteger(threads);
+        }
+    }
+
+    private final int queueCapacity;
+    private final List<Stage> stages;
+
+    private StagedPipeline(int queueCapacity, List<Stage> stages) {
+        this.queueCapacity = queueCapacity;
+        this.stages = stages;
+    }
+
+    /**
+     * @param <I> the type of the pipeline input.
+     * @param queueCapacity the capacity of each queue between two stages.
+     * @return a pipeline without stages.
+     */
+    public static <I> StagedPipeline<I, I> create(int queueCapacity) {
+        return new StagedPipeline<>(Math.max(1, queueCapacity), List.of());
+    }
+
+    /**
+     * Reads the number of threads of a stage from the system property
+     * {@code jmzqc.pipeline.<stage>.threads}.
+     *
+     * @param stage the stage name.
+     * @param defaultThreads the default if the property is not set.
+     * @return the number of threads.
+     */
+    public static int threads(String stage, int defaultThreads) {
+        return Math.max(1, Integer.getInteger("jmzqc.pipeline." + stage + ".threads", defaultThreads));
+    }
+
+    /**
+     * Appends a stage whose input queue has the capacity of the pipeline.
+     *
+     * @param <R> the output type of the new stage.
+     * @param name the stage name, used in the statistics.
+     * @param threads the number of items the stage works on at once.
+     * @param function the work of the stage for one item.
+     * @return a new pipeline with the stage appended.
+     */
+    public <R> StagedPipeline<I, R> then(String name, int threads, StageFunction<? super O, ? extends R> function) {
+        return then(name, threads, queueCapacity, function);
+    }
+
+    /**
+     * Appends a stage with its own input queue capacity, e.g. to bound the
+     * number of large items waiting for the stage.
+     *
+     * @param <R> the output type of the new stage.
+     * @param name the stage name, used in the statistics.
+     * @param threads the number of items the stage works on at once.
+     * @param queueCapacity the capacity of the queue in front of the stage.
+     * @param function the work of the stage for one item.
+     * @return a new pipeline with the stage appended.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> StagedPipeline<I, R> then(String name, int threads, int queueCapacity, StageFunction<? super O, ? extends R> function) {
+        List<Stage> next = new ArrayList<>(stages);
+        next.add(new Stage(name, Math.max(1, threads), Math.max(1, queueCapacity), (input) -> function.apply((O) input)));
+        return new StagedPipeline<>(this.queueCapacity, List.copyOf(next));
+    }
+
+    /**
+     * Runs all inputs through the stages and waits until the last item has
+     * left the last stage.
+     *
+     * @param inputs the pipeline input.
+     * @return the items in input order and the stage statistics.
+     * @throws InterruptedException if interrupted while waiting, or if a
+     * stage was interrupted. All workers are interrupted in that case.
+     * @throws Error if a stage threw an error, e.g. an
+     * {@link OutOfMemoryError}.
+     */
+    @SuppressWarnings("unchecked")
+    public Result<I, O> run(List<I> inputs) throws InterruptedException {
+        List<BlockingQueue<Envelope>> queues = new ArrayList<>(stages.size() + 1);
+        for (Stage stage : stages) {
+            queues.add(new ArrayBlockingQueue<>(stage.queueCapacity));
+        }
+        queues.add(new ArrayBlockingQueue<>(queueCapacity));
+        Counters[] counters = new Counters[stages.size()];
+        List<ExecutorService> executors = new ArrayList<>(stages.size() + 1);
+        // a worker that stops early never forwards the end, so it wakes up the caller
+        Thread caller = Thread.currentThread();
+        AtomicReference<Throwable> abortCause = new AtomicReference<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        try {
+            ExecutorService feeder = Executors.newSingleThreadExecutor();
+            executors.add(feeder);
+            feeder.submit(() -> {
+                for (int i = 0; i < inputs.size(); i++) {
+                    queues.get(0).put(new Envelope(i, inputs.get(i)));
+                }
+                queues.get(0).put(Envelope.END);
+                return null;
+            });
+            for (int s = 0; s < stages.size(); s++) {
+                Stage stage = stages.get(s);
+                Counters stageCounters = new Counters(stage.threads);
+                counters[s] = stageCounters;
+                ExecutorService executor = Executors.newFixedThreadPool(stage.threads);
+                executors.add(executor);
+                BlockingQueue<Envelope> in = queues.get(s);
+                BlockingQueue<Envelope> out = queues.get(s + 1);
+                for (int t = 0; t < stage.threads; t++) {
+                    executor.submit(() -> {
+                        try {
+                            work(stage, stageCounters, in, out);
+                        } catch (InterruptedException | RuntimeException | Error ex) {
+                            abortCause.compareAndSet(null, ex);
+                            if (!stopped.getAndSet(true)) {
+                                caller.interrupt();
+                            }
+                            throw ex;
+                        }
+                        return null;
+                    });
+                }
+            }
+            Envelope[] done = new Envelope[inputs.size()];
+            BlockingQueue<Envelope> last = queues.get(stages.size());
+            try {
+                for (Envelope envelope = last.take(); envelope != Envelope.END; envelope = last.take()) {
+                    done[envelope.index] = envelope;
+                }
+            } catch (InterruptedException ex) {
+                throw aborted(abortCause.get(), ex);
+            }
+            List<Item<I, O>> items = new ArrayList<>(done.length);
+            for (Envelope envelope : done) {
+                items.add(new Item<>((I) envelope.input,
+                        envelope.failure == null ? Optional.ofNullable((O) envelope.value) : Optional.empty(),
+                        Optional.ofNullable(envelope.failure)));
+            }
+            List<StageStats> stats = new ArrayList<>(stages.size());
+            for (int s = 0; s < stages.size(); s++) {
+                stats.add(stats(stages.get(s), counters[s]));
+            }
+            return new Result<>(items, stats);
+        } finally {
+            stopped.set(true);
+            executors.forEach(ExecutorService::shutdownNow);
+        }
+    }
+
+    /**
+     * @return the exception to throw from {@link #run(List)} when a worker
+     * stopped with the given cause, or the interruption of the caller itself.
+     */
+    private static InterruptedException aborted(Throwable cause, InterruptedException interruption) {
+        if (cause == null) {
+            return interruption;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        if (cause instanceof RuntimeException runtimeException) {
+            throw new IllegalStateException("Pipeline stage failed", runtimeException);
+        }
+        InterruptedException stageInterruption = new InterruptedException("Pipeline stage was interrupted");
+        stageInterruption.initCause(cause);
+        return stageInterruption;
+    }
+
+    private static void work(Stage stage, Counters counters, BlockingQueue<Envelope> in, BlockingQueue<Envelope> out) throws InterruptedException {
+        while (true) {
+            Envelope envelope = in.take();
+            if (envelope == Envelope.END) {
+                // let the other workers of this stage see the end as well
+                in.put(Envelope.END);
+                if (counters.remainingWorkers.decrementAndGet() == 0) {
+                    counters.end = System.nanoTime();
+                    out.put(Envelope.END);
+                }
+                return;
+            }
+            counters.firstArrival.compareAndSet(0, System.nanoTime());
+            if (envelope.failure == null) {
+                int depth = in.size();
+                counters.depthSum.add(depth);
+                counters.maxDepth.accumulateAndGet(depth, Math::max);
+                long start = System.nanoTime();
+                try {
+                    envelope.value = stage.function.apply(envelope.value);
+                } catch (InterruptedException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    envelope.value = null;
+                    envelope.failure = stage.name + ": " + ex;
+                    counters.failures.increment();
+                } finally {
+                    counters.busyNanos.add(System.nanoTime() - start);
+                }
+                counters.items.increment();
+            }
+            long start = System.nanoTime();
+            out.put(envelope);
+            counters.blockedNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private StageStats stats(Stage stage, Counters counters) {
+        long items = counters.items.sum();
+        long first = counters.firstArrival.get();
+        long wall = first == 0 ? 0 : Math.max(0, counters.end - first);
+        return new StageStats(stage.name, stage.threads, items, counters.failures.sum(),
+                counters.busyNanos.sum(), counters.blockedNanos.sum(), wall,
+                items == 0 ? 0 : (double) counters.depthSum.sum() / items, counters.maxDepth.get(), stage.queueCapacity);
+    }
+}
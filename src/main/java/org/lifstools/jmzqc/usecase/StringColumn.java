@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.nio.CharBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Growable column of strings that share a common prefix. Only the suffixes are
+ * kept, back to back in one shared char buffer, so no {@link String} objects
+ * are held per row. {@link #asList()} creates the full strings on access.
+ *
+ * @author Nils Hoffmann
+ */
+public class StringColumn {
+
+    private final String prefix;
+    private char[] chars;
+    private int[] ends;
+    private int size;
+    private int length;
+
+    public StringColumn(String prefix) {
+        this(prefix, 1024);
+    }
+
+    public StringColumn(String prefix, int initialCapacity) {
+        this.prefix = prefix == null ? "" : prefix;
+        this.ends = new int[Math.max(1, initialCapacity)];
+        this.chars = new char[Math.max(16, initialCapacity * 16)];
+    }
+
+    /**
+     * Appends a value. The prefix of this column is prepended on access and
+     * must not be part of {@code suffix}.
+     *
+     * @param suffix the value without prefix, {@code null} is stored as
+     * "null".
+     */
+    public void add(CharSequence suffix) {
+        CharSequence value = suffix == null ? "null" : suffix;
+        int valueLength = value.length();
+        if (length + valueLength > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(length + valueLength, chars.length * 2));
+        }
+        for (int i = 0; i < valueLength; i++) {
+            chars[length + i] = value.charAt(i);
+        }
+        length += valueLength;
+        if (size == ends.length) {
+            ends = Arrays.copyOf(ends, ends.length * 2);
+        }
+        ends[size++] = length;
+    }
+
+    public void addAll(StringColumn other) {
+        for (int i = 0; i < other.size; i++) {
+            int start = other.start(i);
+            add(CharBuffer.wrap(other.chars, start, other.ends[i] - start));
+        }
+    }
+
+    public String get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        int start = start(index);
+        return new StringBuilder(prefix.length() + ends[index] - start)
+                .append(prefix)
+                .append(chars, start, ends[index] - start)
+                .toString();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return a read-only list view on this column.
+     */
+    public List<String> asList() {
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                return StringColumn.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int start(int index) {
+        return index == 0 ? 0 : ends[index - 1];
+    }
+}
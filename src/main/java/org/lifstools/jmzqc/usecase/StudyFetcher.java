@@ -0,0 +1,387 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads the files of a public study into a local directory, with at most
+ * a fixed number of concurrent connections. Files are first written to a
+ * {@code .part} file, which is resumed with an HTTP range request if a
+ * download is interrupted. Completed files are checked against their expected
+ * size and SHA-256 checksum and recorded in a manifest, so verified files are
+ * not downloaded again.
+ *
+ * @author Nils Hoffmann
+ */
+public class StudyFetcher {
+
+    /**
+     * Name of the manifest in the target directory, in {@code sha256sum}
+     * format.
+     */
+    public static final String MANIFEST = "fetch.sha256";
+
+    static final String PART_SUFFIX = ".part";
+    static final int ATTEMPTS = 3;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final Pattern HREF = Pattern.compile("href=\"([^\"?#]+)\"", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    /**
+     * A file to fetch.
+     *
+     * @param name the local file name.
+     * @param uri the remote location.
+     * @param size the expected size in bytes, or -1 if unknown.
+     * @param sha256 the expected SHA-256 checksum as hex string, or null if
+     * unknown.
+     */
+    public static record RemoteFile(String name, URI uri, long size, String sha256) {
+
+        public RemoteFile(String name, URI uri) {
+            this(name, uri, -1, null);
+        }
+    }
+
+    public static enum Status {
+        DOWNLOADED, RESUMED, VERIFIED, SKIPPED
+    }
+
+    /**
+     * Result of one file. The status is only set if the file is present and
+     * verified locally.
+     */
+    public static record FetchResult(RemoteFile file, Path path, Optional<Status> status, long bytesTransferred, Optional<String> failure) {
+
+        public boolean isSuccess() {
+            return failure.isEmpty();
+        }
+    }
+
+    private final HttpClient client;
+    private final URI baseUri;
+    private final Path targetDir;
+    private final int connections;
+    private final Map<String, String> manifest;
+
+    /**
+     * @param baseUri the directory of the study, ending with a slash.
+     * @param targetDir the local directory, created if it does not exist.
+     * @param connections the maximum number of concurrent downloads.
+     * @throws IOException if the directory or the manifest can not be read.
+     */
+    public StudyFetcher(URI baseUri, Path targetDir, int connections) throws IOException {
+        this(HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build(), baseUri, targetDir, connections);
+    }
+
+    /**
+     * @param client the client used for all requests.
+     * @param baseUri the directory of the study, ending with a slash.
+     * @param targetDir the local directory, created if it does not exist.
+     * @param connections the maximum number of concurrent downloads.
+     * @throws IOException if the directory or the manifest can not be read.
+     */
+    public StudyFetcher(HttpClient client, URI baseUri, Path targetDir, int connections) throws IOException {
+        this.client = client;
+        this.baseUri = baseUri;
+        this.targetDir = Files.createDirectories(targetDir);
+        this.connections = Math.max(1, connections);
+        this.manifest = readManifest(targetDir.resolve(MANIFEST));
+    }
+
+    /**
+     * Lists the files linked from the HTML index page of the base URI.
+     * Subdirectories and links leaving the directory are ignored.
+     *
+     * @param nameFilter selects the file names to keep.
+     * @return the matching files, in the order of the index page.
+     * @throws IOException if the index can not be fetched.
+     * @throws InterruptedException if interrupted while waiting for the
+     * index.
+     */
+    public List<RemoteFile> list(Predicate<String> nameFilter) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(baseUri).GET().build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Listing " + baseUri + " failed with HTTP status " + response.statusCode());
+        }
+        Map<String, RemoteFile> files = new LinkedHashMap<>();
+        Matcher matcher = HREF.matcher(response.body());
+        while (matcher.find()) {
+            URI relative;
+            try {
+                relative = baseUri.relativize(baseUri.resolve(matcher.group(1)));
+            } catch (IllegalArgumentException ex) {
+                continue;
+            }
+            String name = relative.getPath();
+            if (!relative.isAbsolute() && name != null && !name.isEmpty() && !name.contains("/") && nameFilter.test(name)) {
+                files.putIfAbsent(name, new RemoteFile(name, baseUri.resolve(relative)));
+            }
+        }
+        return new ArrayList<>(files.values());
+    }
+
+    /**
+     * Fetches all files, at most {@code connections} at once. A failing file
+     * does not abort the others.
+     *
+     * @param files the files to fetch.
+     * @return one result per file, in the order of the files.
+     * @throws InterruptedException if interrupted while waiting for results.
+     */
+    public List<FetchResult> fetch(List<RemoteFile> files) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        try {
+            List<Future<FetchResult>> futures = new ArrayList<>(files.size());
+            for (RemoteFile file : files) {
+                futures.add(executor.submit(() -> fetch(file)));
+            }
+            List<FetchResult> results = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+                    results.add(failed(files.get(i), 0, cause.toString()));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetches one file. A file that is already present is skipped if it is in
+     * the manifest and matches the expected size and checksum. A present file
+     * that is not in the manifest yet is hashed and kept if it matches the
+     * remote size. Otherwise, the file is downloaded, resuming a previous
+     * partial download, and up to {@value #ATTEMPTS} attempts are made.
+     *
+     * @param file the file to fetch.
+     * @return the result.
+     * @throws InterruptedException if interrupted while downloading.
+     */
+    public FetchResult fetch(RemoteFile file) throws InterruptedException {
+        Path target = targetDir.resolve(file.name());
+        long transferred = 0;
+        try {
+            long expectedSize = file.size() >= 0 ? file.size() : remoteSize(file.uri());
+            if (Files.isRegularFile(target) && (expectedSize < 0 || Files.size(target) == expectedSize)) {
+                String recorded = recorded(file.name());
+                if (recorded != null && (file.sha256() == null || file.sha256().equalsIgnoreCase(recorded))) {
+                    return new FetchResult(file, target, Optional.of(Status.SKIPPED), 0, Optional.empty());
+                }
+                if (recorded == null && expectedSize >= 0) {
+                    String sha256 = sha256(target);
+                    if (file.sha256() == null || file.sha256().equalsIgnoreCase(sha256)) {
+                        record(file.name(), sha256);
+                        return new FetchResult(file, target, Optional.of(Status.VERIFIED), 0, Optional.empty());
+                    }
+                }
+            }
+            Path part = targetDir.resolve(file.name() + PART_SUFFIX);
+            boolean resumed = false;
+            IOException last = null;
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                long offset = Files.isRegularFile(part) ? Files.size(part) : 0;
+                try {
+                    Download download = download(file.uri(), part, offset, expectedSize);
+                    transferred += download.transferred();
+                    resumed |= download.resumed();
+                    if (file.sha256() != null && !file.sha256().equalsIgnoreCase(download.sha256())) {
+                        Files.delete(part);
+                        return failed(file, transferred, "Checksum mismatch, expected " + file.sha256() + " but got " + download.sha256());
+                    }
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    record(file.name(), download.sha256());
+                    return new FetchResult(file, target, Optional.of(resumed ? Status.RESUMED : Status.DOWNLOADED), transferred, Optional.empty());
+                } catch (IOException ex) {
+                    last = ex;
+                    Logger.getLogger(StudyFetcher.class.getName()).log(Level.WARNING, "Attempt {0} for {1} failed: {2}", new Object[]{attempt + 1, file.uri(), ex.toString()});
+                }
+            }
+            return failed(file, transferred, last.toString());
+        } catch (IOException ex) {
+            return failed(file, transferred, ex.toString());
+        }
+    }
+
+    private static record Download(long transferred, boolean resumed, String sha256) {
+
+    }
+
+    /**
+     * Downloads into the part file, starting at {@code offset} if the server
+     * accepts range requests, and checks the final size.
+     */
+    private Download download(URI uri, Path part, long offset, long expectedSize) throws IOException, InterruptedException {
+        MessageDigest digest = newDigest();
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).GET();
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+        }
+        HttpResponse<InputStream> response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        try ( InputStream in = response.body()) {
+            long totalSize;
+            boolean resumed;
+            if (response.statusCode() == 206) {
+                Matcher range = CONTENT_RANGE.matcher(response.headers().firstValue("Content-Range").orElse(""));
+                if (!range.matches() || Long.parseLong(range.group(1)) != offset) {
+                    throw new IOException("Unexpected Content-Range for " + uri + ": " + response.headers().firstValue("Content-Range").orElse(""));
+                }
+                totalSize = "*".equals(range.group(3)) ? expectedSize : Long.parseLong(range.group(3));
+                resumed = true;
+                update(digest, part);
+            } else if (response.statusCode() == 200) {
+                long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                totalSize = length >= 0 ? length : expectedSize;
+                resumed = false;
+            } else if (response.statusCode() == 416 && offset > 0 && offset == expectedSize) {
+                // the part file is already complete
+                update(digest, part);
+                return new Download(0, true, HexFormat.of().formatHex(digest.digest()));
+            } else {
+                if (response.statusCode() == 416) {
+                    Files.deleteIfExists(part);
+                }
+                throw new IOException("Fetching " + uri + " failed with HTTP status " + response.statusCode());
+            }
+            if (expectedSize >= 0 && totalSize != expectedSize) {
+                Files.deleteIfExists(part);
+                throw new IOException("Remote size of " + uri + " is " + totalSize + " bytes, expected " + expectedSize);
+            }
+            long transferred = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try ( OutputStream out = Files.newOutputStream(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    resumed ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                    transferred += read;
+                }
+            }
+            long size = Files.size(part);
+            if (totalSize >= 0 && size != totalSize) {
+                throw new IOException("Download of " + uri + " ended after " + size + " of " + totalSize + " bytes");
+            }
+            return new Download(transferred, resumed, HexFormat.of().formatHex(digest.digest()));
+        }
+    }
+
+    /**
+     * @return the remote size from a HEAD request, or -1 if the server does
+     * not report it.
+     */
+    private long remoteSize(URI uri) throws InterruptedException {
+        try {
+            HttpResponse<Void> response = client.send(HttpRequest.newBuilder(uri).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+            return response.statusCode() == 200 ? response.headers().firstValueAsLong("Content-Length").orElse(-1) : -1;
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    private synchronized String recorded(String name) {
+        return manifest.get(name);
+    }
+
+    private synchronized void record(String name, String sha256) throws IOException {
+        manifest.put(name, sha256);
+        Files.writeString(targetDir.resolve(MANIFEST), sha256 + "  " + name + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Reads the manifest. Later lines win, and an interrupted last line is
+     * ignored.
+     */
+    private static Map<String, String> readManifest(Path path) throws IOException {
+        Map<String, String> entries = new HashMap<>();
+        if (Files.isRegularFile(path)) {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                int separator = line.indexOf("  ");
+                if (separator == 64) {
+                    entries.put(line.substring(separator + 2), line.substring(0, separator));
+                }
+            }
+        }
+        return entries;
+    }
+
+    static String sha256(Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, path);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, Path path) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try ( InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static FetchResult failed(RemoteFile file, long transferred, String reason) {
+        return new FetchResult(file, null, Optional.empty(), transferred, Optional.of(reason));
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FilenameUtils;
+import org.knowm.xchart.BitmapEncoder;
+import org.knowm.xchart.XYChart;
+import org.knowm.xchart.XYSeries;
+import org.lifstools.jmzqc.BaseQuality;
+import org.lifstools.jmzqc.InputFile;
+import org.lifstools.jmzqc.QualityMetric;
+
+/**
+ * Renders TIC plots as PNG files. Every TIC is downsampled with the largest
+ * triangle three buckets (LTTB) algorithm to one point per horizontal pixel
+ * before it is handed to xchart, straight from the float columns of the TIC
+ * metric. This keeps the shape and the peaks of the TIC, but avoids drawing
+ * thousands of points onto the same pixels. The downsampled TICs of all
+ * plotted runs are kept for an overlay plot of the whole batch.
+ * <p>
+ * Instances are thread safe, and plots can be rendered concurrently.
+ *
+ * @author Nils Hoffmann
+ */
+public class TicPlotter {
+
+    /**
+     * Overlays with more runs than this have no legend.
+     */
+    static final int MAX_LEGEND_ENTRIES = 10;
+
+    /**
+     * A downsampled TIC.
+     *
+     * @param name the name of the run.
+     * @param rts the retention times.
+     * @param intensities the total ion currents.
+     */
+    public static record Series(String name, double[] rts, double[] intensities) {
+
+    }
+
+    private final Path outputDir;
+    private final int width;
+    private final int height;
+    private final List<Series> plotted = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param outputDir the directory for the PNG files, created if it does not
+     * exist.
+     * @param width the width of the plots in pixels.
+     * @param height the height of the plots in pixels.
+     * @throws IOException if the directory can not be created.
+     */
+    public TicPlotter(Path outputDir, int width, int height) throws IOException {
+        this.outputDir = Files.createDirectories(outputDir);
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Downsamples a series with the largest triangle three buckets algorithm.
+     * The first and last points are always kept. Of the points in between,
+     * which are split into {@code threshold - 2} buckets, the point that forms
+     * the largest triangle with the previously selected point and the average
+     * of the next bucket is kept.
+     *
+     * @param name the name of the series.
+     * @param rts the retention times, in ascending order.
+     * @param intensities the intensities.
+     * @param threshold the maximum number of points to keep.
+     * @return the downsampled series, or all points if there are not more than
+     * {@code threshold}.
+     */
+    public static Series downsample(String name, float[] rts, float[] intensities, int threshold) {
+        int n = Math.min(rts.length, intensities.length);
+        if (threshold >= n || threshold < 3) {
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = rts[i];
+                y[i] = intensities[i];
+            }
+            return new Series(name, x, y);
+        }
+        double[] x = new double[threshold];
+        double[] y = new double[threshold];
+        double bucketSize = (double) (n - 2) / (threshold - 2);
+        int selected = 0;
+        x[0] = rts[0];
+        y[0] = intensities[0];
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // average of the next bucket, or the last point for the last bucket
+            int nextStart = (int) ((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += rts[i];
+                avgY += intensities[i];
+            }
+            avgX /= nextEnd - nextStart;
+            avgY /= nextEnd - nextStart;
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = nextStart;
+            double selectedX = rts[selected];
+            double selectedY = intensities[selected];
+            double maxArea = -1;
+            int next = start;
+            for (int i = start; i < end; i++) {
+                double area = Math.abs((selectedX - avgX) * (intensities[i] - selectedY) - (selectedX - rts[i]) * (avgY - selectedY));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = i;
+                }
+            }
+            x[bucket + 1] = rts[next];
+            y[bucket + 1] = intensities[next];
+            selected = next;
+        }
+        x[threshold - 1] = rts[n - 1];
+        y[threshold - 1] = intensities[n - 1];
+        return new Series(name, x, y);
+    }
+
+    /**
+     * Extracts the TIC of a run quality, either from the {@code MS:4000104}
+     * TIC table, or from a {@code MS:1000235} TIC with the retention times in
+     * its unit, as created by {@link JmzqcProteomics}.
+     *
+     * @param runQuality the run quality.
+     * @return the retention times and intensities, or an empty optional if the
+     * run has no TIC.
+     */
+    public static Optional<float[][]> ticOf(BaseQuality runQuality) {
+        for (QualityMetric metric : runQuality.qualityMetrics()) {
+            if ("MS:4000104".equals(metric.accession()) && metric.value() instanceof Map<?, ?> table) {
+                return Optional.of(new float[][]{toFloats(table.get("MS:1000894")), toFloats(table.get("MS:1000285"))});
+            }
+            if ("MS:1000235".equals(metric.accession()) && metric.unit() != null && metric.unit().cvParameterValue() != null) {
+                return Optional.of(new float[][]{toFloats(metric.unit().cvParameterValue().value()), toFloats(metric.value())});
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static float[] toFloats(Object value) {
+        if (value instanceof float[] floats) {
+            return floats;
+        }
+        double[] doubles = CrossRunAggregator.toDoubles(value);
+        float[] floats = new float[doubles.length];
+        for (int i = 0; i < doubles.length; i++) {
+            floats[i] = (float) doubles[i];
+        }
+        return floats;
+    }
+
+    /**
+     * Plots the TIC of a run to {@code <input file base name>.tic.png}.
+     *
+     * @param runQuality the run quality.
+     * @return the PNG file, or an empty optional if the run has no or an empty
+     * TIC.
+     * @throws IOException if the PNG file can not be written.
+     */
+    public Optional<Path> plot(BaseQuality runQuality) throws IOException {
+        Optional<float[][]> tic = ticOf(runQuality);
+        if (tic.isEmpty() || tic.get()[0].length == 0 || tic.get()[1].length == 0) {
+            return Optional.empty();
+        }
+        String name = runName(runQuality);
+        return Optional.of(plot(FilenameUtils.getBaseName(name) + ".tic.png", name, tic.get()[0], tic.get()[1]));
+    }
+
+    private static String runName(BaseQuality runQuality) {
+        List<InputFile> inputFiles = runQuality.metadata().inputFiles();
+        return inputFiles == null || inputFiles.isEmpty() ? "run" : inputFiles.get(0).name();
+    }
+
+    /**
+     * Downsamples a TIC to the plot width, plots it and keeps it for
+     * {@link #plotOverlay(String)}.
+     *
+     * @param fileName the name of the PNG file in the output directory.
+     * @param name the name of the run.
+     * @param rts the retention times, in ascending order.
+     * @param intensities the total ion currents.
+     * @return the PNG file.
+     * @throws IOException if the PNG file can not be written.
+     */
+    public Path plot(String fileName, String name, float[] rts, float[] intensities) throws IOException {
+        Series series = downsample(name, rts, intensities, width);
+        plotted.add(series);
+        return render(fileName, "TIC " + name, List.of(series));
+    }
+
+    /**
+     * Plots the TICs of many runs concurrently.
+     *
+     * @param runQualities the run qualities.
+     * @param threads the number of plots to render at the same time.
+     * @return the PNG files, in the order of the runs that have a TIC.
+     * @throws IOException if a PNG file can not be written.
+     * @throws InterruptedException if interrupted while waiting for the plots.
+     */
+    public List<Path> plotAll(List<BaseQuality> runQualities, int threads) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Optional<Path>>> futures = new ArrayList<>(runQualities.size());
+            for (BaseQuality runQuality : runQualities) {
+                futures.add(executor.submit(() -> plot(runQuality)));
+            }
+            List<Path> files = new ArrayList<>(runQualities.size());
+            for (Future<Optional<Path>> future : futures) {
+                try {
+                    future.get().ifPresent(files::add);
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof IOException ioException) {
+                        throw ioException;
+                    }
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+            return files;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Plots the TICs of all runs plotted so far into one chart, in the order
+     * they were plotted.
+     *
+     * @param fileName the name of the PNG file in the output directory.
+     * @return the PNG file, or an empty optional if no run was plotted.
+     * @throws IOException if the PNG file can not be written.
+     */
+    public Optional<Path> plotOverlay(String fileName) throws IOException {
+        List<Series> series;
+        synchronized (plotted) {
+            series = new ArrayList<>(plotted);
+        }
+        if (series.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(render(fileName, "TIC of " + series.size() + " runs", series));
+    }
+
+    /**
+     * @param fileName the name of the PNG file in the output directory.
+     * @param title the chart title.
+     * @param series the downsampled TICs to overlay.
+     * @return the PNG file.
+     * @throws IOException if the PNG file can not be written.
+     */
+    public Path render(String fileName, String title, Collection<Series> series) throws IOException {
+        try ( PhaseProfiler.Phase phase = PhaseProfiler.start("plot", fileName)) {
+            XYChart chart = new XYChart(width, height);
+            chart.setTitle(title);
+            chart.setXAxisTitle("RT [s]");
+            chart.setYAxisTitle("Intensity [a.u.]");
+            chart.getStyler().setMarkerSize(0);
+            chart.getStyler().setLegendVisible(series.size() <= MAX_LEGEND_ENTRIES);
+            // series names must be unique within a chart
+            Set<String> names = new HashSet<>();
+            for (Series s : series) {
+                String name = s.name();
+                for (int i = 2; !names.add(name); i++) {
+                    name = s.name() + " (" + i + ")";
+                }
+                XYSeries xySeries = chart.addSeries(name, s.rts(), s.intensities());
+                if (series.size() > 1) {
+                    xySeries.setLineWidth(1f);
+                }
+            }
+            Path file = outputDir.resolve(fileName);
+            BitmapEncoder.saveBitmap(chart, file.toString(), BitmapEncoder.BitmapFormat.PNG);
+            return file;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.networknt.schema.ValidationMessage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FilenameUtils;
+import org.lifstools.jmzqc.MzQC;
+
+/**
+ * Long running mode that watches acquisition directories for new mzML files.
+ * Once a file is completely written, it is processed with
+ * {@link ProteomicsDDAMs1QC} and the mzQC file is written next to it. A file
+ * counts as complete as soon as it ends with the closing
+ * {@code </indexedmzML>} tag, or otherwise when its size did not change for a
+ * configurable time.
+ *
+ * @author Nils Hoffmann
+ */
+public class WatchFolderDaemon {
+
+    private static final String INDEXED_MZML_END_TAG = "</indexedmzML>";
+    private static final int TAIL_BYTES = 64;
+
+    private final List<Path> directories;
+    private final ProteomicsDDAMs1QC.Options options;
+    private final MzQCCodec.WriteOptions writeOptions;
+    private final Optional<ResultCache> cache;
+    private final Optional<MetricStore> store;
+    private final Duration stableFor;
+    private final int threads;
+    private final Map<Path, PendingFile> pending = new HashMap<>();
+    private final Set<Path> inProgress = ConcurrentHashMap.newKeySet();
+
+    private static final class PendingFile {
+
+        long size = -1;
+        long lastChange;
+    }
+
+    /**
+     * @param directories the directories to watch.
+     * @param options the reading mode and metrics of every file.
+     * @param writeOptions the options for writing the mzQC files.
+     * @param cache if present, metrics are looked up in and stored to this
+     * cache.
+     * @param stableFor how long the size of a file without closing
+     * {@code </indexedmzML>} tag must not change before it is processed.
+     * @param threads the number of files to process concurrently.
+     */
+    public WatchFolderDaemon(List<Path> directories, ProteomicsDDAMs1QC.Options options, MzQCCodec.WriteOptions writeOptions, Optional<ResultCache> cache, Duration stableFor, int threads) {
+        this(directories, options, writeOptions, cache, Optional.empty(), stableFor, threads);
+    }
+
+    /**
+     * @param directories the directories to watch.
+     * @param options the reading mode and metrics of every file.
+     * @param writeOptions the options for writing the mzQC files.
+     * @param cache if present, metrics are looked up in and stored to this
+     * cache.
+     * @param store if present, the metrics of every processed file are
+     * appended to this store, and written to disk right away.
+     * @param stableFor how long the size of a file without closing
+     * {@code </indexedmzML>} tag must not change before it is processed.
+     * @param threads the number of files to process concurrently.
+     */
+    public WatchFolderDaemon(List<Path> directories, ProteomicsDDAMs1QC.Options options, MzQCCodec.WriteOptions writeOptions, Optional<ResultCache> cache, Optional<MetricStore> store, Duration stableFor, int threads) {
+        this.directories = List.copyOf(directories);
+        this.options = options;
+        this.writeOptions = writeOptions;
+        this.cache = cache;
+        this.store = store;
+        this.stableFor = stableFor;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Watches the directories until the calling thread is interrupted. mzML
+     * files that are already present but have no up to date mzQC file are
+     * processed as well.
+     *
+     * @throws IOException if a directory can not be watched.
+     */
+    public void run() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try ( WatchService watchService = directories.get(0).getFileSystem().newWatchService()) {
+            Map<WatchKey, Path> keys = new HashMap<>();
+            for (Path directory : directories) {
+                keys.put(directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY), directory);
+                scan(directory);
+                System.out.println("Watching directory: " + directory);
+            }
+            long pollMillis = Math.max(100, Math.min(1000, stableFor.toMillis() / 2));
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    Path directory = keys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan(directory);
+                        } else if (isMzML((Path) event.context())) {
+                            pending.putIfAbsent(directory.resolve((Path) event.context()), new PendingFile());
+                        }
+                    }
+                    key.reset();
+                    key = watchService.poll();
+                }
+                submitCompleted(executor);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void scan(Path directory) throws IOException {
+        for (File inputFile : BatchProcessor.listInputFiles(directory)) {
+            Path path = inputFile.toPath();
+            if (!isUpToDate(path)) {
+                pending.putIfAbsent(path, new PendingFile());
+            }
+        }
+    }
+
+    private void submitCompleted(ExecutorService executor) {
+        long now = System.currentTimeMillis();
+        Set<Path> completed = new HashSet<>();
+        for (Iterator<Map.Entry<Path, PendingFile>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Path, PendingFile> entry = it.next();
+            Path path = entry.getKey();
+            PendingFile state = entry.getValue();
+            try {
+                long size = Files.size(path);
+                if (size != state.size) {
+                    state.size = size;
+                    state.lastChange = now;
+                }
+                if (endsWithIndexedMzMLTag(path, size) || now - state.lastChange >= stableFor.toMillis()) {
+                    // modifications of already processed files, e.g. by touch, are ignored
+                    if (!isUpToDate(path)) {
+                        completed.add(path);
+                    }
+                    it.remove();
+                }
+            } catch (IOException ex) {
+                // deleted or renamed while waiting
+                it.remove();
+            }
+        }
+        for (Path path : completed) {
+            if (inProgress.add(path)) {
+                executor.submit(() -> {
+                    try {
+                        process(path);
+                    } finally {
+                        inProgress.remove(path);
+                    }
+                });
+            }
+        }
+    }
+
+    private void process(Path inputFile) {
+        try {
+            long start = System.currentTimeMillis();
+            Optional<MzQC> mzQC = new ProteomicsDDAMs1QC(inputFile.toFile(), options, cache).process();
+            if (mzQC.isEmpty()) {
+                System.err.println("MzQC creation failed for " + inputFile);
+                return;
+            }
+            Path outputFile = outputFileFor(inputFile);
+            Set<ValidationMessage> messages = MzQCCodec.getInstance().validateAndWrite(outputFile, mzQC.get(), writeOptions);
+            if (!messages.isEmpty()) {
+                System.err.println("Validation failed for " + inputFile + " with " + messages.size() + " messages " + messages);
+                return;
+            }
+            if (store.isPresent()) {
+                // the daemon runs until it is killed, so nothing is left buffered
+                store.get().append(mzQC.get().runQualities().get(0));
+                store.get().flush();
+            }
+            System.out.println("Wrote " + outputFile + " in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (IOException | URISyntaxException | RuntimeException ex) {
+            Logger.getLogger(WatchFolderDaemon.class.getName()).log(Level.SEVERE, "Processing of " + inputFile + " failed", ex);
+        }
+    }
+
+    private Path outputFileFor(Path inputFile) {
+        return inputFile.resolveSibling(FilenameUtils.getBaseName(inputFile.getFileName().toString()) + writeOptions.fileExtension());
+    }
+
+    private boolean isUpToDate(Path inputFile) throws IOException {
+        Path outputFile = outputFileFor(inputFile);
+        return Files.exists(outputFile)
+                && Files.getLastModifiedTime(outputFile).compareTo(Files.getLastModifiedTime(inputFile)) >= 0;
+    }
+
+    private static boolean isMzML(Path fileName) {
+        return fileName.toString().toLowerCase().endsWith(".mzml");
+    }
+
+    /**
+     * Checks whether the file ends with the closing {@code </indexedmzML>}
+     * tag, followed by optional whitespace.
+     */
+    static boolean endsWithIndexedMzMLTag(Path file, long size) throws IOException {
+        if (size < INDEXED_MZML_END_TAG.length()) {
+            return false;
+        }
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(TAIL_BYTES, size));
+        try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = size - tail.capacity();
+            while (tail.hasRemaining()) {
+                if (channel.read(tail, position + tail.position()) < 0) {
+                    break;
+                }
+            }
+        }
+        tail.flip();
+        return StandardCharsets.US_ASCII.decode(tail).toString().strip().endsWith(INDEXED_MZML_END_TAG);
+    }
+}
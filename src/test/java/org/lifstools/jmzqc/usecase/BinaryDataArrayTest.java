@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the lazy decoding of {@link BinaryDataArray}.
+ *
+ * @author Nils Hoffmann
+ */
+public class BinaryDataArrayTest {
+
+    private static BinaryDataArray array(String base64, boolean zlib, BinaryDataArray.Numpress numpress) {
+        BinaryDataArray array = new BinaryDataArray();
+        array.zlib = zlib;
+        array.numpress = numpress;
+        char[] text = base64.toCharArray();
+        array.appendBase64(text, 0, text.length);
+        return array;
+    }
+
+    @Test
+    public void testEmptyZlibArray() {
+        assertEquals(0, array("\n  ", true, BinaryDataArray.Numpress.NONE).size());
+        assertEquals(0, array("", true, BinaryDataArray.Numpress.LINEAR).size());
+    }
+
+    @Test
+    public void testZlibArray() {
+        byte[] data = new byte[2 * Double.BYTES];
+        ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).putDouble(1.5).putDouble(-2.0);
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] compressed = new byte[64];
+        int length = deflater.deflate(compressed);
+        deflater.end();
+        BinaryDataArray array = array(Base64.getEncoder().encodeToString(Arrays.copyOf(compressed, length)), true, BinaryDataArray.Numpress.NONE);
+        assertEquals(2, array.size());
+        assertEquals(1.5, array.values()[0], 0);
+        assertEquals(-2.0, array.values()[1], 0);
+    }
+
+    @Test
+    public void testNumpressLinearSingleValue() {
+        // fixed point 1000.0 and the value 100.0
+        BinaryDataArray array = array("QI9AAAAAAACghgEA", false, BinaryDataArray.Numpress.LINEAR);
+        assertEquals(1, array.size());
+        assertEquals(100.0, array.values()[0], 1e-9);
+    }
+}
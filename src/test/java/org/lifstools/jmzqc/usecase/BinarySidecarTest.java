@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests which sidecar locations {@link BinarySidecar} accepts when reading.
+ *
+ * @author Nils Hoffmann
+ */
+public class BinarySidecarTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testLocateWithinDocumentDirectory() throws IOException {
+        Path run = directory.resolve("run");
+        assertEquals(run.resolve("a.mzQC.bin"), BinarySidecar.locate("a.mzQC.bin", run, run));
+        assertEquals(run.resolve("sub/a.mzQC.bin"), BinarySidecar.locate("sub/../sub/a.mzQC.bin", run, run));
+    }
+
+    @Test
+    public void testLocateRejectsEscapingLocations() {
+        Path run = directory.resolve("run");
+        assertThrows(IOException.class, () -> BinarySidecar.locate(directory.resolve("run/a.mzQC.bin").toString(), run, run));
+        assertThrows(IOException.class, () -> BinarySidecar.locate("/etc/passwd", run, run));
+        assertThrows(IOException.class, () -> BinarySidecar.locate("../other/a.mzQC.bin", run, run));
+        assertThrows(IOException.class, () -> BinarySidecar.locate("sub/../../a.mzQC.bin", run, run));
+        assertThrows(IOException.class, () -> BinarySidecar.locate("a.mzQC", run, run));
+        assertThrows(IOException.class, () -> BinarySidecar.locate("", run, run));
+    }
+
+    @Test
+    public void testLocateMergedLocationsWithinRoot() throws IOException {
+        Path merged = directory.resolve("merged");
+        assertEquals(directory.resolve("run/a.mzQC.bin"), BinarySidecar.locate("../run/a.mzQC.bin", merged, directory));
+        assertThrows(IOException.class, () -> BinarySidecar.locate("../../a.mzQC.bin", merged, directory));
+    }
+}
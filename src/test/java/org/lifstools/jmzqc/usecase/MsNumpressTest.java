@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import java.util.HexFormat;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests {@link MsNumpress} with data encoded by the rules of the reference
+ * implementation: a big-endian fixed point, little-endian 32 bit start
+ * values, and half byte integers padded with a zero low half.
+ *
+ * @author Nils Hoffmann
+ */
+public class MsNumpressTest {
+
+    /**
+     * Fixed point 1000.0.
+     */
+    private static final String FIXED_POINT = "408f400000000000";
+
+    private static byte[] bytes(String hex) {
+        return HexFormat.of().parseHex(hex);
+    }
+
+    private static double[] decode(BinaryDataArray.Numpress scheme, byte[] data) {
+        double[] result = new double[MsNumpress.maxDecodedLength(scheme, data.length)];
+        int count = switch (scheme) {
+            case LINEAR ->
+                MsNumpress.decodeLinear(data, data.length, result);
+            case PIC ->
+                MsNumpress.decodePic(data, data.length, result);
+            case SLOF ->
+                MsNumpress.decodeSlof(data, data.length, result);
+            case NONE ->
+                0;
+        };
+        double[] values = new double[count];
+        System.arraycopy(result, 0, values, 0, count);
+        return values;
+    }
+
+    private static void assertValues(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], 1e-9);
+        }
+    }
+
+    @Test
+    public void testLinearSingleValue() {
+        // 100.0 is stored as 100000 = 0x000186a0
+        assertValues(new double[]{100.0}, decode(BinaryDataArray.Numpress.LINEAR, bytes(FIXED_POINT + "a0860100")));
+    }
+
+    @Test
+    public void testLinearTwoValues() {
+        assertValues(new double[]{100.0, 100.5}, decode(BinaryDataArray.Numpress.LINEAR, bytes(FIXED_POINT + "a0860100" + "94880100")));
+    }
+
+    @Test
+    public void testLinearResiduals() {
+        // residuals 0 (half byte 8), 200 (6, 8, c) and -1 (f, f) after extrapolation
+        String start = FIXED_POINT + "a0860100" + "94880100";
+        assertValues(new double[]{100.0, 100.5, 101.0}, decode(BinaryDataArray.Numpress.LINEAR, bytes(start + "80")));
+        assertValues(new double[]{100.0, 100.5, 101.2}, decode(BinaryDataArray.Numpress.LINEAR, bytes(start + "68c0")));
+        assertValues(new double[]{100.0, 100.5, 100.999}, decode(BinaryDataArray.Numpress.LINEAR, bytes(start + "ff")));
+        assertValues(new double[]{100.0, 100.5, 101.0, 101.5}, decode(BinaryDataArray.Numpress.LINEAR, bytes(start + "88")));
+    }
+
+    @Test
+    public void testPic() {
+        assertValues(new double[]{0}, decode(BinaryDataArray.Numpress.PIC, bytes("80")));
+        assertValues(new double[]{0, 0}, decode(BinaryDataArray.Numpress.PIC, bytes("88")));
+        assertValues(new double[]{1}, decode(BinaryDataArray.Numpress.PIC, bytes("71")));
+        assertValues(new double[]{1, 0}, decode(BinaryDataArray.Numpress.PIC, bytes("7180")));
+        assertValues(new double[]{17}, decode(BinaryDataArray.Numpress.PIC, bytes("6110")));
+        assertValues(new double[]{17, 1}, decode(BinaryDataArray.Numpress.PIC, bytes("611710")));
+    }
+
+    @Test
+    public void testSlof() {
+        // log(x + 1) * 1000 is stored as little-endian unsigned short, 1000 = 0x03e8
+        assertValues(new double[]{0, Math.E - 1}, decode(BinaryDataArray.Numpress.SLOF, bytes(FIXED_POINT + "0000" + "e803")));
+        // a trailing odd byte is ignored
+        assertValues(new double[]{Math.E - 1}, decode(BinaryDataArray.Numpress.SLOF, bytes(FIXED_POINT + "e803" + "ff")));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021 Nils Hoffmann.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lifstools.jmzqc.usecase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests {@link StudyFetcher} against a local HTTP server that supports range
+ * requests.
+ *
+ * @author Nils Hoffmann
+ */
+public class StudyFetcherTest {
+
+    private static final String NAME = "run.mzML";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+
+    @TempDir
+    Path targetDir;
+
+    private final byte[] content = new byte[100_000];
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private URI baseUri;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        new Random(42).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/study/" + NAME, this::serve);
+        server.start();
+        baseUri = URI.create("http://localhost:" + server.getAddress().getPort() + "/study/");
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        requests.add(exchange.getRequestMethod() + (range == null ? "" : " " + range));
+        int offset = 0;
+        Matcher matcher = RANGE.matcher(range == null ? "" : range);
+        if (matcher.matches()) {
+            offset = Integer.parseInt(matcher.group(1));
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-" + (content.length - 1) + "/" + content.length);
+        }
+        int status = offset > 0 ? 206 : 200;
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(content.length));
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, content.length - offset);
+        try ( OutputStream out = exchange.getResponseBody()) {
+            out.write(content, offset, content.length - offset);
+        }
+    }
+
+    private StudyFetcher.RemoteFile remoteFile(String sha256) {
+        return new StudyFetcher.RemoteFile(NAME, baseUri.resolve(NAME), content.length, sha256);
+    }
+
+    private static String sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+
+    @Test
+    public void testResumesPartFile() throws Exception {
+        int offset = 40_000;
+        Files.write(targetDir.resolve(NAME + StudyFetcher.PART_SUFFIX), Arrays.copyOf(content, offset));
+        StudyFetcher.FetchResult result = new StudyFetcher(baseUri, targetDir, 1).fetch(remoteFile(sha256(content)));
+        assertTrue(result.isSuccess(), result.failure().orElse(""));
+        assertEquals(Optional.of(StudyFetcher.Status.RESUMED), result.status());
+        assertEquals(content.length - offset, result.bytesTransferred());
+        assertEquals(List.of("GET bytes=" + offset + "-"), requests);
+        assertArrayEquals(content, Files.readAllBytes(targetDir.resolve(NAME)));
+        assertFalse(Files.exists(targetDir.resolve(NAME + StudyFetcher.PART_SUFFIX)));
+    }
+
+    @Test
+    public void testRejectsChecksumMismatch() throws Exception {
+        String wrong = sha256(new byte[]{1, 2, 3});
+        StudyFetcher.FetchResult result = new StudyFetcher(baseUri, targetDir, 1).fetch(remoteFile(wrong));
+        assertFalse(result.isSuccess());
+        assertTrue(result.failure().get().startsWith("Checksum mismatch"), result.failure().get());
+        assertEquals(Optional.empty(), result.status());
+        assertFalse(Files.exists(targetDir.resolve(NAME)));
+        assertFalse(Files.exists(targetDir.resolve(NAME + StudyFetcher.PART_SUFFIX)));
+        assertFalse(Files.exists(targetDir.resolve(StudyFetcher.MANIFEST)));
+    }
+
+    @Test
+    public void testReusesManifest() throws Exception {
+        StudyFetcher.FetchResult first = new StudyFetcher(baseUri, targetDir, 1).fetch(new StudyFetcher.RemoteFile(NAME, baseUri.resolve(NAME)));
+        assertEquals(Optional.of(StudyFetcher.Status.DOWNLOADED), first.status());
+        assertEquals(List.of(sha256(content) + "  " + NAME), Files.readAllLines(targetDir.resolve(StudyFetcher.MANIFEST)));
+        requests.clear();
+        // a new fetcher reads the manifest and only asks for the remote size
+        StudyFetcher.FetchResult second = new StudyFetcher(baseUri, targetDir, 1).fetch(new StudyFetcher.RemoteFile(NAME, baseUri.resolve(NAME)));
+        assertTrue(second.isSuccess(), second.failure().orElse(""));
+        assertEquals(Optional.of(StudyFetcher.Status.SKIPPED), second.status());
+        assertEquals(0, second.bytesTransferred());
+        assertEquals(List.of("HEAD"), requests);
+    }
+}